@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Applying, rolling back and uninstalling packages. Each operation changes
+ * the environment, so every iteration starts from a freshly prepared one
+ * and measures a single operation.
+ *
+ * @author Alexey Loubyansky
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ApplyBenchmark extends InstallationState {
+
+    private static final String UNIT = "unit";
+
+    /** percentage of the files changed, added and deleted by the update */
+    @Param({"10"})
+    public int changedPercent;
+
+    private File installPackage;
+    private File updatePackage;
+
+    @Setup
+    public void buildPackages() throws IOException, ProvisionException {
+        final File currentInstall = newDir("current");
+        generator.generate(currentInstall);
+        installPackage = new File(workDir, "install.zip");
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(currentInstall)
+            .setPackageOutputFile(installPackage)
+            .buildInstall(UNIT, "1.0");
+
+        final File targetInstall = new File(workDir, "target");
+        copyDir(currentInstall, targetInstall);
+        generator.update(targetInstall, changedPercent, changedPercent, changedPercent);
+        updatePackage = new File(workDir, "update.zip");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(currentInstall)
+            .setTargetInstallationDir(targetInstall)
+            .setPackageOutputFile(updatePackage)
+            .buildUpdate(UNIT, "1.0", "1.1");
+    }
+
+    ProvisionEnvironment newEnvironment() throws ProvisionException {
+        return ProvisionEnvironment.builder().setEnvironmentHome(newDir("env")).build();
+    }
+
+    @State(Scope.Thread)
+    public static class EmptyEnvironment {
+        ProvisionEnvironment env;
+
+        @Setup(Level.Iteration)
+        public void setup(ApplyBenchmark benchmark) throws ProvisionException {
+            env = benchmark.newEnvironment();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class InstalledEnvironment {
+        ProvisionEnvironment env;
+
+        @Setup(Level.Iteration)
+        public void setup(ApplyBenchmark benchmark) throws ProvisionException {
+            env = benchmark.newEnvironment();
+            env.apply(benchmark.installPackage);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class UpdatedEnvironment {
+        ProvisionEnvironment env;
+
+        @Setup(Level.Iteration)
+        public void setup(ApplyBenchmark benchmark) throws ProvisionException {
+            env = benchmark.newEnvironment();
+            env.apply(benchmark.installPackage);
+            env.apply(benchmark.updatePackage);
+        }
+    }
+
+    @Benchmark
+    public ProvisionEnvironment install(EmptyEnvironment state) throws ProvisionException {
+        state.env.apply(installPackage);
+        return state.env;
+    }
+
+    @Benchmark
+    public ProvisionEnvironment update(InstalledEnvironment state) throws ProvisionException {
+        state.env.apply(updatePackage);
+        return state.env;
+    }
+
+    @Benchmark
+    public ProvisionEnvironment rollbackLast(UpdatedEnvironment state) throws ProvisionException {
+        state.env.rollbackLast();
+        return state.env;
+    }
+
+    @Benchmark
+    public ProvisionEnvironment uninstall(InstalledEnvironment state) throws ProvisionException {
+        state.env.uninstall(UNIT);
+        return state.env;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.info.ProvisionEnvironmentInfo;
+import org.jboss.provision.info.ProvisionUnitInfo;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Loading an environment and iterating through its history.
+ *
+ * @author Alexey Loubyansky
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistoryBenchmark extends InstallationState {
+
+    private static final String UNIT = "unit";
+
+    /** the number of updates applied after the install */
+    @Param({"20"})
+    public int historyLength;
+
+    /** percentage of the files changed, added and deleted by each update */
+    @Param({"1"})
+    public int changedPercent;
+
+    private File envHome;
+    private ProvisionEnvironment env;
+
+    @Setup
+    public void applyUpdates() throws IOException, ProvisionException {
+        final File targetInstall = newDir("target");
+        generator.generate(targetInstall);
+        final File pkg = new File(workDir, "package.zip");
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(targetInstall)
+            .setPackageOutputFile(pkg)
+            .buildInstall(UNIT, "1.0");
+        envHome = newDir("env");
+        env = ProvisionEnvironment.builder().setEnvironmentHome(envHome).build();
+        env.apply(pkg);
+
+        final File currentInstall = new File(workDir, "current");
+        for(int i = 0; i < historyLength; ++i) {
+            copyDir(targetInstall, currentInstall);
+            generator.update(targetInstall, changedPercent, changedPercent, changedPercent);
+            ProvisionPackage.newBuilder()
+                .setCurrentInstallationDir(currentInstall)
+                .setTargetInstallationDir(targetInstall)
+                .setPackageOutputFile(pkg)
+                .buildUpdate(UNIT, "1." + i, "1." + (i + 1));
+            env.apply(pkg);
+        }
+    }
+
+    @Benchmark
+    public ProvisionEnvironment loadEnvironment() throws ProvisionException {
+        return ProvisionEnvironment.load(envHome);
+    }
+
+    @Benchmark
+    public void environmentHistory(Blackhole bh) throws ProvisionException {
+        final Iterator<ProvisionEnvironmentInfo> i = env.environmentHistory();
+        while(i.hasNext()) {
+            bh.consume(i.next());
+        }
+    }
+
+    @Benchmark
+    public void unitHistory(Blackhole bh) throws ProvisionException {
+        final Iterator<ProvisionUnitInfo> i = env.unitHistory(UNIT);
+        while(i.hasNext()) {
+            bh.consume(i.next());
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.provision.io.IoUtils;
+
+/**
+ * Generates synthetic installation trees, the same way the test InstallationBuilder
+ * does, but of a configurable shape. The content is derived from the seed, so the
+ * same generator settings always produce the same tree.
+ *
+ * The sizes of the files are distributed log-uniformly between the min and the max
+ * size, i.e. there are many more small files than large ones, as in a typical
+ * installation.
+ *
+ * @author Alexey Loubyansky
+ */
+public class InstallationGenerator {
+
+    private static final byte[] CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".getBytes();
+    private static final int LINE_LENGTH = 80;
+
+    public static InstallationGenerator create() {
+        return new InstallationGenerator();
+    }
+
+    private int fileCount = 1000;
+    private int minFileSize = 1024;
+    private int maxFileSize = 64 * 1024;
+    private int depth = 4;
+    private int dirsPerLevel = 8;
+    private long seed = 1;
+
+    private final List<String> paths = new ArrayList<String>();
+    private Random random;
+    private int nextFileId;
+    private int version;
+
+    private InstallationGenerator() {
+    }
+
+    public InstallationGenerator setFileCount(int fileCount) {
+        this.fileCount = fileCount;
+        return this;
+    }
+
+    public InstallationGenerator setFileSize(int minFileSize, int maxFileSize) {
+        if(minFileSize < 0 || maxFileSize < minFileSize) {
+            throw new IllegalArgumentException("Invalid file size range " + minFileSize + "-" + maxFileSize);
+        }
+        this.minFileSize = minFileSize;
+        this.maxFileSize = maxFileSize;
+        return this;
+    }
+
+    public InstallationGenerator setDepth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    public InstallationGenerator setDirsPerLevel(int dirsPerLevel) {
+        this.dirsPerLevel = dirsPerLevel;
+        return this;
+    }
+
+    public InstallationGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * The paths of the files of the last generated or updated tree.
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Generates a new tree in the directory.
+     *
+     * @param home  target directory
+     * @throws IOException  in case of a failure
+     */
+    public void generate(File home) throws IOException {
+        random = new Random(seed);
+        paths.clear();
+        nextFileId = 0;
+        version = 0;
+        for(int i = 0; i < fileCount; ++i) {
+            final String path = newPath();
+            writeFile(new File(home, toNativePath(path)));
+            paths.add(path);
+        }
+    }
+
+    /**
+     * Modifies the tree generated by this generator by rewriting, adding and deleting
+     * the given percentage of files.
+     *
+     * @param home  directory with the generated tree
+     * @param changedPercent  percentage of files to rewrite
+     * @param addedPercent  percentage of files to add
+     * @param deletedPercent  percentage of files to delete
+     * @throws IOException  in case of a failure
+     */
+    public void update(File home, int changedPercent, int addedPercent, int deletedPercent) throws IOException {
+        if(random == null) {
+            throw new IllegalStateException("The tree has not been generated yet");
+        }
+        ++version;
+        final int size = paths.size();
+        for(int i = 0; i < size * changedPercent / 100; ++i) {
+            writeFile(new File(home, toNativePath(paths.get(random.nextInt(size)))));
+        }
+        for(int i = 0; i < size * deletedPercent / 100 && !paths.isEmpty(); ++i) {
+            final String path = paths.remove(random.nextInt(paths.size()));
+            IoUtils.recursiveDelete(new File(home, toNativePath(path)));
+        }
+        for(int i = 0; i < size * addedPercent / 100; ++i) {
+            final String path = newPath();
+            writeFile(new File(home, toNativePath(path)));
+            paths.add(path);
+        }
+    }
+
+    private String newPath() {
+        final StringBuilder buf = new StringBuilder();
+        for(int level = 0; level < depth; ++level) {
+            buf.append("dir").append(random.nextInt(dirsPerLevel)).append('/');
+        }
+        return buf.append("file").append(nextFileId++).append(".txt").toString();
+    }
+
+    private void writeFile(File f) throws IOException {
+        final File parent = f.getParentFile();
+        if(!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed to create dir " + parent.getAbsolutePath());
+        }
+        final byte[] bytes = new byte[nextFileSize()];
+        for(int i = 0; i < bytes.length; ++i) {
+            bytes[i] = CHARS[random.nextInt(CHARS.length)];
+        }
+        // lines of text as the content written by the tests, the last line is not terminated
+        for(int i = LINE_LENGTH; i < bytes.length - 1; i += LINE_LENGTH) {
+            bytes[i] = '\n';
+        }
+        // make sure the content is different from the previous versions
+        if(bytes.length > 0) {
+            bytes[0] = CHARS[version % CHARS.length];
+        }
+        final FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(bytes);
+        } finally {
+            IoUtils.safeClose(os);
+        }
+    }
+
+    private int nextFileSize() {
+        if(minFileSize == maxFileSize) {
+            return minFileSize;
+        }
+        final double min = Math.log(minFileSize + 1);
+        final double max = Math.log(maxFileSize + 1);
+        return (int) Math.exp(min + random.nextDouble() * (max - min)) - 1;
+    }
+
+    private static String toNativePath(String path) {
+        if(File.separatorChar == '\\') {
+            return path.replace('/', '\\');
+        }
+        return path;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.jboss.provision.io.IoUtils;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The shape of the generated installation and the work directory
+ * shared by the benchmarks.
+ *
+ * @author Alexey Loubyansky
+ */
+@State(Scope.Benchmark)
+public class InstallationState {
+
+    @Param({"1000"})
+    public int fileCount;
+
+    @Param({"1024"})
+    public int minFileSize;
+
+    @Param({"65536"})
+    public int maxFileSize;
+
+    @Param({"4"})
+    public int depth;
+
+    protected File workDir;
+    protected InstallationGenerator generator;
+
+    @Setup
+    public void setupWorkDir() throws IOException {
+        workDir = Files.createTempDirectory("pvbench").toFile();
+        generator = InstallationGenerator.create()
+                .setFileCount(fileCount)
+                .setFileSize(minFileSize, maxFileSize)
+                .setDepth(depth);
+    }
+
+    @TearDown
+    public void deleteWorkDir() {
+        IoUtils.recursiveDelete(workDir);
+    }
+
+    protected File newDir(String name) {
+        final File dir = new File(workDir, name);
+        IoUtils.recursiveDelete(dir);
+        if(!dir.mkdirs()) {
+            throw new IllegalStateException("Failed to create dir " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    protected static void copyDir(File src, File target) throws IOException {
+        IoUtils.recursiveDelete(target);
+        IoUtils.copyFile(src, target);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building install and update packages.
+ *
+ * @author Alexey Loubyansky
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackagingBenchmark extends InstallationState {
+
+    /** percentage of the files changed, added and deleted by the update */
+    @Param({"10"})
+    public int changedPercent;
+
+    private File currentInstall;
+    private File targetInstall;
+    private File packageFile;
+
+    @Setup
+    public void generateInstallations() throws IOException {
+        currentInstall = newDir("current");
+        generator.generate(currentInstall);
+        targetInstall = new File(workDir, "target");
+        copyDir(currentInstall, targetInstall);
+        generator.update(targetInstall, changedPercent, changedPercent, changedPercent);
+        packageFile = new File(workDir, "package.zip");
+    }
+
+    @Benchmark
+    public File buildInstall() throws ProvisionException {
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(targetInstall)
+            .setPackageOutputFile(packageFile)
+            .buildInstall("unit", "1.1");
+        return packageFile;
+    }
+
+    @Benchmark
+    public File buildUpdate() throws ProvisionException {
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(currentInstall)
+            .setTargetInstallationDir(targetInstall)
+            .setPackageOutputFile(packageFile)
+            .buildUpdate("unit", "1.0", "1.1");
+        return packageFile;
+    }
+}
@@ -31,6 +31,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -49,9 +54,13 @@ import org.jboss.provision.instruction.InstructionCondition;
 import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
 import org.jboss.provision.instruction.ProvisionUnitInstruction;
 import org.jboss.provision.instruction.UpdatePolicy;
+import org.jboss.provision.io.ContentHashCache;
+import org.jboss.provision.io.ContentStore;
+import org.jboss.provision.io.ContentTask;
 import org.jboss.provision.io.FSImage;
 import org.jboss.provision.io.IoUtils;
 import org.jboss.provision.util.HashUtils;
+import org.jboss.provision.xml.ProvisionBinary;
 import org.jboss.provision.xml.ProvisionXml;
 
 /**
@@ -68,9 +77,9 @@ class ApplicationContextImpl implements ApplicationContext {
 
         ProvisionEnvironment commit() throws ProvisionException;
 
-        void scheduleWrite(File target, ContentPath path, UnitRecord unitRecord) throws ProvisionException;
+        void scheduleWrite(ContentSource contentSrc, ContentPath path, byte[] expectedHash, UnitRecord unitRecord) throws ProvisionException;
 
-        void scheduleDelete(File target, ContentPath path, UnitRecord unitRecord) throws ProvisionException;
+        void scheduleDelete(ContentPath path, UnitRecord unitRecord) throws ProvisionException;
     }
 
     static class Journal {
@@ -102,18 +111,43 @@ class ApplicationContextImpl implements ApplicationContext {
 
     private ProvisionEnvironment env;
     private ProvisionUnitEnvironment unitEnv;
+    /** the hashes of the targets of the unit being scheduled calculated before the unit was scheduled */
+    private Map<String, byte[]> targetHashes = Collections.emptyMap();
 
-    private final FSImage fsImage = new FSImage();
+    private final FSImage fsImage;
+    private final ContentStore contentStore;
     private Map<String, Journal> journal = Collections.emptyMap();
     private final CommitCallback callback;
+    /** the changes are recorded in the plan instead of being committed */
+    private final ProvisionPlan plan;
+    private final ProvisionListener listener;
+    /** the numbers of the paths of the unit being scheduled scheduled to be written and deleted */
+    private int unitPathsWritten;
+    private int unitPathsDeleted;
 
     ApplicationContextImpl(ProvisionEnvironment env) throws ProvisionException {
         this(env, true);
     }
 
-    ApplicationContextImpl(final ProvisionEnvironment env, boolean apply) {
+    ApplicationContextImpl(ProvisionEnvironment env, ProvisionPlan plan) {
+        this(env, true, plan);
+    }
+
+    ApplicationContextImpl(ProvisionEnvironment env, boolean apply) {
+        this(env, apply, null);
+    }
+
+    private ApplicationContextImpl(final ProvisionEnvironment env, boolean apply, ProvisionPlan plan) {
         assert env != null : ProvisionErrors.nullArgument("env");
         this.env = env;
+        this.plan = plan;
+        this.listener = env.getListener();
+        this.fsImage = new FSImage(env.getCommitParallelism());
+        fsImage.setListener(listener);
+        fsImage.setHashCache(ContentHashCache.load(env.getHistory().getHashCacheFile(), env.isVerifyContent()));
+        fsImage.setJournal(env.getHistory().getCommitJournalFile());
+        fsImage.setDurability(env.getDurability());
+        contentStore = ContentStore.open(env.getHistory().getContentStoreDir());
         if(apply) {
             callback = new CommitCallback() {
                 private EnvRecord envRecord;
@@ -130,6 +164,7 @@ class ApplicationContextImpl implements ApplicationContext {
                 @Override
                 public void schedule(ProvisionEnvironmentInstruction instruction) throws ProvisionException {
                     envRecord.schedulePersistence(fsImage, instruction, journal);
+                    PathsOwnershipIndex.scheduleUpdate(fsImage, env, envRecord.getUpdatedEnvironment(), envRecord.getRecordId(), journal);
                 }
 
                 @Override
@@ -137,25 +172,32 @@ class ApplicationContextImpl implements ApplicationContext {
                     try {
                         fsImage.commit();
                     } catch (IOException e) {
+                        // the reverted backups leave their stored content unreferenced
+                        collectContent();
                         throw ProvisionErrors.failedToUpdateHistory(e);
                     }
+                    storeHashCache();
+                    collectContent();
                     final ProvisionEnvironment updatedEnv = envRecord.getUpdatedEnvironment();
                     // TODO this below may be not a good idea, only the actual uninstall probably should erase history,
                     // not a usual delete instruction
                     if(updatedEnv.getUnitNames().isEmpty()) { // delete the history when the environment is uninstalled
                         IoUtils.recursiveDelete(env.getHistory().getHistoryHome());
+                    } else {
+                        env.getHistory().storeSnapshot(envRecord.getRecordId(), updatedEnv);
                     }
                     return updatedEnv;
                 }
 
                 @Override
-                public void scheduleWrite(File target, ContentPath path, UnitRecord unitRecord) throws ProvisionException {
-                    fsImage.write(target, unitEnv.resolvePath(path), unitRecord.createBackupPathFactory(path), false);
+                public void scheduleWrite(ContentSource contentSrc, ContentPath path, byte[] expectedHash, UnitRecord unitRecord) throws ProvisionException {
+                    contentSrc.scheduleWrite(fsImage, unitEnv, path, unitEnv.resolvePath(path), expectedHash,
+                            contentStore.backupPathFactory(unitRecord.createBackupPathFactory(path)), false);
                 }
 
                 @Override
-                public void scheduleDelete(File target, ContentPath path, UnitRecord unitRecord) throws ProvisionException {
-                    fsImage.delete(unitEnv.resolvePath(path), unitRecord.createBackupPathFactory(path), false);
+                public void scheduleDelete(ContentPath path, UnitRecord unitRecord) throws ProvisionException {
+                    fsImage.delete(unitEnv.resolvePath(path), contentStore.backupPathFactory(unitRecord.createBackupPathFactory(path)), false);
                 }
             };
         } else {
@@ -173,6 +215,7 @@ class ApplicationContextImpl implements ApplicationContext {
                 @Override
                 public void schedule(ProvisionEnvironmentInstruction instruction) throws ProvisionException {
                     envRecord.scheduleDelete(fsImage);
+                    PathsOwnershipIndex.scheduleRollback(fsImage, env.getHistory(), envRecord.getRecordId());
                 }
 
                 @Override
@@ -181,8 +224,12 @@ class ApplicationContextImpl implements ApplicationContext {
                     try {
                         fsImage.commit();
                     } catch (IOException e) {
+                        // the reverted backups leave their stored content unreferenced
+                        collectContent();
                         throw ProvisionErrors.failedToUpdateHistory(e);
                     }
+                    storeHashCache();
+                    collectContent();
                     if(prevRecord == null) {
                         IoUtils.recursiveDelete(env.getHistory().getHistoryHome());
                         return ProvisionEnvironment.builder().setEnvironmentHome(env.getEnvironmentHome()).build();
@@ -190,18 +237,21 @@ class ApplicationContextImpl implements ApplicationContext {
                     final ProvisionEnvironment updatedEnv = prevRecord.getUpdatedEnvironment();
                     if(updatedEnv.getUnitNames().isEmpty()) { // delete the history when the environment is uninstalled
                         IoUtils.recursiveDelete(env.getHistory().getHistoryHome());
+                    } else {
+                        env.getHistory().storeSnapshot(prevRecord.getRecordId(), updatedEnv);
                     }
                     return updatedEnv;
 
                 }
 
                 @Override
-                public void scheduleWrite(File target, ContentPath path, UnitRecord unitRecord) throws ProvisionException {
-                    fsImage.write(target, unitEnv.resolvePath(path));
+                public void scheduleWrite(ContentSource contentSrc, ContentPath path, byte[] expectedHash, UnitRecord unitRecord) throws ProvisionException {
+                    // the backed up content is restored as it was, even if it did not match the replaced hash
+                    contentSrc.scheduleWrite(fsImage, unitEnv, path, unitEnv.resolvePath(path), null, ContentTask.DEFAULT_BACKUP_FACTORY, true);
                 }
 
                 @Override
-                public void scheduleDelete(File target, ContentPath path, UnitRecord unitRecord) throws ProvisionException {
+                public void scheduleDelete(ContentPath path, UnitRecord unitRecord) throws ProvisionException {
                     fsImage.delete(unitEnv.resolvePath(path));
                 }
             };
@@ -217,6 +267,7 @@ class ApplicationContextImpl implements ApplicationContext {
     }
 
     void scheduleUninstall(String unitName) throws ProvisionException {
+        final long startedAt = System.nanoTime();
         final EnvRecord activeRecord = callback.getEnvRecord();
         final ProvisionUnitEnvironment unitEnv = env.getUnitEnvironment(unitName);
         if(unitEnv == null) {
@@ -231,14 +282,19 @@ class ApplicationContextImpl implements ApplicationContext {
             envRecord.scheduleDelete(fsImage);
         }
         final PathsOwnership pathsOwnership = env.getPathsOwnership();
+        int pathsDeleted = 0;
         for(ContentPath path : unitEnv.getContentPaths()) {
-            if(!pathsOwnership.removeOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName)) {
+            if(!removeOwner(pathsOwnership, unitEnv.resolvePath(path), unitName)) {
                 fsImage.delete(unitEnv.resolvePath(path));
+                ++pathsDeleted;
             }
         }
         fsImage.delete(unitHistory.recordsDir);
         activeRecord.uninstallUnit(unitName);
         env = activeRecord.getUpdatedEnvironment();
+        if(listener != null) {
+            listener.unitPlanned(unitName, System.nanoTime() - startedAt, 0, pathsDeleted);
+        }
     }
 
     ProvisionEnvironment commit() throws ProvisionException {
@@ -246,14 +302,38 @@ class ApplicationContextImpl implements ApplicationContext {
         if(appliedInstr != null) {
             callback.schedule(appliedInstr);
         }
-        return callback.commit();
+        final ProvisionEnvironment updatedEnv = callback.commit();
+        contentHashed();
+        return updatedEnv;
+    }
+
+    /**
+     * Completes the plan with the updates scheduled so far. Nothing is committed.
+     */
+    ProvisionPlan plan() throws ProvisionException {
+        assert plan != null : ProvisionErrors.nullArgument("plan");
+        final ProvisionEnvironmentInstruction appliedInstr = callback.getEnvRecord().getAppliedInstruction();
+        if(appliedInstr != null) {
+            callback.schedule(appliedInstr);
+        }
+        plan.setUpdates(fsImage.getScheduledUpdates());
+        contentHashed();
+        return plan;
+    }
+
+    private void contentHashed() {
+        if(listener != null) {
+            final ContentHashCache hashCache = fsImage.getHashCache();
+            listener.contentHashed(hashCache.getHits(), hashCache.getMisses(), hashCache.getBytesRead());
+        }
     }
 
     private void scheduleTasks(ProvisionEnvironmentInstruction instructions, EnvRecord envRecord, ContentSource contentSrc) throws ProvisionException {
 
+        final List<ProvisionUnitEnvironment> unitEnvs = new ArrayList<ProvisionUnitEnvironment>(instructions.getUnitNames().size());
         for (String unitName : instructions.getUnitNames()) {
             final ProvisionUnitInstruction unitInstr = instructions.getUnitInstruction(unitName);
-            this.unitEnv = env.getUnitEnvironment(unitName);
+            ProvisionUnitEnvironment unitEnv = env.getUnitEnvironment(unitName);
             if(unitEnv == null) {
                 if(unitInstr.getRequiredVersion() != null) {
                     throw ProvisionErrors.unknownUnit(unitName);
@@ -263,7 +343,109 @@ class ApplicationContextImpl implements ApplicationContext {
                         .setUnitInfo(ProvisionUnitInfo.createInfo(unitInstr.getUnitName(), unitInstr.getRequiredVersion()))
                         .build();
             }
-            scheduleTasks(unitInstr, envRecord, contentSrc);
+            unitEnvs.add(unitEnv);
+        }
+
+        // the targets of the units are hashed concurrently, the units are then scheduled one by one in the instruction order
+        final int parallelism = Math.min(env.getPlanningParallelism(), unitEnvs.size());
+        final ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        try {
+            List<Future<Map<String, byte[]>>> unitHashes = Collections.emptyList();
+            if(executor != null) {
+                unitHashes = new ArrayList<Future<Map<String, byte[]>>>(unitEnvs.size());
+                for(ProvisionUnitEnvironment unitEnv : unitEnvs) {
+                    unitHashes.add(executor.submit(new TargetHashing(unitEnv,
+                            instructions.getUnitInstruction(unitEnv.getUnitInfo().getName()), fsImage.getHashCache())));
+                }
+            }
+            for(int i = 0; i < unitEnvs.size(); ++i) {
+                final long startedAt = System.nanoTime();
+                this.unitEnv = unitEnvs.get(i);
+                final String unitName = unitEnv.getUnitInfo().getName();
+                contentSrc.awaitContent(unitName);
+                if(executor != null) {
+                    targetHashes = get(unitHashes.get(i));
+                }
+                unitPathsWritten = 0;
+                unitPathsDeleted = 0;
+                scheduleTasks(instructions.getUnitInstruction(unitName), envRecord, contentSrc);
+                if(listener != null) {
+                    listener.unitPlanned(unitName, System.nanoTime() - startedAt, unitPathsWritten, unitPathsDeleted);
+                }
+            }
+        } finally {
+            targetHashes = Collections.emptyMap();
+            if(executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static Map<String, byte[]> get(Future<Map<String, byte[]>> future) throws ProvisionException {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if(cause instanceof ProvisionException) {
+                        throw (ProvisionException) cause;
+                    }
+                    if(cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if(cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hashes the targets of the unit instruction the scheduling of the unit is conditioned on.
+     * The targets are hashed as they are on the disk, the targets scheduled by the units
+     * scheduled earlier are looked up in the image instead, see {@link ApplicationContextImpl#getHash(File)}.
+     */
+    private static class TargetHashing implements Callable<Map<String, byte[]>> {
+
+        private final ProvisionUnitEnvironment unitEnv;
+        private final ProvisionUnitInstruction instructions;
+        private final ContentHashCache hashCache;
+
+        TargetHashing(ProvisionUnitEnvironment unitEnv, ProvisionUnitInstruction instructions, ContentHashCache hashCache) {
+            this.unitEnv = unitEnv;
+            this.instructions = instructions;
+            this.hashCache = hashCache;
+        }
+
+        @Override
+        public Map<String, byte[]> call() throws ProvisionException {
+            final UnitUpdatePolicy updatePolicy = unitEnv.resolveUpdatePolicy();
+            if (updatePolicy.getUnitPolicy() == UpdatePolicy.IGNORED) {
+                return Collections.emptyMap();
+            }
+            final Map<String, byte[]> hashes = new HashMap<String, byte[]>(instructions.getContentInstructions().size());
+            for (ContentItemInstruction item : instructions.getContentInstructions()) {
+                if (updatePolicy.getContentPolicy(item.getPath().getRelativePath()) != UpdatePolicy.CONDITIONED) {
+                    continue;
+                }
+                final File target = unitEnv.resolvePath(item.getPath());
+                try {
+                    hashes.put(target.getAbsolutePath(), target.exists() ? hashCache.getHash(target) : null);
+                } catch (IOException e) {
+                    throw ProvisionErrors.hashCalculationFailed(target, e);
+                }
+            }
+            return hashes;
         }
     }
 
@@ -301,17 +483,18 @@ class ApplicationContextImpl implements ApplicationContext {
                         if(Arrays.equals(item.getContentHash(), actualHash)) {
                             // the existing content matches the new one
                             unitJournal.add(path);
-                            pathsOwnership.addOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName);
+                            addOwner(pathsOwnership, unitEnv.resolvePath(path), unitName);
                             continue;
                         }
-                        throw ProvisionErrors.pathAlreadyExists(targetFile);
+                        conflict(targetFile, ProvisionErrors.pathAlreadyExists(targetFile));
+                        continue;
                     }
                 } else {
                     if(item.getContentHash() == null) {
                         // delete
                         if(actualHash == null) {
                             // the target does not exist
-                            pathsOwnership.removeOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName);
+                            removeOwner(pathsOwnership, unitEnv.resolvePath(path), unitName);
                             continue;
                         }
                         if(!Arrays.equals(expectedHash, actualHash)) {
@@ -321,19 +504,22 @@ class ApplicationContextImpl implements ApplicationContext {
                             //    pathsOwnership.removeOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName);
                             //    continue;
                             //}
-                            throw ProvisionErrors.pathHashMismatch(targetFile, HashUtils.bytesToHexString(expectedHash), HashUtils.bytesToHexString(actualHash));
+                            conflict(targetFile, ProvisionErrors.pathHashMismatch(targetFile, HashUtils.bytesToHexString(expectedHash), HashUtils.bytesToHexString(actualHash)));
+                            continue;
                         }
                     } else {
                         if (actualHash == null) {
-                            throw ProvisionErrors.pathDoesNotExist(targetFile);
+                            conflict(targetFile, ProvisionErrors.pathDoesNotExist(targetFile));
+                            continue;
                         }
                         if (Arrays.equals(item.getContentHash(), actualHash)) {
                             // the existing content matches the new one
                             continue;
                         }
                         if (!Arrays.equals(expectedHash, actualHash)) {
-                            throw ProvisionErrors.pathHashMismatch(targetFile, HashUtils.bytesToHexString(expectedHash),
-                                    HashUtils.bytesToHexString(actualHash));
+                            conflict(targetFile, ProvisionErrors.pathHashMismatch(targetFile, HashUtils.bytesToHexString(expectedHash),
+                                    HashUtils.bytesToHexString(actualHash)));
+                            continue;
                         }
                     }
                 }
@@ -347,25 +533,28 @@ class ApplicationContextImpl implements ApplicationContext {
                 }
             }
 
-            final File f = contentSrc.getFile(unitEnv, path);
+            final boolean contentAvailable = contentSrc.isAvailable(unitEnv, path);
             if (item.getContentHash() == null) {
                 // this check here is for rolling back a forced add of an item over a conflicting existing one which was
                 // backed up
-                if (f.exists()) {
-                    callback.scheduleWrite(f, path, unitRecord);
-                    pathsOwnership.addOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName);
+                if (contentAvailable) {
+                    callback.scheduleWrite(contentSrc, path, null, unitRecord);
+                    ++unitPathsWritten;
+                    addOwner(pathsOwnership, unitEnv.resolvePath(path), unitName);
                 } else {
-                    if(!pathsOwnership.removeOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName)) {
-                        callback.scheduleDelete(f, path, unitRecord);
+                    if(!removeOwner(pathsOwnership, unitEnv.resolvePath(path), unitName)) {
+                        callback.scheduleDelete(path, unitRecord);
+                        ++unitPathsDeleted;
                     }
                     unitJournal.delete(path);
                 }
             } else
             // this check here is for rolling back a delete of an item which has already been deleted
-            if (f.exists()) {
+            if (contentAvailable) {
                 final File target = unitEnv.resolvePath(path);
-                callback.scheduleWrite(f, path, unitRecord);
-                pathsOwnership.addOwner(target.getAbsolutePath(), unitName);
+                callback.scheduleWrite(contentSrc, path, item.getContentHash(), unitRecord);
+                ++unitPathsWritten;
+                addOwner(pathsOwnership, target, unitName);
                 if(!target.exists()) { // TODO everything should be added to the journal
                     unitJournal.add(path);
                 }
@@ -373,8 +562,65 @@ class ApplicationContextImpl implements ApplicationContext {
         }
     }
 
+    /**
+     * Fails the application unless the changes are only being planned,
+     * in which case the conflict is recorded in the plan.
+     */
+    private void conflict(File target, ProvisionException e) throws ProvisionException {
+        if(plan == null) {
+            throw e;
+        }
+        plan.addConflict(target, e.getLocalizedMessage());
+    }
+
+    private void addOwner(PathsOwnership pathsOwnership, File target, String unitName) {
+        final String path = target.getAbsolutePath();
+        if(plan != null && !pathsOwnership.isOwner(path, unitName)) {
+            plan.addOwnershipChange(target, unitName, true, true);
+        }
+        pathsOwnership.addOwner(path, unitName);
+    }
+
+    private boolean removeOwner(PathsOwnership pathsOwnership, File target, String unitName) {
+        final String path = target.getAbsolutePath();
+        final boolean wasOwner = plan != null && pathsOwnership.isOwner(path, unitName);
+        final boolean stillOwned = pathsOwnership.removeOwner(path, unitName);
+        if(wasOwner) {
+            plan.addOwnershipChange(target, unitName, false, stillOwned);
+        }
+        return stillOwned;
+    }
+
+    /**
+     * Deletes the backed up content that is no longer referenced by the history records.
+     */
+    private void collectContent() {
+        try {
+            contentStore.gc();
+        } catch (IOException e) {
+            // it will be collected next time
+            e.printStackTrace();
+        }
+    }
+
+    private void storeHashCache() {
+        try {
+            fsImage.getHashCache().store();
+        } catch (IOException e) {
+            // the cache will be re-populated next time
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public byte[] getHash(File target) throws ProvisionException {
+        if(!targetHashes.isEmpty() && fsImage.getStatus(target) == FSImage.PathStatus.NOT_SCHEDULED) {
+            // a target shared with a unit scheduled earlier has to be looked up in the image
+            final String path = target.getAbsolutePath();
+            if(targetHashes.containsKey(path)) {
+                return targetHashes.get(path);
+            }
+        }
         try {
             return fsImage.getHash(target);
         } catch (IOException e) {
@@ -412,10 +658,20 @@ class ApplicationContextImpl implements ApplicationContext {
         if (!pkgFile.exists()) {
             throw ProvisionErrors.pathDoesNotExist(pkgFile);
         }
+        final ProvisionEnvironmentInstruction instruction = contentSrc.getInstruction();
+        if(instruction != null) {
+            return instruction;
+        }
         InputStream is = null;
         try {
+            is = contentSrc.getInputStream(env, ContentPath.forPath(ProvisionBinary.PROVISION_BIN), false);
+            if(is != null) {
+                return ProvisionBinary.parse(is);
+            }
             is = contentSrc.getInputStream(env, ContentPath.forPath(ProvisionXml.PROVISION_XML));
             return ProvisionXml.parse(is);
+        } catch (IOException e) {
+            throw ProvisionErrors.failedToParse(ProvisionBinary.PROVISION_BIN, e);
         } catch (XMLStreamException e) {
             throw ProvisionErrors.failedToParse(ProvisionXml.PROVISION_XML, e);
         } finally {
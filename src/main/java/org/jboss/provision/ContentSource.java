@@ -26,15 +26,32 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
+import javax.xml.stream.XMLStreamException;
+
 import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.instruction.ContentItemInstruction;
+import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
+import org.jboss.provision.io.ContentDelta;
+import org.jboss.provision.io.ContentTask.BackupPathFactory;
+import org.jboss.provision.io.FSImage;
 import org.jboss.provision.io.IoUtils;
-import org.jboss.provision.io.ZipUtils;
+import org.jboss.provision.io.ZipExtractor;
+import org.jboss.provision.util.HashUtils;
+import org.jboss.provision.xml.ProvisionBinary;
+import org.jboss.provision.xml.ProvisionXml;
 
 /**
  *
@@ -42,28 +59,83 @@ import org.jboss.provision.io.ZipUtils;
  */
 abstract class ContentSource implements Closeable {
 
-    static ContentSource expandedZip(final File f) throws ProvisionException {
+    static ContentSource expandedZip(final File f, int parallelism) throws ProvisionException {
         assert f != null : ProvisionErrors.nullArgument("f");
         if(!f.exists()) {
             throw ProvisionErrors.pathDoesNotExist(f);
         }
 
         final File patchDir = IoUtils.createRandomTmpDir();
+        ZipExtractor extractor = null;
+        final ProvisionEnvironmentInstruction instruction;
         try {
-            ZipUtils.unzip(f, patchDir);
+            extractor = ZipExtractor.open(f, patchDir, parallelism);
+            instruction = parseInstruction(extractor.extract(extractor.contains(ProvisionBinary.PROVISION_BIN) ?
+                    ProvisionBinary.PROVISION_BIN : ProvisionXml.PROVISION_XML));
         } catch (IOException e) {
+            IoUtils.safeClose(extractor);
+            IoUtils.recursiveDelete(patchDir);
             throw ProvisionErrors.readError(f, e);
+        } catch (ProvisionException e) {
+            IoUtils.safeClose(extractor);
+            IoUtils.recursiveDelete(patchDir);
+            throw e;
+        }
+
+        // the content is extracted in the order the units are applied, verifying it against the instructions
+        final Map<String, ZipExtractor.Extraction> unitContent = new HashMap<String, ZipExtractor.Extraction>();
+        for(String unitName : instruction.getUnitNames()) {
+            final List<String> names = new ArrayList<String>();
+            final Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+            for(ContentItemInstruction item : instruction.getUnitInstruction(unitName).getContentInstructions()) {
+                if(item.getContentHash() != null) {
+                    final String name = item.getPath().getRelativePath();
+                    final String deltaName = ContentDelta.entryName(name);
+                    if(extractor.contains(deltaName)) {
+                        // the reconstructed content is verified when it is written,
+                        // the full content, if any, is extracted only if the delta can't be applied
+                        names.add(deltaName);
+                    } else {
+                        names.add(name);
+                        hashes.put(name, item.getContentHash());
+                    }
+                }
+            }
+            unitContent.put(unitName, extractor.submit(names, hashes));
         }
 
+        final ZipExtractor zipExtractor = extractor;
         return new ContentSource() {
             @Override
             public void close() throws IOException {
-                IoUtils.recursiveDelete(patchDir);
+                try {
+                    zipExtractor.close();
+                } finally {
+                    IoUtils.recursiveDelete(patchDir);
+                }
+            }
+
+            @Override
+            ProvisionEnvironmentInstruction getInstruction() {
+                return instruction;
+            }
+
+            @Override
+            void awaitContent(String unitName) throws ProvisionException {
+                final ZipExtractor.Extraction extraction = unitContent.get(unitName);
+                if(extraction == null) {
+                    return;
+                }
+                try {
+                    extraction.await();
+                } catch (IOException e) {
+                    throw ProvisionErrors.readError(f, e);
+                }
             }
 
             @Override
             boolean isAvailable(ProvisionUnitEnvironment unitEnv, ContentPath path) throws ProvisionException {
-                return new File(patchDir, path.getFSRelativePath()).exists();
+                return new File(patchDir, path.getFSRelativePath()).exists() || getDeltaFile(path).exists();
             }
 
             @Override
@@ -79,8 +151,35 @@ abstract class ContentSource implements Closeable {
             }
 
             @Override
-            File getFile(ProvisionUnitEnvironment unitEnv, ContentPath path) throws ProvisionException {
-                return new File(patchDir, path.getFSRelativePath());
+            void scheduleWrite(FSImage fsImage, ProvisionUnitEnvironment unitEnv, ContentPath path, File target,
+                    byte[] expectedHash, BackupPathFactory backupPathFactory, boolean cleanup) throws ProvisionException {
+                final File content = new File(patchDir, path.getFSRelativePath());
+                final File deltaFile = getDeltaFile(path);
+                if(!deltaFile.exists()) {
+                    // the content was verified when it was extracted
+                    fsImage.write(content, target, expectedHash, false, backupPathFactory, cleanup);
+                    return;
+                }
+                final boolean fallback = zipExtractor.contains(path.getRelativePath());
+                InputStream delta = null;
+                try {
+                    IoUtils.mkdirs(content.getParentFile());
+                    delta = new FileInputStream(deltaFile);
+                    if(!applyDelta(fsImage, path, target, delta, content, fallback)) {
+                        zipExtractor.extract(path.getRelativePath());
+                    }
+                } catch (FileNotFoundException e) {
+                    throw ProvisionErrors.pathDoesNotExist(deltaFile);
+                } catch (IOException e) {
+                    throw ProvisionErrors.readError(f, e);
+                } finally {
+                    IoUtils.safeClose(delta);
+                }
+                fsImage.write(content, target, expectedHash, backupPathFactory, cleanup);
+            }
+
+            private File getDeltaFile(ContentPath path) {
+                return new File(new File(patchDir, ContentDelta.ENTRY_PREFIX), path.getFSRelativePath());
             }
 
             protected InputStream getInputStream(ContentPath path, boolean errorIfNotResolved) throws ProvisionException {
@@ -88,12 +187,34 @@ abstract class ContentSource implements Closeable {
                 try {
                     return new FileInputStream(f);
                 } catch (FileNotFoundException e) {
-                    throw ProvisionErrors.pathDoesNotExist(f);
+                    if(errorIfNotResolved) {
+                        throw ProvisionErrors.pathDoesNotExist(f);
+                    }
                 }
+                return null;
             }
         };
     }
 
+    private static ProvisionEnvironmentInstruction parseInstruction(File f) throws ProvisionException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(f);
+            if(f.getName().equals(ProvisionBinary.PROVISION_BIN)) {
+                return ProvisionBinary.parse(is);
+            }
+            return ProvisionXml.parse(is);
+        } catch (FileNotFoundException e) {
+            throw ProvisionErrors.pathDoesNotExist(f);
+        } catch (IOException e) {
+            throw ProvisionErrors.failedToParse(ProvisionBinary.PROVISION_BIN, e);
+        } catch (XMLStreamException e) {
+            throw ProvisionErrors.failedToParse(ProvisionXml.PROVISION_XML, e);
+        } finally {
+            IoUtils.safeClose(is);
+        }
+    }
+
     static ContentSource forZip(final File f) throws ProvisionException {
         assert f != null : ProvisionErrors.nullArgument("f");
         if(!f.exists()) {
@@ -110,15 +231,22 @@ abstract class ContentSource implements Closeable {
 
         final ZipFile zip = tmpZip;
         return new ContentSource() {
+            private File deltaDir;
             @Override
             public void close() throws IOException {
-                if(zip != null) {
-                    zip.close();
+                try {
+                    if(zip != null) {
+                        zip.close();
+                    }
+                } finally {
+                    if(deltaDir != null) {
+                        IoUtils.recursiveDelete(deltaDir);
+                    }
                 }
             }
             @Override
             public boolean isAvailable(ProvisionUnitEnvironment unitEnv, ContentPath path) {
-                return zip.getEntry(path.getRelativePath()) != null;
+                return zip.getEntry(path.getRelativePath()) != null || zip.getEntry(ContentDelta.entryName(path.getRelativePath())) != null;
             }
             @Override
             public InputStream getInputStream(ProvisionUnitEnvironment unitEnv, ContentPath path, boolean errorIfNotResolved) throws ProvisionException {
@@ -143,8 +271,35 @@ abstract class ContentSource implements Closeable {
                 return null;
             }
             @Override
-            File getFile(ProvisionUnitEnvironment unitEnv, ContentPath path) throws ProvisionException {
-                throw new UnsupportedOperationException();
+            void scheduleWrite(FSImage fsImage, ProvisionUnitEnvironment unitEnv, ContentPath path, File target,
+                    byte[] expectedHash, BackupPathFactory backupPathFactory, boolean cleanup) throws ProvisionException {
+                final ZipEntry entry = zip.getEntry(path.getRelativePath());
+                final ZipEntry deltaEntry = zip.getEntry(ContentDelta.entryName(path.getRelativePath()));
+                if(deltaEntry == null) {
+                    if(entry == null) {
+                        throw ProvisionErrors.pathDoesNotExist(new File(f, path.getRelativePath()));
+                    }
+                    fsImage.write(zip, entry, target, expectedHash, backupPathFactory, cleanup);
+                    return;
+                }
+                if(deltaDir == null) {
+                    deltaDir = IoUtils.createRandomTmpDir();
+                }
+                final File content = new File(deltaDir, path.getFSRelativePath());
+                InputStream delta = null;
+                try {
+                    IoUtils.mkdirs(content.getParentFile());
+                    delta = zip.getInputStream(deltaEntry);
+                    if(!applyDelta(fsImage, path, target, delta, content, entry != null)) {
+                        fsImage.write(zip, entry, target, expectedHash, backupPathFactory, cleanup);
+                        return;
+                    }
+                } catch (IOException e) {
+                    throw ProvisionErrors.readError(f, e);
+                } finally {
+                    IoUtils.safeClose(delta);
+                }
+                fsImage.write(content, target, expectedHash, backupPathFactory, cleanup);
             }
         };
     }
@@ -194,15 +349,71 @@ abstract class ContentSource implements Closeable {
             }
 
             @Override
-            File getFile(ProvisionUnitEnvironment unitEnv, ContentPath path) throws ProvisionException {
-                return new File(getBaseDir(unitEnv), path.getFSRelativePath());
+            void scheduleWrite(FSImage fsImage, ProvisionUnitEnvironment unitEnv, ContentPath path, File target,
+                    byte[] expectedHash, BackupPathFactory backupPathFactory, boolean cleanup) throws ProvisionException {
+                fsImage.write(new File(getBaseDir(unitEnv), path.getFSRelativePath()), target, expectedHash, backupPathFactory, cleanup);
             }
         };
     }
 
+    /**
+     * Rebuilds the content from the delta against the current content of the target.
+     * The rebuilt content is verified against the expected hash when it is written.
+     * If the current content of the target is not the base of the delta, returns false
+     * when the package contains the full content to fall back to and fails otherwise.
+     */
+    private static boolean applyDelta(FSImage fsImage, ContentPath path, File target, InputStream delta, File content,
+            boolean fallback) throws ProvisionException {
+        try {
+            final ContentDelta contentDelta = ContentDelta.read(delta);
+            // the delta is applied to the content that is on the disk before the image is committed
+            final byte[] actualHash = fsImage.getStatus(target) == FSImage.PathStatus.NOT_SCHEDULED ? fsImage.getHash(target) : null;
+            if(!Arrays.equals(contentDelta.getBaseHash(), actualHash)) {
+                if(fallback) {
+                    return false;
+                }
+                throw ProvisionErrors.deltaBaseMismatch(target, HashUtils.bytesToHexString(contentDelta.getBaseHash()),
+                        actualHash == null ? null : HashUtils.bytesToHexString(actualHash));
+            }
+            final OutputStream os = new FileOutputStream(content);
+            try {
+                contentDelta.apply(target, os);
+            } finally {
+                IoUtils.safeClose(os);
+            }
+            return true;
+        } catch (IOException e) {
+            throw ProvisionErrors.failedToApplyDelta(path, target, e);
+        }
+    }
+
+    /**
+     * The instruction of the package, if it was parsed when this source was opened.
+     *
+     * @return  the instruction of the package or null if it hasn't been parsed
+     */
+    ProvisionEnvironmentInstruction getInstruction() {
+        return null;
+    }
+
+    /**
+     * Waits until the content of the unit can be read from this source.
+     *
+     * @param unitName  unit name
+     * @throws ProvisionException  in case the content of the unit is not available
+     */
+    void awaitContent(String unitName) throws ProvisionException {
+    }
+
     abstract boolean isAvailable(ProvisionUnitEnvironment unitEnv, ContentPath path) throws ProvisionException;
 
-    abstract File getFile(ProvisionUnitEnvironment unitEnv, ContentPath path) throws ProvisionException;
+    /**
+     * Schedules a write of the content at the path to the target.
+     * The content is expected to be available, see {@link #isAvailable(ProvisionUnitEnvironment, ContentPath)}.
+     * If the expected hash is not null, the content is verified while it is written.
+     */
+    abstract void scheduleWrite(FSImage fsImage, ProvisionUnitEnvironment unitEnv, ContentPath path, File target,
+            byte[] expectedHash, BackupPathFactory backupPathFactory, boolean cleanup) throws ProvisionException;
 
     InputStream getInputStream(ProvisionEnvironment env, ContentPath path) throws ProvisionException {
         return getInputStream(env, path, true);
@@ -25,6 +25,7 @@ package org.jboss.provision;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
@@ -38,6 +39,7 @@ import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
 import org.jboss.provision.instruction.ProvisionUnitInstruction;
 import org.jboss.provision.io.FSImage;
 import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.xml.ProvisionBinary;
 import org.jboss.provision.xml.ProvisionXml;
 
 /**
@@ -72,7 +74,10 @@ class EnvInstructionHistory extends InstructionHistory {
         } else {
             throw ProvisionErrors.pathDoesNotExist(recordDir);
         }
-        return new EnvRecord(getFileToLoad(recordDir, ENV_FILE), getFileToLoad(recordDir, ProvisionXml.PROVISION_XML)){};
+        // the records persisted before the binary instructions were introduced include the XML
+        final File instrFile = new File(recordDir, ProvisionBinary.PROVISION_BIN);
+        return new EnvRecord(getFileToLoad(recordDir, ENV_FILE),
+                instrFile.exists() ? instrFile : getFileToLoad(recordDir, ProvisionXml.PROVISION_XML)){};
     }
 
     EnvRecord loadLastApplied() throws ProvisionException {
@@ -87,7 +92,7 @@ class EnvInstructionHistory extends InstructionHistory {
 
         private final String recordId;
         protected File envFile;
-        protected File instrXml;
+        protected File instrFile;
         protected ProvisionEnvironment updatedEnv;
         protected ProvisionEnvironmentInstruction appliedInstruction;
 
@@ -95,7 +100,7 @@ class EnvInstructionHistory extends InstructionHistory {
             assert envFile != null : ProvisionErrors.nullArgument("envFile");
             assert instrFile != null : ProvisionErrors.nullArgument("instrFile");
             this.envFile = envFile;
-            this.instrXml = instrFile;
+            this.instrFile = instrFile;
             this.recordId = envFile.getParentFile().getName();
         }
 
@@ -190,15 +195,21 @@ class EnvInstructionHistory extends InstructionHistory {
         }
 
         ProvisionEnvironmentInstruction getAppliedInstruction() throws ProvisionException {
-            if (appliedInstruction == null && instrXml != null) {
+            if (appliedInstruction == null && instrFile != null) {
                 FileInputStream fis = null;
                 try {
-                    fis = new FileInputStream(instrXml);
-                    appliedInstruction = ProvisionXml.parse(fis);
+                    fis = new FileInputStream(instrFile);
+                    if(isBinary()) {
+                        appliedInstruction = ProvisionBinary.parse(fis);
+                    } else {
+                        appliedInstruction = ProvisionXml.parse(fis);
+                    }
                 } catch (FileNotFoundException e) {
-                    throw ProvisionErrors.pathDoesNotExist(instrXml);
+                    throw ProvisionErrors.pathDoesNotExist(instrFile);
                 } catch (XMLStreamException e) {
-                    throw ProvisionErrors.failedToParse(instrXml.getAbsolutePath(), e);
+                    throw ProvisionErrors.failedToParse(instrFile.getAbsolutePath(), e);
+                } catch (IOException e) {
+                    throw ProvisionErrors.failedToParse(instrFile.getAbsolutePath(), e);
                 } finally {
                     IoUtils.safeClose(fis);
                 }
@@ -206,16 +217,59 @@ class EnvInstructionHistory extends InstructionHistory {
             return appliedInstruction;
         }
 
+        /**
+         * The names of the units affected by the applied instruction.
+         * Unlike {@link #getAppliedInstruction()}, it does not read the content instructions
+         * of the units, unless the instruction was persisted as XML.
+         */
+        Set<String> getAffectedUnitNames() throws ProvisionException {
+            if(appliedInstruction != null || !isBinary()) {
+                return getAppliedInstruction().getUnitNames();
+            }
+            ProvisionBinary.Index index = null;
+            try {
+                index = ProvisionBinary.open(instrFile);
+                return index.getUnitNames();
+            } catch (IOException e) {
+                throw ProvisionErrors.failedToParse(instrFile.getAbsolutePath(), e);
+            } finally {
+                IoUtils.safeClose(index);
+            }
+        }
+
+        /**
+         * The applied instruction of the unit. Unlike {@link #getAppliedInstruction()},
+         * it reads only the instruction of the unit, unless the instruction was persisted as XML.
+         */
+        ProvisionUnitInstruction getAppliedUnitInstruction(String unitName) throws ProvisionException {
+            if(appliedInstruction != null || !isBinary()) {
+                return getAppliedInstruction().getUnitInstruction(unitName);
+            }
+            ProvisionBinary.Index index = null;
+            try {
+                index = ProvisionBinary.open(instrFile);
+                return index.getUnitInstruction(unitName);
+            } catch (IOException e) {
+                throw ProvisionErrors.failedToParse(instrFile.getAbsolutePath(), e);
+            } finally {
+                IoUtils.safeClose(index);
+            }
+        }
+
+        private boolean isBinary() {
+            return instrFile != null && instrFile.getName().equals(ProvisionBinary.PROVISION_BIN);
+        }
+
         ContentSource getBackup() throws ProvisionException {
             return ContentSource.forBackup(this);
         }
 
         @Override
         File getRecordDir() throws ProvisionException {
-            if (instrXml == null) {
+            if (instrFile == null) {
                 throw ProvisionErrors.instructionIsNotAssociatedWithFile();
             }
-            return instrXml.getParentFile();
+            return instrFile.getParentFile();
         }
 
         void schedulePersistence(FSImage tasks, ProvisionEnvironmentInstruction instruction, Map<String, ApplicationContextImpl.Journal> journal)
@@ -223,8 +277,12 @@ class EnvInstructionHistory extends InstructionHistory {
             final File recordDir = super.schedulePersistence(recordId, tasks);
             envFile = getFileToPersist(recordDir, ENV_FILE);
             tasks.write(EnvPersistUtil.createWriter(updatedEnv, envFile));
-            instrXml = getFileToPersist(recordDir, ProvisionXml.PROVISION_XML);
-            tasks.write(appliedInstruction, instrXml);
+            instrFile = getFileToPersist(recordDir, ProvisionBinary.PROVISION_BIN);
+            try {
+                tasks.write(ProvisionBinary.marshal(appliedInstruction), instrFile);
+            } catch (IOException e) {
+                throw ProvisionErrors.failedToStoreEnvironment(e);
+            }
             Set<String> notAffectedUnits = new HashSet<String>(updatedEnv.getUnitNames());
             for(String unitName : instruction.getUnitNames()) {
                 UnitInstructionHistory.getInstance(EnvInstructionHistory.this, unitName)
@@ -252,7 +310,7 @@ class EnvInstructionHistory extends InstructionHistory {
         }
 
         void assertRollbackForUnit(String unitName) throws ProvisionException {
-            final Set<String> affectedUnits = getAppliedInstruction().getUnitNames();
+            final Set<String> affectedUnits = getAffectedUnitNames();
             if(!Collections.singleton(unitName).equals(affectedUnits)) {
                 throw ProvisionErrors.instructionTargetsOtherThanRequestedUnits(unitName, affectedUnits);
             }
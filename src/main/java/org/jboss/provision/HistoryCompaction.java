@@ -0,0 +1,409 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.instruction.ContentItemInstruction;
+import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
+import org.jboss.provision.instruction.ProvisionUnitInstruction;
+import org.jboss.provision.io.ContentStore;
+import org.jboss.provision.io.FileUtils;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.xml.ProvisionBinary;
+import org.jboss.provision.xml.ProvisionXml;
+
+/**
+ * Squashes the records of the environment history older than the retention boundary
+ * into a single record, which takes the id of the latest of the squashed records.
+ *
+ * The instruction of the squashed record is the squashed instructions merged with
+ * {@link ProvisionEnvironmentInstruction#mergeWith(ProvisionEnvironmentInstruction)}.
+ * For every path, the squashed unit record keeps only the backup of the oldest squashed
+ * record that updated the path, the rest of the backups are not reachable any more.
+ * The records of the patches that are not reverted yet are never squashed, since they
+ * are rolled back one by one before the version of the unit is updated.
+ *
+ * The squashed record is staged next to the records first. Then the journal is written
+ * and the staged record replaces the original one, the records are removed from the logs
+ * and deleted. If the compaction is interrupted, it is completed (or, if it was interrupted
+ * before the journal was committed, discarded) next time the history is accessed.
+ * Every compaction squashes the records that have expired since the previous one into
+ * the record squashed previously.
+ *
+ * @author Alexey Loubyansky
+ */
+class HistoryCompaction {
+
+    static final String JOURNAL = "compaction.journal";
+
+    private static final String FORMAT = "pvcompaction 1";
+    private static final String PREPARED = "prepared";
+    private static final String COMMITTED = "committed";
+    private static final String BASE = "base ";
+    private static final String SQUASHED = "squashed ";
+    private static final String UNIT = "unit ";
+    private static final String STAGED_SUFFIX = ".compact";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Squashes the records preceding the last retained ones.
+     *
+     * @param env  environment
+     * @param retainedRecords  the number of the latest records that are kept as they are
+     * @return  the number of removed records
+     * @throws ProvisionException  in case of a failure
+     */
+    static int compact(ProvisionEnvironment env, int retainedRecords) throws ProvisionException {
+        assert env != null : ProvisionErrors.nullArgument("env");
+        if(retainedRecords < 0) {
+            throw new IllegalArgumentException("retainedRecords can't be negative: " + retainedRecords);
+        }
+        final File historyHome = env.getHistory().getHistoryHome();
+        resume(historyHome);
+
+        final EnvInstructionHistory envHistory = EnvInstructionHistory.getInstance(historyHome);
+        final List<String> ids = envHistory.getAppliedIds();
+        int squashedTotal = ids.size() - retainedRecords;
+        for(String unitName : env.getUnitNames()) {
+            final int patches = env.getUnitEnvironment(unitName).getUnitInfo().getPatches().size();
+            if(patches > 0) {
+                final List<String> unitIds = UnitInstructionHistory.getInstance(envHistory, unitName).getAppliedIds();
+                if(unitIds.size() >= patches) {
+                    squashedTotal = Math.min(squashedTotal, ids.indexOf(unitIds.get(unitIds.size() - patches)));
+                }
+            }
+        }
+        if(squashedTotal < 2) {
+            return 0;
+        }
+
+        final HistoryCompaction compaction = new HistoryCompaction(historyHome, ids.get(squashedTotal - 1), ids.subList(0, squashedTotal - 1));
+        final List<EnvInstructionHistory.EnvRecord> records = new ArrayList<EnvInstructionHistory.EnvRecord>(squashedTotal);
+        ProvisionEnvironmentInstruction merged = null;
+        for(String id : ids.subList(0, squashedTotal)) {
+            final EnvInstructionHistory.EnvRecord record = envHistory.loadRecord(id);
+            merged = merged == null ? record.getAppliedInstruction() : merged.mergeWith(record.getAppliedInstruction());
+            records.add(record);
+        }
+        final File unitsDir = new File(historyHome, UnitInstructionHistory.UNITS);
+        final String[] unitNames = unitsDir.list();
+        if(unitNames != null) {
+            for(String unitName : unitNames) {
+                final List<String> unitIds = UnitInstructionHistory.getInstance(envHistory, unitName).getAppliedIds();
+                final List<String> squashedUnitIds = new ArrayList<String>();
+                for(String id : ids.subList(0, squashedTotal)) {
+                    if(unitIds.contains(id)) {
+                        squashedUnitIds.add(id);
+                    }
+                }
+                if(!squashedUnitIds.isEmpty()) {
+                    compaction.addUnit(unitName, squashedUnitIds);
+                }
+            }
+        }
+
+        try {
+            compaction.writeJournal(PREPARED);
+            compaction.stage(envHistory, merged);
+            compaction.writeJournal(COMMITTED);
+        } catch (IOException | ProvisionException | RuntimeException e) {
+            compaction.discard();
+            throw e instanceof ProvisionException ? (ProvisionException) e : ProvisionErrors.failedToCompactHistory(e);
+        }
+        compaction.complete();
+        return squashedTotal - 1;
+    }
+
+    /**
+     * Completes the compaction if it was interrupted after it had been
+     * committed, otherwise discards it.
+     *
+     * @param historyHome  history home
+     * @throws ProvisionException  in case of a failure
+     */
+    static void resume(File historyHome) throws ProvisionException {
+        final File journal = new File(historyHome, JOURNAL);
+        if(!journal.exists()) {
+            return;
+        }
+        final HistoryCompaction compaction = new HistoryCompaction(historyHome, null, Collections.<String>emptyList());
+        final boolean committed;
+        try {
+            committed = compaction.readJournal();
+        } catch (IOException e) {
+            throw ProvisionErrors.readError(journal, e);
+        }
+        if(committed) {
+            compaction.complete();
+        } else {
+            compaction.discard();
+        }
+    }
+
+    private final File historyHome;
+    private final File journal;
+    private String baseId;
+    private List<String> removedIds;
+    private List<String> unitNames = Collections.emptyList();
+    private List<List<String>> unitIds = Collections.emptyList();
+
+    private HistoryCompaction(File historyHome, String baseId, List<String> removedIds) {
+        this.historyHome = historyHome;
+        this.journal = new File(historyHome, JOURNAL);
+        this.baseId = baseId;
+        this.removedIds = removedIds;
+    }
+
+    private void addUnit(String unitName, List<String> squashedIds) {
+        if(unitNames.isEmpty()) {
+            unitNames = new ArrayList<String>();
+            unitIds = new ArrayList<List<String>>();
+        }
+        unitNames.add(unitName);
+        unitIds.add(squashedIds);
+    }
+
+    private File getUnitDir(String unitName) {
+        return IoUtils.newFile(historyHome, UnitInstructionHistory.UNITS, unitName);
+    }
+
+    /**
+     * Creates the squashed record next to the original records.
+     */
+    private void stage(EnvInstructionHistory envHistory, ProvisionEnvironmentInstruction merged) throws IOException, ProvisionException {
+        for(int i = 0; i < unitNames.size(); ++i) {
+            final String unitName = unitNames.get(i);
+            final List<String> squashedIds = unitIds.get(i);
+            final File unitDir = getUnitDir(unitName);
+            final File staged = new File(unitDir, baseId + STAGED_SUFFIX);
+            IoUtils.mkdirs(staged);
+
+            // the state of the unit as of the latest squashed record
+            final File latest = new File(unitDir, squashedIds.get(squashedIds.size() - 1));
+            for(String name : new String[] {UnitInstructionHistory.ENV_PROPS, UnitInstructionHistory.UNIT_PATHS}) {
+                final File f = new File(latest, name);
+                if(f.exists()) {
+                    IoUtils.copyFile(f, new File(staged, name));
+                }
+            }
+
+            // the backup of a path made by the oldest record which updated the path
+            final Set<ContentPath> squashedPaths = new HashSet<ContentPath>();
+            for(String id : squashedIds) {
+                final ProvisionUnitInstruction unitInstr = envHistory.loadRecord(id).getAppliedUnitInstruction(unitName);
+                if(unitInstr == null) {
+                    continue;
+                }
+                final File backupDir = IoUtils.newFile(unitDir, id, UnitInstructionHistory.BACKUP);
+                for(ContentItemInstruction item : unitInstr.getContentInstructions()) {
+                    if(!squashedPaths.add(item.getPath())) {
+                        continue;
+                    }
+                    final File backup = new File(backupDir, item.getPath().getFSRelativePath());
+                    if(backup.exists()) {
+                        link(backup, IoUtils.newFile(staged, UnitInstructionHistory.BACKUP, item.getPath().getFSRelativePath()));
+                    }
+                }
+            }
+        }
+
+        final File stagedInstr = new File(new File(historyHome, baseId), ProvisionBinary.PROVISION_BIN + STAGED_SUFFIX);
+        final OutputStream os = new FileOutputStream(stagedInstr);
+        try {
+            ProvisionBinary.marshal(os, merged);
+            os.close();
+        } finally {
+            IoUtils.safeClose(os);
+        }
+    }
+
+    private static void link(File source, File target) throws IOException {
+        IoUtils.mkdirs(target.getParentFile());
+        if(source.isFile()) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                return;
+            } catch(IOException | UnsupportedOperationException e) {
+                // copied below
+            }
+        }
+        IoUtils.copyFile(source, target);
+    }
+
+    /**
+     * Replaces the squashed records with the staged one. Each step can be repeated.
+     */
+    private void complete() throws ProvisionException {
+        try {
+            for(String unitName : unitNames) {
+                final File unitDir = getUnitDir(unitName);
+                final File staged = new File(unitDir, baseId + STAGED_SUFFIX);
+                if(staged.exists()) {
+                    final File record = new File(unitDir, baseId);
+                    IoUtils.recursiveDelete(record);
+                    IoUtils.move(staged, record);
+                }
+            }
+            final File stagedInstr = new File(new File(historyHome, baseId), ProvisionBinary.PROVISION_BIN + STAGED_SUFFIX);
+            if(stagedInstr.exists()) {
+                IoUtils.move(stagedInstr, new File(stagedInstr.getParentFile(), ProvisionBinary.PROVISION_BIN));
+            }
+            // the XML of a base record persisted before the binary instructions were introduced
+            if(new File(stagedInstr.getParentFile(), ProvisionBinary.PROVISION_BIN).exists()) {
+                IoUtils.recursiveDelete(new File(stagedInstr.getParentFile(), ProvisionXml.PROVISION_XML));
+            }
+
+            final EnvInstructionHistory envHistory = EnvInstructionHistory.getInstance(historyHome);
+            final Set<String> removed = new HashSet<String>(removedIds);
+            for(String unitName : unitNames) {
+                final File unitDir = getUnitDir(unitName);
+                // the records of the units not affected by an instruction refer to the last affecting one
+                for(File f : unitDir.listFiles()) {
+                    if(f.isFile() && removed.contains(f.getName()) == false && !f.getName().equals(HistoryLog.FILE_NAME)
+                            && removed.contains(FileUtils.readFile(f))) {
+                        Files.write(f.toPath(), baseId.getBytes(UTF_8));
+                    }
+                }
+                final UnitInstructionHistory unitHistory = UnitInstructionHistory.getInstance(envHistory, unitName);
+                final List<String> ids = new ArrayList<String>(unitHistory.getAppliedIds());
+                ids.removeAll(removed);
+                if(!ids.contains(baseId)) {
+                    ids.add(0, baseId);
+                }
+                unitHistory.rewriteLog(ids);
+            }
+            final List<String> ids = new ArrayList<String>(envHistory.getAppliedIds());
+            ids.removeAll(removed);
+            envHistory.rewriteLog(ids);
+
+            final File[] unitDirs = new File(historyHome, UnitInstructionHistory.UNITS).listFiles();
+            for(String id : removedIds) {
+                IoUtils.recursiveDelete(new File(historyHome, id));
+                if(unitDirs != null) {
+                    for(File unitDir : unitDirs) {
+                        IoUtils.recursiveDelete(new File(unitDir, id));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw ProvisionErrors.failedToCompactHistory(e);
+        }
+        IoUtils.recursiveDelete(journal);
+        try {
+            ContentStore.open(new File(historyHome, ProvisionEnvironmentHistory.CONTENT_STORE)).gc();
+        } catch (IOException e) {
+            // it will be collected next time
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes the staged record.
+     */
+    private void discard() {
+        if(baseId != null) {
+            for(String unitName : unitNames) {
+                IoUtils.recursiveDelete(new File(getUnitDir(unitName), baseId + STAGED_SUFFIX));
+            }
+            IoUtils.recursiveDelete(new File(new File(historyHome, baseId), ProvisionBinary.PROVISION_BIN + STAGED_SUFFIX));
+        }
+        IoUtils.recursiveDelete(journal);
+    }
+
+    private void writeJournal(String state) throws IOException {
+        final File tmp = new File(historyHome, JOURNAL + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF_8));
+            writer.write(FORMAT);
+            writer.newLine();
+            writer.write(state);
+            writer.newLine();
+            writer.write(BASE + baseId);
+            writer.newLine();
+            for(String id : removedIds) {
+                writer.write(SQUASHED + id);
+                writer.newLine();
+            }
+            for(String unitName : unitNames) {
+                writer.write(UNIT + unitName);
+                writer.newLine();
+            }
+            writer.close();
+        } finally {
+            IoUtils.safeClose(writer);
+        }
+        IoUtils.move(tmp, journal);
+    }
+
+    /**
+     * @return  whether the compaction was committed
+     */
+    private boolean readJournal() throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+            if(!FORMAT.equals(reader.readLine())) {
+                throw new IOException("Unsupported compaction journal format " + journal.getAbsolutePath());
+            }
+            final boolean committed = COMMITTED.equals(reader.readLine());
+            removedIds = new ArrayList<String>();
+            String line = reader.readLine();
+            while(line != null) {
+                if(line.startsWith(BASE)) {
+                    baseId = line.substring(BASE.length());
+                } else if(line.startsWith(SQUASHED)) {
+                    removedIds.add(line.substring(SQUASHED.length()));
+                } else if(line.startsWith(UNIT)) {
+                    addUnit(line.substring(UNIT.length()), Collections.<String>emptyList());
+                } else {
+                    throw new IOException("Unexpected line in " + journal.getAbsolutePath() + ": " + line);
+                }
+                line = reader.readLine();
+            }
+            if(baseId == null) {
+                throw new IOException("Base record is missing in " + journal.getAbsolutePath());
+            }
+            return committed;
+        } finally {
+            IoUtils.safeClose(reader);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provision.io.FSImage;
+import org.jboss.provision.io.IoUtils;
+
+/**
+ * Append-only binary log of the records of an instruction history.
+ *
+ * The log starts with a header followed by entries. Each entry either adds
+ * a record after the last one or removes a record from the chain. An entry
+ * contains the id of the last record after the entry was applied and ends with
+ * the length of the entry, so that the last record id can be read from the end
+ * of the log without parsing it.
+ *
+ * @author Alexey Loubyansky
+ */
+class HistoryLog {
+
+    static final String FILE_NAME = "records.log";
+
+    private static final int MAGIC = 0x50564c47; // PVLG
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    /** the type and two empty ids */
+    private static final int MIN_ENTRY_LENGTH = 5;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    static final HistoryLog EMPTY = new HistoryLog();
+
+    /**
+     * Reads the id of the last record from the end of the log. If the last entry
+     * does not look complete, e.g. because the append was interrupted, the id
+     * is taken from the log parsed up to the last complete entry.
+     *
+     * @param file  log file
+     * @return  the id of the last record or null if the history is empty
+     * @throws IOException  in case the log could not be read
+     */
+    static String readLastId(File file) throws IOException {
+        if(!file.exists()) {
+            return null;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if(length == 0) {
+                return null;
+            }
+            if(length < HEADER_LENGTH || raf.readInt() != MAGIC || raf.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported history log format " + file.getAbsolutePath());
+            }
+            if(length == HEADER_LENGTH) {
+                return null;
+            }
+            if(length >= HEADER_LENGTH + MIN_ENTRY_LENGTH + 4) {
+                raf.seek(length - 4);
+                final int entryLength = raf.readInt();
+                final long entryOffset = length - 4 - entryLength;
+                if(entryLength >= MIN_ENTRY_LENGTH && entryOffset >= HEADER_LENGTH) {
+                    raf.seek(entryOffset);
+                    final byte op = raf.readByte();
+                    if(op == ADD || op == REMOVE) {
+                        try {
+                            raf.readUTF();
+                            final String lastId = raf.readUTF();
+                            if(raf.getFilePointer() == length - 4) {
+                                return lastId.isEmpty() ? null : lastId;
+                            }
+                        } catch(IOException e) {
+                            // not an entry
+                        }
+                    }
+                }
+            }
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+        return parse(file, Files.readAllBytes(file.toPath())).getLastId();
+    }
+
+    static HistoryLog read(File file, FSImage tasks) throws IOException {
+        final byte[] bytes = tasks.readBytes(file);
+        if(bytes == null) {
+            return EMPTY;
+        }
+        return parse(file, bytes);
+    }
+
+    /**
+     * Parses the log up to the last complete entry. An entry that is cut off
+     * or does not end with its length is the result of an interrupted append,
+     * it and whatever follows it are ignored.
+     */
+    static HistoryLog parse(File file, byte[] bytes) throws IOException {
+        final HistoryLog log = new HistoryLog();
+        if(bytes.length == 0) {
+            return log;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if(bytes.length < HEADER_LENGTH || in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unsupported history log format " + file.getAbsolutePath());
+        }
+        log.length = HEADER_LENGTH;
+        while(log.length < bytes.length) {
+            final byte op;
+            final String id;
+            try {
+                op = in.readByte();
+                id = in.readUTF();
+                in.readUTF();
+                final int entryLength = bytes.length - in.available() - log.length;
+                if(in.readInt() != entryLength || op != ADD && op != REMOVE) {
+                    break;
+                }
+            } catch(IOException e) {
+                break;
+            }
+            if(op == ADD) {
+                log.add(id);
+            } else {
+                log.remove(id);
+            }
+            log.length = bytes.length - in.available();
+        }
+        return log;
+    }
+
+    /**
+     * Writes a log which adds the records in the order they appear in the list.
+     *
+     * @param file  log file
+     * @param ids  record ids from the oldest to the latest
+     * @throws IOException  in case the log could not be written
+     */
+    static void write(File file, List<String> ids) throws IOException {
+        final byte[] bytes = toBytes(ids);
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes);
+            raf.close();
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+        IoUtils.move(tmp, file);
+    }
+
+    /**
+     * Creates the content of a log which adds the records in the order they appear in the list.
+     *
+     * @param ids  record ids from the oldest to the latest
+     * @return  the content of the log
+     * @throws IOException  in case the entries could not be created
+     */
+    static byte[] toBytes(List<String> ids) throws IOException {
+        final HistoryLog log = new HistoryLog();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(header());
+        for(String id : ids) {
+            bytes.write(log.addEntry(id));
+            log.add(id);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Creates a log which is not persisted and which adds the records in the order they appear in the list.
+     *
+     * @param ids  record ids from the oldest to the latest
+     * @return  the log
+     */
+    static HistoryLog of(List<String> ids) {
+        final HistoryLog log = new HistoryLog();
+        for(String id : ids) {
+            log.add(id);
+        }
+        return log;
+    }
+
+    static byte[] header() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        return bytes.toByteArray();
+    }
+
+    private Map<String, String> prevIds = Collections.emptyMap();
+    private Map<String, String> nextIds = Collections.emptyMap();
+    private String lastId;
+    /** the length of the log up to the end of the last complete entry */
+    private int length;
+
+    private HistoryLog() {
+    }
+
+    /**
+     * @return  the number of bytes of the log up to the end of the last complete entry
+     */
+    int getLength() {
+        return length;
+    }
+
+    boolean isEmpty() {
+        return prevIds.isEmpty();
+    }
+
+    boolean contains(String id) {
+        return prevIds.containsKey(id);
+    }
+
+    String getLastId() {
+        return lastId;
+    }
+
+    String getPreviousId(String id) {
+        return prevIds.get(id);
+    }
+
+    String getNextId(String id) {
+        return nextIds.get(id);
+    }
+
+    /**
+     * @return  record ids from the oldest to the latest
+     */
+    List<String> getIds() {
+        final LinkedList<String> ids = new LinkedList<String>();
+        String id = lastId;
+        while(id != null) {
+            ids.addFirst(id);
+            id = prevIds.get(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Creates an entry adding the record after the last one.
+     * The entry is not applied to this log.
+     */
+    byte[] addEntry(String id) throws IOException {
+        return entry(ADD, id, id);
+    }
+
+    /**
+     * Creates an entry removing the record from the chain.
+     * The entry is not applied to this log.
+     */
+    byte[] removeEntry(String id) throws IOException {
+        String newLastId = lastId;
+        if(id.equals(lastId)) {
+            newLastId = nextIds.get(id);
+            if(newLastId == null) {
+                newLastId = prevIds.get(id);
+            }
+        }
+        return entry(REMOVE, id, newLastId);
+    }
+
+    private static byte[] entry(byte op, String id, String lastId) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeUTF(id);
+        out.writeUTF(lastId == null ? "" : lastId);
+        out.writeInt(bytes.size());
+        return bytes.toByteArray();
+    }
+
+    private void add(String id) {
+        if(prevIds.isEmpty()) {
+            prevIds = new HashMap<String, String>();
+            nextIds = new HashMap<String, String>();
+        }
+        prevIds.put(id, lastId);
+        if(lastId != null) {
+            nextIds.put(lastId, id);
+        }
+        lastId = id;
+    }
+
+    private void remove(String id) {
+        if(!prevIds.containsKey(id)) {
+            return;
+        }
+        final String prevId = prevIds.remove(id);
+        final String nextId = nextIds.remove(id);
+        if(prevId != null) {
+            if(nextId != null) {
+                nextIds.put(prevId, nextId);
+            } else {
+                nextIds.remove(prevId);
+            }
+        }
+        if(nextId != null) {
+            prevIds.put(nextId, prevId);
+        }
+        if(id.equals(lastId)) {
+            lastId = nextId == null ? prevId : nextId;
+        }
+    }
+}
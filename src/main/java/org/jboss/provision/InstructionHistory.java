@@ -24,6 +24,10 @@ package org.jboss.provision;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.jboss.provision.io.FSImage;
 import org.jboss.provision.io.FileUtils;
@@ -35,9 +39,11 @@ import org.jboss.provision.io.IoUtils;
  */
 abstract class InstructionHistory {
 
-    protected static final String LAST_INSTR_TXT = "last.txt";
-    protected static final String NEXT_INSTR_TXT = "next.txt";
-    protected static final String PREV_INSTR_TXT = "prev.txt";
+    // the layout preceding the history log, it is read as is and converted to the log
+    // by the first update of the history
+    private static final String LAST_INSTR_TXT = "last.txt";
+    private static final String NEXT_INSTR_TXT = "next.txt";
+    private static final String PREV_INSTR_TXT = "prev.txt";
 
     protected static File getFileToPersist(final File instrDir, String name) throws ProvisionException {
         final File f = new File(instrDir, name);
@@ -56,10 +62,17 @@ abstract class InstructionHistory {
     }
 
     protected final File recordsDir;
+    private final File logFile;
+    private final File lastTxt;
+    private HistoryLog log;
+    private long logLength = -1;
+    private long logLastModified;
 
     protected InstructionHistory(File recordsDir) {
         assert recordsDir != null : ProvisionErrors.nullArgument("recordsDir");
         this.recordsDir = recordsDir;
+        this.logFile = new File(recordsDir, HistoryLog.FILE_NAME);
+        this.lastTxt = new File(recordsDir, LAST_INSTR_TXT);
     }
 
     File getLastAppliedDir() throws ProvisionException {
@@ -71,39 +84,154 @@ abstract class InstructionHistory {
     }
 
     String getLastAppliedId() throws ProvisionException {
-        final File lastTxt = new File(recordsDir, LAST_INSTR_TXT);
-        if(!lastTxt.exists()) {
-            return null;
+        if(!logFile.exists() && lastTxt.exists()) {
+            try {
+                return FileUtils.readFile(lastTxt);
+            } catch (IOException e) {
+                throw ProvisionErrors.readError(lastTxt, e);
+            }
         }
         try {
-            return FileUtils.readFile(lastTxt);
+            return HistoryLog.readLastId(logFile);
+        } catch (IOException e) {
+            throw ProvisionErrors.readError(logFile, e);
+        }
+    }
+
+    /**
+     * @return  ids of the applied records from the oldest to the latest
+     */
+    List<String> getAppliedIds() throws ProvisionException {
+        return loadLog().getIds();
+    }
+
+    /**
+     * Replaces the log with one that contains only the given records.
+     *
+     * @param ids  record ids from the oldest to the latest
+     */
+    void rewriteLog(List<String> ids) throws ProvisionException {
+        final List<String> txtIds = readTxtLayout();
+        try {
+            HistoryLog.write(logFile, ids);
         } catch (IOException e) {
-            throw ProvisionErrors.readError(IoUtils.newFile(recordsDir, LAST_INSTR_TXT), e);
+            throw ProvisionErrors.failedToUpdateHistory(e);
+        }
+        log = null;
+        if(txtIds != null) {
+            for(String id : txtIds) {
+                IoUtils.recursiveDelete(IoUtils.newFile(recordsDir, id, PREV_INSTR_TXT));
+                IoUtils.recursiveDelete(IoUtils.newFile(recordsDir, id, NEXT_INSTR_TXT));
+            }
+            IoUtils.recursiveDelete(lastTxt);
         }
     }
 
     String getPreviousRecordId(File recordDir) throws ProvisionException {
-        final File prevInstrTxt = new File(recordDir, PREV_INSTR_TXT);
-        if(!prevInstrTxt.exists()) {
-            return null;
+        return loadLog().getPreviousId(recordDir.getName());
+    }
+
+    String getNextRecordId(File recordDir) throws ProvisionException {
+        return loadLog().getNextId(recordDir.getName());
+    }
+
+    /**
+     * Loads the log as it is currently persisted. The parsed log is re-used
+     * for as long as the log file, or the last.txt of the history that hasn't
+     * been converted to the log yet, remains unchanged.
+     */
+    private HistoryLog loadLog() throws ProvisionException {
+        final File file = !logFile.exists() && lastTxt.exists() ? lastTxt : logFile;
+        if(!file.exists()) {
+            log = null;
+            return HistoryLog.EMPTY;
+        }
+        if(log != null && file.length() == logLength && file.lastModified() == logLastModified) {
+            return log;
         }
         try {
-            return FileUtils.readFile(prevInstrTxt);
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+            log = file == lastTxt ? HistoryLog.of(readTxtLayout()) : HistoryLog.parse(logFile, Files.readAllBytes(logFile.toPath()));
+            logLength = length;
+            logLastModified = lastModified;
         } catch (IOException e) {
-            throw ProvisionErrors.readError(prevInstrTxt, e);
+            throw ProvisionErrors.readError(file, e);
         }
+        return log;
     }
 
-    String getNextRecordId(File recordDir) throws ProvisionException {
-        final File nextInstrTxt = new File(recordDir, NEXT_INSTR_TXT);
-        if(!nextInstrTxt.exists()) {
+    /**
+     * Loads the log as it will be persisted once the scheduled tasks are committed.
+     */
+    private HistoryLog loadLog(FSImage tasks) throws ProvisionException {
+        if(tasks.getStatus(logFile) == FSImage.PathStatus.NOT_SCHEDULED) {
+            return loadLog();
+        }
+        try {
+            return HistoryLog.read(logFile, tasks);
+        } catch (IOException e) {
+            throw ProvisionErrors.readError(logFile, e);
+        }
+    }
+
+    private void scheduleAppend(FSImage tasks, byte[] entry) throws ProvisionException {
+        try {
+            if(!tasks.exists(logFile)) {
+                final List<String> txtIds = readTxtLayout();
+                if(txtIds == null) {
+                    tasks.append(HistoryLog.header(), logFile);
+                } else {
+                    // the history is converted to the log as part of its update
+                    tasks.write(HistoryLog.toBytes(txtIds), logFile);
+                    for(String id : txtIds) {
+                        scheduleDelete(tasks, IoUtils.newFile(recordsDir, id, PREV_INSTR_TXT));
+                        scheduleDelete(tasks, IoUtils.newFile(recordsDir, id, NEXT_INSTR_TXT));
+                    }
+                    tasks.delete(lastTxt);
+                }
+            } else if(tasks.getStatus(logFile) == FSImage.PathStatus.NOT_SCHEDULED) {
+                final HistoryLog log = loadLog();
+                if(log.getLength() < logFile.length()) {
+                    // an interrupted append left an incomplete entry at the end of the log
+                    tasks.write(Arrays.copyOf(Files.readAllBytes(logFile.toPath()), log.getLength()), logFile);
+                }
+            }
+        } catch (IOException e) {
+            throw ProvisionErrors.writeError(logFile, e);
+        }
+        tasks.append(entry, logFile);
+    }
+
+    private static void scheduleDelete(FSImage tasks, File f) {
+        if(f.exists()) {
+            tasks.delete(f);
+        }
+    }
+
+    /**
+     * Reads the record ids of the history persisted as a chain of prev.txt and next.txt files.
+     * The files are not modified.
+     *
+     * @return  record ids from the oldest to the latest or null if the history has already been converted to the log
+     */
+    private List<String> readTxtLayout() throws ProvisionException {
+        if(!lastTxt.exists() || logFile.exists()) {
             return null;
         }
+        final LinkedList<String> ids = new LinkedList<String>();
+        File f = lastTxt;
         try {
-            return FileUtils.readFile(nextInstrTxt);
+            String id = FileUtils.readFile(f);
+            while(id != null) {
+                ids.addFirst(id);
+                f = IoUtils.newFile(recordsDir, id, PREV_INSTR_TXT);
+                id = f.exists() ? FileUtils.readFile(f) : null;
+            }
         } catch (IOException e) {
-            throw ProvisionErrors.readError(nextInstrTxt, e);
+            throw ProvisionErrors.readError(f, e);
         }
+        return ids;
     }
 
     abstract class Record {
@@ -127,16 +255,15 @@ abstract class InstructionHistory {
                 }
             }
 
-            final File prevRecordTxt = getFileToPersist(recordDir, PREV_INSTR_TXT);
-            final File lastRecordTxt = new File(recordsDir, LAST_INSTR_TXT);
-            final File lastAppliedRecordDir = getLastAppliedDir();
-
-            if (lastAppliedRecordDir != null && !tasks.isDeleted(lastAppliedRecordDir)) {
-                tasks.write(lastAppliedRecordDir.getName(), prevRecordTxt);
-                final File nextInstrTxt = getFileToPersist(lastAppliedRecordDir, NEXT_INSTR_TXT);
-                tasks.write(recordId, nextInstrTxt);
+            final HistoryLog log = loadLog(tasks);
+            if(log.contains(recordId)) {
+                throw ProvisionErrors.pathAlreadyExists(recordDir);
+            }
+            try {
+                scheduleAppend(tasks, log.addEntry(recordId));
+            } catch (IOException e) {
+                throw ProvisionErrors.writeError(logFile, e);
             }
-            tasks.write(recordId, lastRecordTxt);
             return recordDir;
         }
 
@@ -146,54 +273,15 @@ abstract class InstructionHistory {
                 return;
             }
 
-            final String prevRecordId = readFile(tasks, new File(recordDir, PREV_INSTR_TXT));
-            final String nextRecordId = readFile(tasks, new File(recordDir, NEXT_INSTR_TXT));
-
-            if (prevRecordId != null) {
-                final File nextRecordTxt = IoUtils.newFile(recordsDir, prevRecordId, NEXT_INSTR_TXT);
-                if (nextRecordId != null) {
-                    if (nextRecordTxt.exists()) {
-                        tasks.write(nextRecordId, nextRecordTxt);
-                    } else {
-                        throw new IllegalStateException("next record must exist");
-                    }
-                } else {
-                    tasks.delete(nextRecordTxt);
-                }
-            }
-            if (nextRecordId != null) {
-                final File prevRecordTxt = IoUtils.newFile(recordsDir, nextRecordId, PREV_INSTR_TXT);
-                if (prevRecordId != null) {
-                    if (prevRecordTxt.exists()) {
-                        tasks.write(prevRecordId, prevRecordTxt);
-                    } else {
-                        throw new IllegalStateException("previous record must exist");
-                    }
-                } else {
-                    tasks.delete(prevRecordTxt);
-                }
-            }
-
-            final File lastInstrTxt = new File(recordsDir, LAST_INSTR_TXT);
-            final String lastRecordId = readFile(tasks, lastInstrTxt);
-            if (lastRecordId != null && lastRecordId.equals(recordId)) {
-                if (nextRecordId != null) {
-                    tasks.write(nextRecordId, lastInstrTxt);
-                } else if (prevRecordId != null) {
-                    tasks.write(prevRecordId, lastInstrTxt);
-                } else {
-                    tasks.delete(lastInstrTxt);
+            final HistoryLog log = loadLog(tasks);
+            if(log.contains(recordId)) {
+                try {
+                    scheduleAppend(tasks, log.removeEntry(recordId));
+                } catch (IOException e) {
+                    throw ProvisionErrors.writeError(logFile, e);
                 }
             }
             tasks.delete(recordDir);
         }
-
-        protected String readFile(FSImage tasks, File f) throws ProvisionException {
-            try {
-                return tasks.readContent(f);
-            } catch (IOException e) {
-                throw ProvisionErrors.readError(f, e);
-            }
-        }
     }
 }
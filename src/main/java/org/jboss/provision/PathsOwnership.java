@@ -25,18 +25,26 @@ package org.jboss.provision;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import org.jboss.provision.util.PathTrie;
+
 /**
  *
  * @author Alexey Loubyansky
  */
 class PathsOwnership {
 
-    private Map<String, PathOwnership> ownerships = Collections.emptyMap();
+    /** the keys are interned absolute paths */
+    private Map<PathTrie.Node, PathOwnership> ownerships = Collections.emptyMap();
 
     void addExternalOwner(String path) {
+        addExternalOwner(PathTrie.forFileSystem().intern(path));
+    }
+
+    void addExternalOwner(PathTrie.Node path) {
         final PathOwnership ownership = ownerships.get(path);
         if(ownership == null) {
             addOwnership(path, new PathOwnership(true));
@@ -46,6 +54,10 @@ class PathsOwnership {
     }
 
     void addOwner(String path, String owner) {
+        addOwner(PathTrie.forFileSystem().intern(path), owner);
+    }
+
+    void addOwner(PathTrie.Node path, String owner) {
         final PathOwnership ownership = ownerships.get(path);
         if(ownership == null) {
             addOwnership(path, new PathOwnership(owner));
@@ -69,6 +81,10 @@ class PathsOwnership {
      *          by somebody (including an external owner)
      */
     boolean removeOwner(String path, String owner) {
+        return removeOwner(PathTrie.forFileSystem().intern(path), owner);
+    }
+
+    boolean removeOwner(PathTrie.Node path, String owner) {
         final PathOwnership ownership = ownerships.get(path);
         if(ownership == null) {
             return false;
@@ -84,21 +100,55 @@ class PathsOwnership {
         return true;
     }
 
+    /**
+     * Unregisters the owner from all the paths it owns.
+     *
+     * @param owner  owner
+     */
+    void removeOwner(String owner) {
+        if(ownerships.isEmpty()) {
+            return;
+        }
+        final Iterator<PathOwnership> i = ownerships.values().iterator();
+        while(i.hasNext()) {
+            final PathOwnership ownership = i.next();
+            if(ownership.removeOwner(owner) && !ownership.isOwned()) {
+                if(ownerships.size() == 1) {
+                    ownerships = Collections.emptyMap();
+                    return;
+                }
+                i.remove();
+            }
+        }
+    }
+
+    Map<PathTrie.Node, PathOwnership> getOwnerships() {
+        return ownerships;
+    }
+
+    boolean isOwner(String path, String owner) {
+        final PathOwnership ownership = ownerships.get(PathTrie.forFileSystem().intern(path));
+        if(ownership == null) {
+            return false;
+        }
+        return ownership.isOwner(owner);
+    }
+
     boolean isOnlyOwner(String path, String owner) {
-        final PathOwnership ownership = ownerships.get(path);
+        final PathOwnership ownership = ownerships.get(PathTrie.forFileSystem().intern(path));
         if(ownership == null) {
             return false;
         }
         return ownership.isOnlyOwner(owner);
     }
 
-    private void addOwnership(String path, PathOwnership ownership) {
+    private void addOwnership(PathTrie.Node path, PathOwnership ownership) {
         switch(ownerships.size()) {
             case 0:
                 ownerships = Collections.singletonMap(path, ownership);
                 break;
             case 1:
-                ownerships = new HashMap<String, PathOwnership>(ownerships);
+                ownerships = new HashMap<PathTrie.Node, PathOwnership>(ownerships);
             default:
                 ownerships.put(path, ownership);
         }
@@ -112,7 +162,7 @@ class PathsOwnership {
     static class PathOwnership {
 
         private boolean externalOwner;
-        private Set<String> owners;
+        private Set<String> owners = Collections.emptySet();
 
         PathOwnership(boolean externalOwner) {
             this.externalOwner = externalOwner;
@@ -134,6 +184,10 @@ class PathsOwnership {
             return owners.contains(owner);
         }
 
+        Set<String> getOwners() {
+            return owners;
+        }
+
         void addOwner(String owner) {
             switch(owners.size()) {
                 case 0:
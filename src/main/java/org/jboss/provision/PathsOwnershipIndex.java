@@ -0,0 +1,377 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.io.FSImage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.util.PathTrie;
+
+/**
+ * Persisted {@link PathsOwnership} of the environment, so that it doesn't
+ * have to be rebuilt from the paths of every unit each time an environment
+ * is updated.
+ *
+ * The index starts with a header followed by blocks. A block is either
+ * a snapshot of the complete ownership or a delta which is appended
+ * when an instruction is applied. Each block is stamped with the id of
+ * the history record it corresponds to and a delta also with the id
+ * of the record it was applied on top of. The index is used only if the
+ * stamp of the last block matches the last applied record, otherwise
+ * it is rebuilt from the unit paths. Rolling back the last record
+ * truncates the index to the end of the previous block.
+ *
+ * @author Alexey Loubyansky
+ */
+class PathsOwnershipIndex {
+
+    private static final int MAGIC = 0x5056504f; // PVPO
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte SNAPSHOT = 1;
+    private static final byte DELTA = 2;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_OWNER = 3;
+
+    /** The max number of deltas before the index is compacted */
+    private static final int MAX_DELTAS = 32;
+    /** The number of the latest deltas preserved by the compaction to allow cheap rollbacks */
+    private static final int KEEP_DELTAS = 8;
+
+    /**
+     * Returns the ownership of the paths by the units of the environment.
+     * The index is rebuilt if it is missing or is out of sync with the history.
+     *
+     * @param env  environment
+     * @return  paths ownership
+     * @throws ProvisionException  in case the paths of the units could not be read
+     */
+    static PathsOwnership load(ProvisionEnvironment env) throws ProvisionException {
+        assert env != null : ProvisionErrors.nullArgument("env");
+        final ProvisionEnvironmentHistory history = env.getHistory();
+        final String lastId = history.getEnvInstructionHistory().getLastAppliedId();
+        if(lastId == null) {
+            return build(env);
+        }
+        final File file = history.getPathsOwnershipFile();
+        final String envHome = env.getEnvironmentHome().getAbsolutePath();
+        if(file.exists()) {
+            try {
+                final byte[] bytes = Files.readAllBytes(file.toPath());
+                final PathsOwnershipIndex index = parse(file, bytes);
+                if(envHome.equals(index.envHome) && lastId.equals(index.stamp)) {
+                    if(index.blockOffsets.size() > MAX_DELTAS) {
+                        compact(file, bytes, index);
+                    }
+                    for(String owner : index.owners.keySet()) {
+                        if(env.getUnitEnvironment(owner) == null) {
+                            index.ownership.removeOwner(owner);
+                        }
+                    }
+                    return index.ownership;
+                }
+            } catch(IOException e) {
+                // rebuild it
+            }
+        }
+        final PathsOwnership ownership = build(env);
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(header(envHome));
+            bytes.write(snapshot(lastId, ownership));
+            store(file, bytes.toByteArray());
+        } catch(IOException e) {
+            // it will be rebuilt next time
+            e.printStackTrace();
+        }
+        return ownership;
+    }
+
+    /**
+     * Schedules a delta which reflects the paths added and removed by the units
+     * to be appended to the index.
+     *
+     * @param tasks  file system image
+     * @param env  the environment the instruction is applied to
+     * @param updatedEnv  the environment after the instruction is applied
+     * @param recordId  id of the record the instruction is persisted in
+     * @param journal  paths added and removed by the units
+     * @throws ProvisionException  in case the index could not be updated
+     */
+    static void scheduleUpdate(FSImage tasks, ProvisionEnvironment env, ProvisionEnvironment updatedEnv, String recordId,
+            Map<String, ApplicationContextImpl.Journal> journal) throws ProvisionException {
+        assert tasks != null : ProvisionErrors.nullArgument("tasks");
+        assert env != null : ProvisionErrors.nullArgument("env");
+        assert updatedEnv != null : ProvisionErrors.nullArgument("updatedEnv");
+        assert recordId != null : ProvisionErrors.nullArgument("recordId");
+        assert journal != null : ProvisionErrors.nullArgument("journal");
+        final ProvisionEnvironmentHistory history = env.getHistory();
+        final File file = history.getPathsOwnershipFile();
+        final String baseId = history.getEnvInstructionHistory().getLastAppliedId();
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if(!tasks.exists(file)) {
+                if(baseId != null) {
+                    // the index will be rebuilt from the unit paths
+                    return;
+                }
+                bytes.write(header(env.getEnvironmentHome().getAbsolutePath()));
+            }
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DELTA);
+            out.writeUTF(recordId);
+            out.writeUTF(baseId == null ? "" : baseId);
+            final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            final DataOutputStream entriesOut = new DataOutputStream(entries);
+            int count = 0;
+            for(String unitName : env.getUnitNames()) {
+                if(updatedEnv.getUnitEnvironment(unitName) == null) {
+                    writeEntry(entriesOut, REMOVE_OWNER, unitName, null);
+                    ++count;
+                }
+            }
+            for(Map.Entry<String, ApplicationContextImpl.Journal> unitJournal : journal.entrySet()) {
+                final String unitName = unitJournal.getKey();
+                final ProvisionUnitEnvironment unitEnv = updatedEnv.getUnitEnvironment(unitName);
+                if(unitEnv == null) {
+                    if(env.getUnitEnvironment(unitName) == null) {
+                        writeEntry(entriesOut, REMOVE_OWNER, unitName, null);
+                        ++count;
+                    }
+                    continue;
+                }
+                for(ContentPath path : unitJournal.getValue().deleted) {
+                    writeEntry(entriesOut, REMOVE, unitName, unitEnv.resolvePath(path).getAbsolutePath());
+                    ++count;
+                }
+                for(ContentPath path : unitJournal.getValue().added) {
+                    writeEntry(entriesOut, ADD, unitName, unitEnv.resolvePath(path).getAbsolutePath());
+                    ++count;
+                }
+            }
+            out.writeInt(count);
+            entries.writeTo(out);
+            out.flush();
+            tasks.append(bytes.toByteArray(), file);
+        } catch(IOException e) {
+            throw ProvisionErrors.failedToUpdateHistory(e);
+        }
+    }
+
+    /**
+     * Schedules the delta of the record to be removed from the index.
+     * If the index does not end with the delta of the record, the index
+     * is deleted and will be rebuilt from the unit paths.
+     *
+     * @param tasks  file system image
+     * @param history  environment history
+     * @param recordId  id of the record which is rolled back
+     */
+    static void scheduleRollback(FSImage tasks, ProvisionEnvironmentHistory history, String recordId) {
+        assert tasks != null : ProvisionErrors.nullArgument("tasks");
+        assert history != null : ProvisionErrors.nullArgument("history");
+        assert recordId != null : ProvisionErrors.nullArgument("recordId");
+        final File file = history.getPathsOwnershipFile();
+        try {
+            final byte[] bytes = tasks.readBytes(file);
+            if(bytes == null) {
+                return;
+            }
+            final PathsOwnershipIndex index = parse(file, bytes);
+            if(recordId.equals(index.stamp) && index.baseStamp != null && !index.baseStamp.isEmpty()) {
+                tasks.write(Arrays.copyOf(bytes, index.blockOffsets.get(index.blockOffsets.size() - 1)), file);
+                return;
+            }
+        } catch(IOException e) {
+            // delete it
+        }
+        tasks.delete(file);
+    }
+
+    private static PathsOwnership build(ProvisionEnvironment env) throws ProvisionException {
+        final PathsOwnership pathsOwnership = new PathsOwnership();
+        for(String unitName : env.getUnitNames()) {
+            final ProvisionUnitEnvironment unitEnv = env.getUnitEnvironment(unitName);
+            for(ContentPath path : unitEnv.getContentPaths()) {
+                pathsOwnership.addOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName);
+            }
+        }
+        return pathsOwnership;
+    }
+
+    /**
+     * Replaces the blocks preceding the latest deltas with a snapshot.
+     */
+    private static void compact(File file, byte[] bytes, PathsOwnershipIndex index) {
+        final int snapshotEnd = index.blockOffsets.get(index.blockOffsets.size() - KEEP_DELTAS);
+        try {
+            final PathsOwnershipIndex base = parse(file, Arrays.copyOf(bytes, snapshotEnd));
+            final ByteArrayOutputStream compacted = new ByteArrayOutputStream();
+            compacted.write(header(index.envHome));
+            compacted.write(snapshot(base.stamp, base.ownership));
+            compacted.write(bytes, snapshotEnd, bytes.length - snapshotEnd);
+            store(file, compacted.toByteArray());
+        } catch(IOException e) {
+            // try next time
+            e.printStackTrace();
+        }
+    }
+
+    private static PathsOwnershipIndex parse(File file, byte[] bytes) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unsupported paths ownership index format " + file.getAbsolutePath());
+        }
+        final PathsOwnershipIndex index = new PathsOwnershipIndex(in.readUTF());
+        final PathTrie paths = PathTrie.forFileSystem();
+        int offset = bytes.length - in.available();
+        while(true) {
+            final byte type;
+            try {
+                type = in.readByte();
+            } catch(EOFException e) {
+                break;
+            }
+            final String stamp = in.readUTF();
+            if(type == SNAPSHOT) {
+                index.ownership = new PathsOwnership();
+                index.blockOffsets.clear();
+                index.baseStamp = null;
+            } else if(type == DELTA) {
+                final String baseStamp = in.readUTF();
+                if(!baseStamp.equals(index.stamp == null ? "" : index.stamp)) {
+                    throw new IOException("Paths ownership index " + file.getAbsolutePath() + " is out of sync with the history");
+                }
+                index.baseStamp = baseStamp;
+                index.blockOffsets.add(offset);
+            } else {
+                throw new IOException("Unexpected block type " + type + " in " + file.getAbsolutePath());
+            }
+            int count = in.readInt();
+            while(count-- > 0) {
+                final byte op = in.readByte();
+                final String owner = index.getOwner(in.readUTF());
+                if(op == ADD) {
+                    index.ownership.addOwner(paths.intern(in.readUTF()), owner);
+                } else if(op == REMOVE) {
+                    index.ownership.removeOwner(paths.intern(in.readUTF()), owner);
+                } else if(op == REMOVE_OWNER) {
+                    index.ownership.removeOwner(owner);
+                } else {
+                    throw new IOException("Unexpected entry type " + op + " in " + file.getAbsolutePath());
+                }
+            }
+            index.stamp = stamp;
+            offset = bytes.length - in.available();
+        }
+        return index;
+    }
+
+    private static byte[] header(String envHome) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(envHome);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] snapshot(String stamp, PathsOwnership ownership) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SNAPSHOT);
+        out.writeUTF(stamp == null ? "" : stamp);
+        int count = 0;
+        for(PathsOwnership.PathOwnership pathOwnership : ownership.getOwnerships().values()) {
+            count += pathOwnership.getOwners().size();
+        }
+        out.writeInt(count);
+        for(Map.Entry<PathTrie.Node, PathsOwnership.PathOwnership> entry : ownership.getOwnerships().entrySet()) {
+            final String path = entry.getKey().getPath();
+            for(String owner : entry.getValue().getOwners()) {
+                writeEntry(out, ADD, owner, path);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeEntry(DataOutputStream out, byte op, String owner, String path) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(owner);
+        if(path != null) {
+            out.writeUTF(path);
+        }
+    }
+
+    private static void store(File file, byte[] bytes) throws IOException {
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes);
+            raf.close();
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+        IoUtils.move(tmp, file);
+    }
+
+    private final String envHome;
+    private PathsOwnership ownership = new PathsOwnership();
+    /** the owners ever added, the same owner is represented by the same string */
+    private final Map<String, String> owners = new HashMap<String, String>();
+    /** offsets of the deltas following the last snapshot */
+    private final List<Integer> blockOffsets = new ArrayList<Integer>();
+    private String stamp;
+    private String baseStamp;
+
+    private PathsOwnershipIndex(String envHome) {
+        this.envHome = envHome;
+    }
+
+    private String getOwner(String name) {
+        final String owner = owners.get(name);
+        if(owner != null) {
+            return owner;
+        }
+        owners.put(name, name);
+        return name;
+    }
+}
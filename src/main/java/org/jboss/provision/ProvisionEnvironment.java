@@ -35,6 +35,7 @@ import org.jboss.provision.info.ProvisionEnvironmentInfo;
 import org.jboss.provision.info.ProvisionUnitInfo;
 import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
 import org.jboss.provision.instruction.ProvisionUnitInstruction;
+import org.jboss.provision.io.FSImage;
 import org.jboss.provision.io.IoUtils;
 
 /**
@@ -46,11 +47,7 @@ public class ProvisionEnvironment extends ProvisionEnvironmentBase {
     public static final String DEF_HISTORY_DIR = ".pvh";
 
     public static ProvisionEnvironment load(File home) throws ProvisionException {
-        final File historyDir = ProvisionEnvironmentHistory.getDefaultHistoryDir(home);
-        if(!ProvisionEnvironmentHistory.storesHistory(historyDir)) {
-            throw ProvisionErrors.noHistoryRecordedUntilThisPoint();
-        }
-        return new ProvisionEnvironmentHistory(historyDir).getCurrentEnvironment();
+        return builder().setEnvironmentHome(home).load();
     }
 
     public static ProvisionEnvironmentBuilder builder() {
@@ -68,6 +65,14 @@ public class ProvisionEnvironment extends ProvisionEnvironmentBase {
     private final File envHome;
     private Map<String, ProvisionUnitEnvironment> unitEnvs;
     private PathsOwnership pathsOwnership;
+    private boolean extractPackages;
+    private int commitParallelism;
+    private int extractParallelism;
+    private int planningParallelism;
+    private boolean verifyContent;
+    private FSImage.Durability durability;
+    private ProvisionListener listener;
+    private ProvisionEnvironmentHistory history;
 
     ProvisionEnvironment(ProvisionEnvironmentBuilder builder) throws ProvisionException {
         super(builder.namedLocations, builder.defaultUnitUpdatePolicy);
@@ -76,6 +81,7 @@ public class ProvisionEnvironment extends ProvisionEnvironmentBase {
         assert builder.unitHomes != null : ProvisionErrors.nullArgument("unitHome");
         assert builder.unitUpdatePolicies != null : ProvisionErrors.nullArgument("unitUpdatePolicies");
         this.envHome = builder.envHome;
+        initRuntimeSettings(builder);
 
         if(builder.unitInfos.isEmpty()) {
             unitEnvs = Collections.emptyMap();
@@ -98,6 +104,60 @@ public class ProvisionEnvironment extends ProvisionEnvironmentBase {
         super(env.getNamedLocations(), env.getUpdatePolicy());
         this.envHome = env.envHome;
         this.unitEnvs = new HashMap<String, ProvisionUnitEnvironment>(env.unitEnvs);
+        this.extractPackages = env.extractPackages;
+        this.commitParallelism = env.commitParallelism;
+        this.extractParallelism = env.extractParallelism;
+        this.planningParallelism = env.planningParallelism;
+        this.verifyContent = env.verifyContent;
+        this.durability = env.durability;
+        this.listener = env.listener;
+    }
+
+    /**
+     * Runtime settings are not persisted in the history,
+     * they survive {@link #reset(ProvisionEnvironment)} though.
+     */
+    void initRuntimeSettings(ProvisionEnvironmentBuilder builder) {
+        this.extractPackages = builder.extractPackages;
+        this.commitParallelism = builder.commitParallelism;
+        this.extractParallelism = builder.extractParallelism;
+        this.planningParallelism = builder.planningParallelism;
+        this.verifyContent = builder.verifyContent;
+        this.durability = builder.durability;
+        this.listener = builder.listener;
+    }
+
+    int getCommitParallelism() {
+        return commitParallelism;
+    }
+
+    int getPlanningParallelism() {
+        return planningParallelism;
+    }
+
+    boolean isVerifyContent() {
+        return verifyContent;
+    }
+
+    FSImage.Durability getDurability() {
+        return durability;
+    }
+
+    ProvisionListener getListener() {
+        return listener;
+    }
+
+    long phaseStarted(ProvisionListener.Phase phase) {
+        if(listener != null) {
+            listener.phaseStarted(phase);
+        }
+        return System.nanoTime();
+    }
+
+    void phaseEnded(ProvisionListener.Phase phase, long startedAt) {
+        if(listener != null) {
+            listener.phaseEnded(phase, System.nanoTime() - startedAt);
+        }
     }
 
     @Override
@@ -148,94 +208,170 @@ public class ProvisionEnvironment extends ProvisionEnvironmentBase {
     }
 
     public Iterator<ProvisionEnvironmentInfo> environmentHistory() throws ProvisionException {
+        resumeHistoryCompaction();
         return getHistory().environmentIterator();
     }
 
     public Iterator<ProvisionUnitInfo> unitHistory(String unitName) throws ProvisionException {
+        resumeHistoryCompaction();
         return getHistory().unitIterator(unitName);
     }
 
     public void apply(File packageFile) throws ProvisionException {
         assert packageFile != null : ProvisionErrors.nullArgument("packageFile");
-        ContentSource expandedZip = null;
+        resumeHistoryCompaction();
+        ContentSource pkgContent = null;
         try {
-            expandedZip = ContentSource.expandedZip(packageFile);
-            final ProvisionEnvironmentInstruction instruction = ApplicationContextImpl.readInstruction(this, expandedZip, packageFile);
+            pkgContent = openPackage(packageFile);
             final ApplicationContextImpl appCtx = new ApplicationContextImpl(this);
+            schedulePackage(appCtx, packageFile, pkgContent);
+            reset(commit(appCtx));
+        } finally {
+            IoUtils.safeClose(pkgContent);
+        }
+    }
 
-            for(String unitName : instruction.getUnitNames()) {
-                final ProvisionUnitInstruction unitInstr = instruction.getUnitInstruction(unitName);
-                if(unitInstr.isVersionUpdate()) {
-                    final ProvisionUnitEnvironment unitEnv = getUnitEnvironment(unitName);
-                    if(unitEnv == null) {
-                        throw ProvisionErrors.unitIsNotInstalled(unitName);
-                    }
-                    int patchesTotal = unitEnv.getUnitInfo().getPatches().size();
-                    if(patchesTotal == 0) {
-                        continue;
-                    }
-                    final ProvisionEnvironmentHistory history = getHistory();
-                    final EnvInstructionHistory envInstrHistory = history.getEnvInstructionHistory();
-                    final UnitInstructionHistory unitHistory = UnitInstructionHistory.getInstance(envInstrHistory, unitName);
-                    UnitRecord unitRecord = unitHistory.loadLast();
-                    while(patchesTotal > 0 && unitRecord != null) {
-                        final EnvInstructionHistory.EnvRecord envRecord = envInstrHistory.loadRecord(unitRecord.getRecordDir().getName());
-                        envRecord.assertRollbackForUnit(unitName);
-                        appCtx.schedule(envRecord.getRollbackInstruction(), envRecord.getBackup());
-                        unitRecord = unitRecord.getPrevious();
-                        --patchesTotal;
-                    }
-                } else if(unitInstr.getRequiredVersion() == null && this.unitEnvs.containsKey(unitName)) {
-                    appCtx.scheduleUninstall(unitName);
+    /**
+     * Schedules the package the same way {@link #apply(File)} does but instead
+     * of committing the changes describes them. Neither the installation nor
+     * the history of the environment is modified.
+     *
+     * @param packageFile  package to plan
+     * @return  the changes applying the package would make
+     * @throws ProvisionException  in case the package can't be applied to the environment
+     *                             for a reason other than a conflicting path
+     */
+    public ProvisionPlan plan(File packageFile) throws ProvisionException {
+        assert packageFile != null : ProvisionErrors.nullArgument("packageFile");
+        resumeHistoryCompaction();
+        ContentSource pkgContent = null;
+        try {
+            pkgContent = openPackage(packageFile);
+            final ApplicationContextImpl appCtx = new ApplicationContextImpl(this, new ProvisionPlan());
+            schedulePackage(appCtx, packageFile, pkgContent);
+            return appCtx.plan();
+        } finally {
+            // the ownership has been updated while planning
+            pathsOwnership = null;
+            IoUtils.safeClose(pkgContent);
+        }
+    }
+
+    private ContentSource openPackage(File packageFile) throws ProvisionException {
+        final long startedAt = phaseStarted(ProvisionListener.Phase.EXTRACT);
+        final ContentSource pkgContent = extractPackages ?
+                ContentSource.expandedZip(packageFile, extractParallelism) : ContentSource.forZip(packageFile);
+        phaseEnded(ProvisionListener.Phase.EXTRACT, startedAt);
+        return pkgContent;
+    }
+
+    private void schedulePackage(ApplicationContextImpl appCtx, File packageFile, ContentSource pkgContent) throws ProvisionException {
+        long startedAt = phaseStarted(ProvisionListener.Phase.PARSE);
+        final ProvisionEnvironmentInstruction instruction = ApplicationContextImpl.readInstruction(this, pkgContent, packageFile);
+        phaseEnded(ProvisionListener.Phase.PARSE, startedAt);
+
+        startedAt = phaseStarted(ProvisionListener.Phase.PLAN);
+        for(String unitName : instruction.getUnitNames()) {
+            final ProvisionUnitInstruction unitInstr = instruction.getUnitInstruction(unitName);
+            if(unitInstr.isVersionUpdate()) {
+                final ProvisionUnitEnvironment unitEnv = getUnitEnvironment(unitName);
+                if(unitEnv == null) {
+                    throw ProvisionErrors.unitIsNotInstalled(unitName);
+                }
+                int patchesTotal = unitEnv.getUnitInfo().getPatches().size();
+                if(patchesTotal == 0) {
+                    continue;
                 }
+                final ProvisionEnvironmentHistory history = getHistory();
+                final EnvInstructionHistory envInstrHistory = history.getEnvInstructionHistory();
+                final UnitInstructionHistory unitHistory = UnitInstructionHistory.getInstance(envInstrHistory, unitName);
+                UnitRecord unitRecord = unitHistory.loadLast();
+                while(patchesTotal > 0 && unitRecord != null) {
+                    final EnvInstructionHistory.EnvRecord envRecord = envInstrHistory.loadRecord(unitRecord.getRecordDir().getName());
+                    envRecord.assertRollbackForUnit(unitName);
+                    appCtx.schedule(envRecord.getRollbackInstruction(), envRecord.getBackup());
+                    unitRecord = unitRecord.getPrevious();
+                    --patchesTotal;
+                }
+            } else if(unitInstr.getRequiredVersion() == null && this.unitEnvs.containsKey(unitName)) {
+                appCtx.scheduleUninstall(unitName);
             }
-
-            appCtx.schedule(instruction, expandedZip);
-            reset(appCtx.commit());
-        } finally {
-            IoUtils.safeClose(expandedZip);
         }
+
+        appCtx.schedule(instruction, pkgContent);
+        phaseEnded(ProvisionListener.Phase.PLAN, startedAt);
+    }
+
+    private ProvisionEnvironment commit(ApplicationContextImpl appCtx) throws ProvisionException {
+        final long startedAt = phaseStarted(ProvisionListener.Phase.COMMIT);
+        final ProvisionEnvironment updatedEnv = appCtx.commit();
+        phaseEnded(ProvisionListener.Phase.COMMIT, startedAt);
+        return updatedEnv;
     }
 
     public void rollbackLast() throws ProvisionException {
+        resumeHistoryCompaction();
         final EnvInstructionHistory.EnvRecord record = getHistory().getLastEnvironmentRecord();
         if(record == null) {
             throw ProvisionErrors.noHistoryRecordedUntilThisPoint();
         }
         final ProvisionEnvironmentInstruction rollback = record.getRollbackInstruction();
         final ApplicationContextImpl appCtx = new ApplicationContextImpl(this, false);
+        final long startedAt = phaseStarted(ProvisionListener.Phase.PLAN);
         appCtx.schedule(rollback, record.getBackup());
-        reset(appCtx.commit());
+        phaseEnded(ProvisionListener.Phase.PLAN, startedAt);
+        reset(commit(appCtx));
     }
 
     public void uninstall(String unitName) throws ProvisionException {
+        resumeHistoryCompaction();
         final ApplicationContextImpl appCtx = new ApplicationContextImpl(this, true);
+        final long startedAt = phaseStarted(ProvisionListener.Phase.PLAN);
         appCtx.scheduleUninstall(unitName);
-        reset(appCtx.commit());
+        phaseEnded(ProvisionListener.Phase.PLAN, startedAt);
+        reset(commit(appCtx));
+    }
+
+    /**
+     * Squashes the records of the history preceding the given number of the latest records
+     * into one record. The environment can still be rolled back through the squashed record
+     * but not to the states in between the squashed records.
+     * The records of the patches that haven't been reverted yet are not squashed.
+     *
+     * @param retainedRecords  the number of the latest records to keep as they are
+     * @return  the number of records removed from the history
+     * @throws ProvisionException  in case of a failure
+     */
+    public int compactHistory(int retainedRecords) throws ProvisionException {
+        final int removed = HistoryCompaction.compact(this, retainedRecords);
+        history = null;
+        return removed;
+    }
+
+    private void resumeHistoryCompaction() throws ProvisionException {
+        HistoryCompaction.resume(getHistory().getHistoryHome());
     }
 
     ProvisionEnvironmentHistory getHistory() {
-        return ProvisionEnvironmentHistory.getInstance(this);
+        if(history == null) {
+            history = ProvisionEnvironmentHistory.getInstance(this);
+        }
+        return history;
     }
 
     PathsOwnership getPathsOwnership() throws ProvisionException {
         if(pathsOwnership != null) {
             return pathsOwnership;
         }
-        final PathsOwnership pathsOwnership = new PathsOwnership();
-        for(ProvisionUnitEnvironment unitEnv : unitEnvs.values()) {
-            final String unitName = unitEnv.getUnitInfo().getName();
-            for(ContentPath path : unitEnv.getContentPaths()) {
-                pathsOwnership.addOwner(unitEnv.resolvePath(path).getAbsolutePath(), unitName);
-            }
-        }
-        this.pathsOwnership = pathsOwnership;
+        pathsOwnership = PathsOwnershipIndex.load(this);
         return pathsOwnership;
     }
 
     protected void reset(ProvisionEnvironment env) {
         super.reset(env);
         this.unitEnvs = env.unitEnvs;
+        // the history has been updated
+        this.history = null;
     }
 
     @Override
@@ -22,6 +22,7 @@
 package org.jboss.provision;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -30,6 +31,7 @@ import java.util.Map;
 
 import org.jboss.provision.info.ContentPath;
 import org.jboss.provision.info.ProvisionUnitInfo;
+import org.jboss.provision.io.FSImage;
 
 /**
  *
@@ -43,6 +45,13 @@ public class ProvisionEnvironmentBuilder {
     UnitUpdatePolicy defaultUnitUpdatePolicy = UnitUpdatePolicy.CONDITIONED;
     Map<String, UnitUpdatePolicy> unitUpdatePolicies = Collections.emptyMap();
     Map<String, ProvisionUnitInfo> unitInfos = Collections.emptyMap();
+    boolean extractPackages = true;
+    int commitParallelism = 1;
+    int extractParallelism = Runtime.getRuntime().availableProcessors();
+    int planningParallelism = 1;
+    boolean verifyContent;
+    FSImage.Durability durability = FSImage.Durability.NONE;
+    ProvisionListener listener;
 
     ProvisionEnvironmentBuilder() {
     }
@@ -188,6 +197,143 @@ public class ProvisionEnvironmentBuilder {
         return this;
     }
 
+    /**
+     * Whether a package should be expanded into a temporary directory before
+     * it is applied (the default) or its content should be written
+     * to the environment directly from the package.
+     *
+     * @param extractPackages  whether to expand packages before applying them
+     * @return  this builder
+     */
+    public ProvisionEnvironmentBuilder setExtractPackages(boolean extractPackages) {
+        this.extractPackages = extractPackages;
+        return this;
+    }
+
+    /**
+     * The max number of independent file system tasks executed concurrently
+     * when changes are committed to the environment. The default is 1,
+     * i.e. the tasks are executed one after another.
+     *
+     * @param commitParallelism  the max number of concurrently executed tasks
+     * @return  this builder
+     */
+    public ProvisionEnvironmentBuilder setCommitParallelism(int commitParallelism) {
+        if(commitParallelism < 1) {
+            throw new IllegalArgumentException("commitParallelism must be greater than 0: " + commitParallelism);
+        }
+        this.commitParallelism = commitParallelism;
+        return this;
+    }
+
+    /**
+     * The number of threads extracting the content of a package when
+     * packages are expanded before they are applied, see {@link #setExtractPackages(boolean)}.
+     * The default is the number of available processors.
+     *
+     * @param extractParallelism  the number of extracting threads
+     * @return  this builder
+     */
+    public ProvisionEnvironmentBuilder setExtractParallelism(int extractParallelism) {
+        if(extractParallelism < 1) {
+            throw new IllegalArgumentException("extractParallelism must be greater than 0: " + extractParallelism);
+        }
+        this.extractParallelism = extractParallelism;
+        return this;
+    }
+
+    /**
+     * The max number of units of an instruction whose content is hashed concurrently
+     * when the changes to the environment are planned. The units are then scheduled
+     * one after another in the order of the instruction. The default is 1,
+     * i.e. the units are planned one after another.
+     *
+     * @param planningParallelism  the max number of units planned concurrently
+     * @return  this builder
+     */
+    public ProvisionEnvironmentBuilder setPlanningParallelism(int planningParallelism) {
+        if(planningParallelism < 1) {
+            throw new IllegalArgumentException("planningParallelism must be greater than 0: " + planningParallelism);
+        }
+        this.planningParallelism = planningParallelism;
+        return this;
+    }
+
+    /**
+     * In the verify mode the hashes of the content of the environment are
+     * always calculated from the files on the disk. Otherwise, the hashes of
+     * the files that haven't changed since they were last hashed are taken
+     * from the hash cache kept in the history of the environment.
+     *
+     * @param verifyContent  whether the hash cache should be bypassed
+     * @return  this builder
+     */
+    public ProvisionEnvironmentBuilder setVerifyContent(boolean verifyContent) {
+        this.verifyContent = verifyContent;
+        return this;
+    }
+
+    /**
+     * How the changes are synced to the disk when they are committed to the environment.
+     * The default is {@link FSImage.Durability#NONE}, which leaves it to the operating system.
+     * {@link FSImage.Durability#BATCHED} syncs all the backups and then all the updated
+     * files and their directories at once, which makes the result of a completed commit
+     * survive a power loss. {@link FSImage.Durability#STRICT} syncs every file as soon as
+     * it is written, which is the slowest.
+     *
+     * @param durability  durability mode
+     * @return  this builder
+     */
+    public ProvisionEnvironmentBuilder setDurability(FSImage.Durability durability) {
+        assert durability != null : ProvisionErrors.nullArgument("durability");
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * The listener notified of the phases of the operations performed on the environment,
+     * their durations and the amount of the content they processed.
+     * {@link ProvisionMetricsCollector} collects the events into a summary.
+     *
+     * @param listener  listener or null
+     * @return  this builder
+     */
+    public ProvisionEnvironmentBuilder setListener(ProvisionListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Loads the environment from the history recorded under the environment home
+     * applying the runtime settings of this builder, such as
+     * {@link #setExtractPackages(boolean)}, {@link #setCommitParallelism(int)}, {@link #setPlanningParallelism(int)},
+     * {@link #setVerifyContent(boolean)}, {@link #setDurability(FSImage.Durability)} and {@link #setListener(ProvisionListener)}, to it.
+     *
+     * @return  the current state of the environment
+     * @throws ProvisionException  in case the environment could not be loaded
+     */
+    public ProvisionEnvironment load() throws ProvisionException {
+        if(envHome == null) {
+            throw new ProvisionException(ProvisionErrors.nullArgument("envHome"));
+        }
+        final File historyDir = ProvisionEnvironmentHistory.getDefaultHistoryDir(envHome);
+        if(historyDir.isDirectory()) {
+            final File journal = new ProvisionEnvironmentHistory(historyDir).getCommitJournalFile();
+            try {
+                FSImage.recover(journal);
+            } catch (IOException e) {
+                throw ProvisionErrors.failedToRecoverCommit(journal, e);
+            }
+            HistoryCompaction.resume(historyDir);
+        }
+        if(!ProvisionEnvironmentHistory.storesHistory(historyDir)) {
+            throw ProvisionErrors.noHistoryRecordedUntilThisPoint();
+        }
+        final ProvisionEnvironment env = new ProvisionEnvironmentHistory(historyDir).getCurrentEnvironment();
+        env.initRuntimeSettings(this);
+        return env;
+    }
+
     public ProvisionEnvironment build() throws ProvisionException {
         if(envHome == null) {
             throw new ProvisionException(ProvisionErrors.nullArgument("envHome"));
@@ -22,19 +22,52 @@
 
 package org.jboss.provision;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+
 import org.jboss.provision.UnitInstructionHistory.UnitRecord;
+import org.jboss.provision.info.ContentPath;
 import org.jboss.provision.info.ProvisionEnvironmentInfo;
 import org.jboss.provision.info.ProvisionUnitInfo;
+import org.jboss.provision.io.IoUtils;
 
 /**
+ * The history of an environment.
+ *
+ * An instance memoizes what it reads from the history, such as the current
+ * environment and the current content paths of the units, for as long as
+ * the history log remains unchanged. The current environment is also stored
+ * in a snapshot file stamped with the id of the last record, so that it can be
+ * loaded with a single read instead of reading the records of every unit.
  *
  * @author Alexey Loubyansky
  */
 class ProvisionEnvironmentHistory {
 
+    private static final String HASH_CACHE = "hashes.cache";
+    private static final String PATHS_OWNERSHIP = "ownership.idx";
+    static final String CONTENT_STORE = "blobs";
+    private static final String COMMIT_JOURNAL = "commit.journal";
+    private static final String SNAPSHOT = "env.snapshot";
+
+    private static final int SNAPSHOT_MAGIC = 0x5056534e; // PVSN
+    private static final int SNAPSHOT_VERSION = 1;
+
     static File getDefaultHistoryDir(File envHome) {
         return new File(envHome, ProvisionEnvironment.DEF_HISTORY_DIR);
     }
@@ -64,31 +97,187 @@ class ProvisionEnvironmentHistory {
     }
 
     private final File historyHome;
+    private final EnvInstructionHistory envInstrHistory;
+    private final File logFile;
+    private long logLength = -1;
+    private long logLastModified;
+    private ProvisionEnvironment currentEnv;
+    private Map<String, Collection<ContentPath>> unitPaths = Collections.emptyMap();
 
     protected ProvisionEnvironmentHistory(File historyHome) {
         assert historyHome != null : ProvisionErrors.nullArgument("historyHome");
         this.historyHome = historyHome;
+        this.envInstrHistory = EnvInstructionHistory.getInstance(historyHome);
+        this.logFile = new File(historyHome, HistoryLog.FILE_NAME);
+    }
+
+    /**
+     * Forgets what has been read from the history.
+     */
+    void invalidate() {
+        currentEnv = null;
+        unitPaths = Collections.emptyMap();
+        logLength = -1;
+    }
+
+    /**
+     * Invalidates the memoized state if the history log has changed since it was read.
+     */
+    private void checkLog() {
+        final long length = logFile.length();
+        final long lastModified = logFile.lastModified();
+        if(length != logLength || lastModified != logLastModified) {
+            invalidate();
+            logLength = length;
+            logLastModified = lastModified;
+        }
     }
 
     File getHistoryHome() {
         return historyHome;
     }
 
+    File getHashCacheFile() {
+        return new File(historyHome, HASH_CACHE);
+    }
+
+    File getContentStoreDir() {
+        return new File(historyHome, CONTENT_STORE);
+    }
+
+    File getCommitJournalFile() {
+        return new File(historyHome, COMMIT_JOURNAL);
+    }
+
+    File getPathsOwnershipFile() {
+        return new File(historyHome, PATHS_OWNERSHIP);
+    }
+
     EnvInstructionHistory getEnvInstructionHistory() {
-        return EnvInstructionHistory.getInstance(historyHome);
+        return envInstrHistory;
     }
 
+    /**
+     * The environment as of the last record. The returned instance is not shared,
+     * the caller may apply its own runtime settings to it.
+     */
     ProvisionEnvironment getCurrentEnvironment() throws ProvisionException {
-        final EnvInstructionHistory.EnvRecord appliedInstr = EnvInstructionHistory.getInstance(historyHome).loadLastApplied();
-        return appliedInstr == null ? null : appliedInstr.getUpdatedEnvironment();
+        checkLog();
+        if(currentEnv == null) {
+            final String lastId = envInstrHistory.getLastAppliedId();
+            if(lastId == null) {
+                return null;
+            }
+            currentEnv = loadSnapshot(lastId);
+            if(currentEnv == null) {
+                currentEnv = envInstrHistory.loadRecord(lastId).getUpdatedEnvironment();
+                storeSnapshot(lastId, currentEnv);
+            }
+        }
+        return new ProvisionEnvironment(currentEnv);
     }
 
     EnvInstructionHistory.EnvRecord getLastEnvironmentRecord() throws ProvisionException {
-        return EnvInstructionHistory.getInstance(historyHome).loadLastApplied();
+        return envInstrHistory.loadLastApplied();
     }
 
     UnitInstructionHistory.UnitRecord getLastUnitRecord(String unitName) throws ProvisionException {
-        return UnitInstructionHistory.getInstance(EnvInstructionHistory.getInstance(historyHome), unitName).loadLast();
+        return UnitInstructionHistory.getInstance(envInstrHistory, unitName).loadLast();
+    }
+
+    /**
+     * The content paths of the unit as of the last record.
+     */
+    Collection<ContentPath> getUnitContentPaths(String unitName) throws ProvisionException {
+        checkLog();
+        Collection<ContentPath> paths = unitPaths.get(unitName);
+        if(paths != null) {
+            return paths;
+        }
+        final UnitRecord unitRecord = getLastUnitRecord(unitName);
+        if(unitRecord == null) {
+            paths = Collections.emptySet();
+        } else {
+            paths = Collections.unmodifiableSet(unitRecord.loadPaths());
+        }
+        switch(unitPaths.size()) {
+            case 0:
+                unitPaths = Collections.singletonMap(unitName, paths);
+                break;
+            case 1:
+                unitPaths = new HashMap<String, Collection<ContentPath>>(unitPaths);
+            default:
+                unitPaths.put(unitName, paths);
+        }
+        return paths;
+    }
+
+    /**
+     * Stores the environment in the snapshot file. The snapshot is only an optimization,
+     * it is ignored if it does not match the last record, so a failure to store it is not fatal.
+     *
+     * @param recordId  the id of the last record
+     * @param env  the environment as of the record
+     */
+    void storeSnapshot(String recordId, ProvisionEnvironment env) {
+        if(!historyHome.exists()) {
+            return;
+        }
+        final File snapshot = new File(historyHome, SNAPSHOT);
+        final File tmp = new File(historyHome, SNAPSHOT + ".tmp");
+        try {
+            final Set<String> unitNames = env.getUnitNames();
+            final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeUTF(recordId);
+                writeProperties(out, EnvPersistUtil.toProperties(env, false));
+                out.writeInt(unitNames.size());
+                for(String unitName : unitNames) {
+                    writeProperties(out, EnvPersistUtil.toProperties(env.getUnitEnvironment(unitName)));
+                }
+                out.close();
+            } finally {
+                IoUtils.safeClose(out);
+            }
+            IoUtils.move(tmp, snapshot);
+        } catch (IOException | ProvisionException e) {
+            IoUtils.recursiveDelete(tmp);
+            IoUtils.recursiveDelete(snapshot);
+        }
+    }
+
+    /**
+     * @return  the environment stored in the snapshot or null if the snapshot does not match the record
+     */
+    private ProvisionEnvironment loadSnapshot(String recordId) throws ProvisionException {
+        final File snapshot = new File(historyHome, SNAPSHOT);
+        if(!snapshot.exists()) {
+            return null;
+        }
+        final ProvisionEnvironmentBuilder envBuilder = ProvisionEnvironment.builder();
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(snapshot.toPath())));
+            if(in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION || !recordId.equals(in.readUTF())) {
+                return null;
+            }
+            EnvPersistUtil.loadEnv(envBuilder, new StringReader(in.readUTF()));
+            int units = in.readInt();
+            while(units-- > 0) {
+                EnvPersistUtil.loadUnitEnv(envBuilder, new StringReader(in.readUTF()));
+            }
+        } catch (IOException e) {
+            // it is rebuilt from the records
+            return null;
+        }
+        return envBuilder.build();
+    }
+
+    private static void writeProperties(DataOutputStream out, Properties props) throws IOException {
+        final StringWriter writer = new StringWriter();
+        props.store(writer, null);
+        out.writeUTF(writer.toString());
     }
 
     Iterator<EnvInstructionHistory.EnvRecord> appliedInstructions() {
@@ -116,7 +305,7 @@ class ProvisionEnvironmentHistory {
                 }
                 try {
                     if (appliedInstr == null) {
-                        appliedInstr = EnvInstructionHistory.getInstance(historyHome).loadLastApplied();
+                        appliedInstr = envInstrHistory.loadLastApplied();
                     } else {
                         appliedInstr = appliedInstr.getPrevious();
                     }
@@ -153,7 +342,7 @@ class ProvisionEnvironmentHistory {
                 }
                 try {
                     if (record == null) {
-                        record = UnitInstructionHistory.getInstance(EnvInstructionHistory.getInstance(historyHome), unitName).loadLast();
+                        record = UnitInstructionHistory.getInstance(envInstrHistory, unitName).loadLast();
                     } else {
                         record = record.getPrevious();
                     }
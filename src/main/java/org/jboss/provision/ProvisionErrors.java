@@ -51,6 +51,14 @@ public class ProvisionErrors {
         return "Not a directory: " + f.getAbsolutePath();
     }
 
+    public static String fileChangedWhilePackaged(File f) {
+        return f.getAbsolutePath() + " changed while it was added to the package";
+    }
+
+    public static String fileTruncatedWhileCopied(File f, long expectedSize, long copied) {
+        return f.getAbsolutePath() + " ended after " + copied + " of the expected " + expectedSize + " bytes while it was copied";
+    }
+
     public static ProvisionException hashCalculationFailed(File f, IOException e) {
         return new ProvisionException("Failed to calculate hash for " + f.getAbsolutePath(), e);
     }
@@ -92,6 +100,14 @@ public class ProvisionErrors {
         return new ProvisionException("Failed to parse " + xml, e);
     }
 
+    public static ProvisionException failedToParse(String name, IOException e) {
+        return new ProvisionException("Failed to parse " + name, e);
+    }
+
+    public static ProvisionException unsupportedManifestFormat(File f, String line) {
+        return new ProvisionException("Unsupported content manifest format of " + f.getAbsolutePath() + ": " + line);
+    }
+
     public static ProvisionException unitAlreadyInstalled(String name, String version) {
         return new ProvisionException("Unit already installed " + name + "-" + version);
     }
@@ -217,7 +233,20 @@ public class ProvisionErrors {
         return new ProvisionException(unitName + " history is missing a record for environment instruction " + id);
     }
 
-    public static ProvisionException versionUpdateOverPatch(String unitName, String patchId, String updatedVersion) {
-        return new ProvisionException("Before " + updatedVersion + " of " + unitName + " can be installed, patch " + patchId + " has to be reverted.");
+    public static ProvisionException failedToRecoverCommit(File journal, IOException e) {
+        return new ProvisionException("Failed to recover the interrupted commit recorded in " + journal.getAbsolutePath(), e);
+    }
+
+    public static ProvisionException failedToCompactHistory(Throwable t) {
+        return new ProvisionException("Failed to compact environment history", t);
+    }
+
+    public static ProvisionException deltaBaseMismatch(File target, String expectedHash, String actualHash) {
+        return new ProvisionException("The package contains only the delta of " + target.getAbsolutePath() + " against the content with hash "
+                + expectedHash + " but the hash of the file is " + actualHash);
+    }
+
+    public static ProvisionException failedToApplyDelta(ContentPath path, File target, IOException e) {
+        return new ProvisionException("Failed to apply the delta of " + path.getRelativePath() + " to " + target.getAbsolutePath(), e);
     }
 }
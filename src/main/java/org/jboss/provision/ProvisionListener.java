@@ -0,0 +1,86 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision;
+
+/**
+ * Receives the events of the provisioning operations performed on
+ * an environment, registered with {@link ProvisionEnvironmentBuilder#setListener(ProvisionListener)}.
+ *
+ * The events are delivered on the thread performing the operation,
+ * a phase that fails is not reported as ended.
+ *
+ * @author Alexey Loubyansky
+ */
+public interface ProvisionListener {
+
+    enum Phase {
+        /** opening the package, the content may be extracted while the units are planned */
+        EXTRACT,
+        /** reading the instructions of the package, unless they were read when the package was extracted */
+        PARSE,
+        /** checking the environment against the instructions and scheduling the changes */
+        PLAN,
+        /** committing the scheduled changes, which consists of the backup, execute and cleanup phases */
+        COMMIT,
+        /** backing up the current content of the updated paths */
+        BACKUP,
+        /** writing and deleting the updated paths */
+        EXECUTE,
+        /** deleting the temporary backups */
+        CLEANUP
+    }
+
+    void phaseStarted(Phase phase);
+
+    void phaseEnded(Phase phase, long durationNanos);
+
+    /**
+     * Invoked once the changes of a unit have been scheduled.
+     *
+     * @param unitName  name of the unit
+     * @param durationNanos  time spent planning the unit, including waiting for its content
+     * @param pathsWritten  the number of paths of the unit scheduled to be written
+     * @param pathsDeleted  the number of paths of the unit scheduled to be deleted
+     */
+    void unitPlanned(String unitName, long durationNanos, int pathsWritten, int pathsDeleted);
+
+    /**
+     * Invoked once the changes have been committed. The counts include
+     * the files of the environment history.
+     *
+     * @param pathsWritten  the number of paths written
+     * @param pathsDeleted  the number of paths deleted
+     * @param bytesWritten  the number of bytes written
+     * @param bytesBackedUp  the number of bytes of the replaced and deleted content backed up
+     */
+    void committed(int pathsWritten, int pathsDeleted, long bytesWritten, long bytesBackedUp);
+
+    /**
+     * Invoked at the end of an operation that checked the content of the environment.
+     *
+     * @param cacheHits  the number of hashes found in the hash cache
+     * @param cacheMisses  the number of hashes calculated from the content
+     * @param bytesRead  the number of bytes read to calculate the hashes
+     */
+    void contentHashed(long cacheHits, long cacheMisses, long bytesRead);
+}
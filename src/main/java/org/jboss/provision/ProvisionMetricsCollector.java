@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Listener accumulating the events of the operations performed on
+ * the environments it is registered with, until it is {@link #reset()}.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ProvisionMetricsCollector implements ProvisionListener {
+
+    /**
+     * The durations of a phase.
+     */
+    public static class PhaseMetrics {
+        private int count;
+        private long totalNanos;
+        private long maxNanos;
+
+        void add(long durationNanos) {
+            ++count;
+            totalNanos += durationNanos;
+            if(durationNanos > maxNanos) {
+                maxNanos = durationNanos;
+            }
+        }
+
+        /**
+         * @return  the number of times the phase completed
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+
+    /**
+     * The planning of a unit.
+     */
+    public static class UnitMetrics {
+        private int count;
+        private long totalNanos;
+        private int pathsWritten;
+        private int pathsDeleted;
+
+        void add(long durationNanos, int pathsWritten, int pathsDeleted) {
+            ++count;
+            totalNanos += durationNanos;
+            this.pathsWritten += pathsWritten;
+            this.pathsDeleted += pathsDeleted;
+        }
+
+        /**
+         * @return  the number of times the unit was planned
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public int getPathsWritten() {
+            return pathsWritten;
+        }
+
+        public int getPathsDeleted() {
+            return pathsDeleted;
+        }
+    }
+
+    private Map<Phase, PhaseMetrics> phases = new EnumMap<Phase, PhaseMetrics>(Phase.class);
+    private Map<String, UnitMetrics> units = Collections.emptyMap();
+    private int commits;
+    private long pathsWritten;
+    private long pathsDeleted;
+    private long bytesWritten;
+    private long bytesBackedUp;
+    private long hashCacheHits;
+    private long hashCacheMisses;
+    private long bytesRead;
+
+    @Override
+    public void phaseStarted(Phase phase) {
+    }
+
+    @Override
+    public synchronized void phaseEnded(Phase phase, long durationNanos) {
+        PhaseMetrics metrics = phases.get(phase);
+        if(metrics == null) {
+            metrics = new PhaseMetrics();
+            phases.put(phase, metrics);
+        }
+        metrics.add(durationNanos);
+    }
+
+    @Override
+    public synchronized void unitPlanned(String unitName, long durationNanos, int pathsWritten, int pathsDeleted) {
+        UnitMetrics metrics = units.get(unitName);
+        if(metrics == null) {
+            metrics = new UnitMetrics();
+            switch(units.size()) {
+                case 0:
+                    units = Collections.singletonMap(unitName, metrics);
+                    break;
+                case 1:
+                    units = new LinkedHashMap<String, UnitMetrics>(units);
+                default:
+                    units.put(unitName, metrics);
+            }
+        }
+        metrics.add(durationNanos, pathsWritten, pathsDeleted);
+    }
+
+    @Override
+    public synchronized void committed(int pathsWritten, int pathsDeleted, long bytesWritten, long bytesBackedUp) {
+        ++commits;
+        this.pathsWritten += pathsWritten;
+        this.pathsDeleted += pathsDeleted;
+        this.bytesWritten += bytesWritten;
+        this.bytesBackedUp += bytesBackedUp;
+    }
+
+    @Override
+    public synchronized void contentHashed(long cacheHits, long cacheMisses, long bytesRead) {
+        this.hashCacheHits += cacheHits;
+        this.hashCacheMisses += cacheMisses;
+        this.bytesRead += bytesRead;
+    }
+
+    /**
+     * @param phase  phase
+     * @return  the durations of the phase or null if the phase has not completed yet
+     */
+    public synchronized PhaseMetrics getPhase(Phase phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * @param unitName  unit name
+     * @return  the planning of the unit or null if the unit has not been planned yet
+     */
+    public synchronized UnitMetrics getUnit(String unitName) {
+        return units.get(unitName);
+    }
+
+    public synchronized int getCommits() {
+        return commits;
+    }
+
+    public synchronized long getPathsWritten() {
+        return pathsWritten;
+    }
+
+    public synchronized long getPathsDeleted() {
+        return pathsDeleted;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized long getBytesBackedUp() {
+        return bytesBackedUp;
+    }
+
+    public synchronized long getHashCacheHits() {
+        return hashCacheHits;
+    }
+
+    public synchronized long getHashCacheMisses() {
+        return hashCacheMisses;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized void reset() {
+        phases = new EnumMap<Phase, PhaseMetrics>(Phase.class);
+        units = Collections.emptyMap();
+        commits = 0;
+        pathsWritten = 0;
+        pathsDeleted = 0;
+        bytesWritten = 0;
+        bytesBackedUp = 0;
+        hashCacheHits = 0;
+        hashCacheMisses = 0;
+        bytesRead = 0;
+    }
+
+    /**
+     * Prints the summary of the collected metrics.
+     *
+     * @param out  stream to print to
+     */
+    public synchronized void print(PrintStream out) {
+        for(Map.Entry<Phase, PhaseMetrics> entry : phases.entrySet()) {
+            final PhaseMetrics metrics = entry.getValue();
+            out.println("phase " + entry.getKey() + " completed " + metrics.count + " time(s), total " +
+                    toMillis(metrics.totalNanos) + " ms, max " + toMillis(metrics.maxNanos) + " ms");
+        }
+        for(Map.Entry<String, UnitMetrics> entry : units.entrySet()) {
+            final UnitMetrics metrics = entry.getValue();
+            out.println("unit " + entry.getKey() + " planned " + metrics.count + " time(s), total " +
+                    toMillis(metrics.totalNanos) + " ms, paths written " + metrics.pathsWritten + ", deleted " + metrics.pathsDeleted);
+        }
+        out.println("commits " + commits + ", paths written " + pathsWritten + ", deleted " + pathsDeleted +
+                ", bytes written " + bytesWritten + ", backed up " + bytesBackedUp);
+        out.println("hash cache hits " + hashCacheHits + ", misses " + hashCacheMisses + ", bytes read " + bytesRead);
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.provision.io.FSImage;
+
+/**
+ * The changes applying a package would make to the environment,
+ * as returned by {@link ProvisionEnvironment#plan(File)}.
+ *
+ * The plan lists every path that would be written or deleted, including
+ * the files of the environment history, along with the number of bytes
+ * written and backed up, the paths that conflict with the package
+ * and the paths that would change their owners.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ProvisionPlan {
+
+    /**
+     * A path whose current state does not match the state the package expects.
+     * Applying the package would fail.
+     */
+    public static class Conflict {
+        private final File path;
+        private final String message;
+
+        Conflict(File path, String message) {
+            this.path = path;
+            this.message = message;
+        }
+
+        public File getPath() {
+            return path;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return message;
+        }
+    }
+
+    /**
+     * A unit added to or removed from the owners of a path.
+     */
+    public static class OwnershipChange {
+        private final File path;
+        private final String unitName;
+        private final boolean added;
+        private final boolean stillOwned;
+
+        OwnershipChange(File path, String unitName, boolean added, boolean stillOwned) {
+            this.path = path;
+            this.unitName = unitName;
+            this.added = added;
+            this.stillOwned = stillOwned;
+        }
+
+        public File getPath() {
+            return path;
+        }
+
+        public String getUnitName() {
+            return unitName;
+        }
+
+        public boolean isAdded() {
+            return added;
+        }
+
+        /**
+         * Whether the path is still owned by other units or externally
+         * once the unit is removed from its owners.
+         */
+        public boolean isStillOwned() {
+            return stillOwned;
+        }
+
+        @Override
+        public String toString() {
+            return (added ? "+" : "-") + unitName + " " + path.getAbsolutePath();
+        }
+    }
+
+    private List<FSImage.ScheduledUpdate> updates = Collections.emptyList();
+    private List<Conflict> conflicts = Collections.emptyList();
+    private List<OwnershipChange> ownershipChanges = Collections.emptyList();
+
+    ProvisionPlan() {
+    }
+
+    void setUpdates(List<FSImage.ScheduledUpdate> updates) {
+        this.updates = updates;
+    }
+
+    void addConflict(File path, String message) {
+        final Conflict conflict = new Conflict(path, message);
+        switch(conflicts.size()) {
+            case 0:
+                conflicts = Collections.singletonList(conflict);
+                break;
+            case 1:
+                conflicts = new ArrayList<Conflict>(conflicts);
+            default:
+                conflicts.add(conflict);
+        }
+    }
+
+    void addOwnershipChange(File path, String unitName, boolean added, boolean stillOwned) {
+        final OwnershipChange change = new OwnershipChange(path, unitName, added, stillOwned);
+        switch(ownershipChanges.size()) {
+            case 0:
+                ownershipChanges = Collections.singletonList(change);
+                break;
+            case 1:
+                ownershipChanges = new ArrayList<OwnershipChange>(ownershipChanges);
+            default:
+                ownershipChanges.add(change);
+        }
+    }
+
+    /**
+     * The paths that would be written or deleted in the order they would be updated.
+     */
+    public List<FSImage.ScheduledUpdate> getUpdates() {
+        return updates;
+    }
+
+    public List<Conflict> getConflicts() {
+        return conflicts;
+    }
+
+    public boolean hasConflicts() {
+        return !conflicts.isEmpty();
+    }
+
+    public List<OwnershipChange> getOwnershipChanges() {
+        return ownershipChanges;
+    }
+
+    /**
+     * The total number of bytes that would be written. The content generated
+     * on commit, such as the environment history records, is not counted
+     * since its size is not known in advance.
+     */
+    public long getBytesToWrite() {
+        long total = 0;
+        for(FSImage.ScheduledUpdate update : updates) {
+            if(update.getContentSize() > 0) {
+                total += update.getContentSize();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The total number of bytes of the current content that would be backed up.
+     */
+    public long getBytesToBackup() {
+        long total = 0;
+        for(FSImage.ScheduledUpdate update : updates) {
+            total += update.getBackupSize();
+        }
+        return total;
+    }
+
+    public void print(PrintStream out) {
+        for(FSImage.ScheduledUpdate update : updates) {
+            out.println(update);
+        }
+        for(OwnershipChange change : ownershipChanges) {
+            out.println(change);
+        }
+        for(Conflict conflict : conflicts) {
+            out.println("CONFLICT " + conflict);
+        }
+        out.println("bytes to write " + getBytesToWrite() + ", bytes to back up " + getBytesToBackup());
+    }
+}
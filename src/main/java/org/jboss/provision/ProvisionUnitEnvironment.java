@@ -28,7 +28,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.jboss.provision.UnitInstructionHistory.UnitRecord;
 import org.jboss.provision.info.ContentPath;
 import org.jboss.provision.info.ProvisionUnitInfo;
 
@@ -120,11 +119,7 @@ public class ProvisionUnitEnvironment extends ProvisionEnvironmentBase {
     }
 
     public Collection<ContentPath> getContentPaths() throws ProvisionException {
-        final UnitRecord unitRecord = ((ProvisionEnvironment)this.getParentEnv()).getHistory().getLastUnitRecord(unitInfo.getName());
-        if(unitRecord == null) {
-            return Collections.emptySet();
-        }
-        return unitRecord.loadPaths();
+        return ((ProvisionEnvironment)this.getParentEnv()).getHistory().getUnitContentPaths(unitInfo.getName());
     }
 
     protected void reset(ProvisionUnitEnvironment env) {
@@ -49,10 +49,10 @@ import org.jboss.provision.io.IoUtils;
  */
 public class UnitInstructionHistory extends InstructionHistory {
 
-    private static final String ENV_PROPS = "env.properties";
-    private static final String UNITS = "units";
-    private static final String BACKUP = "backup";
-    private static final String UNIT_PATHS = "paths.txt";
+    static final String ENV_PROPS = "env.properties";
+    static final String UNITS = "units";
+    static final String BACKUP = "backup";
+    static final String UNIT_PATHS = "paths.txt";
 
     static File getBackupDir(EnvInstructionHistory envHistory, String unitName, String recordId) {
         return IoUtils.newFile(IoUtils.newFile(envHistory.recordsDir, UNITS, unitName), recordId, BACKUP);
@@ -237,7 +237,8 @@ public class UnitInstructionHistory extends InstructionHistory {
         }
 
         ContentTask.BackupPathFactory createBackupPathFactory(final ContentPath path) {
-            return new ContentTask.BackupPathFactory() {
+            // the original is going to be overwritten or deleted anyway
+            return new ContentTask.MoveBackupStrategy() {
                 @Override
                 public File getBackupFile(File original) {
                     return IoUtils.newFile(recordDir, BACKUP, path.getFSRelativePath());
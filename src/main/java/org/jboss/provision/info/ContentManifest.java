@@ -0,0 +1,215 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.info;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.util.HashUtils;
+
+/**
+ * The content of an installation recorded along with the size and the last
+ * modification time of each file. A manifest can be used instead of the
+ * installation as the current side of an update, or to avoid re-hashing the
+ * files that have not changed since the manifest was recorded.
+ *
+ * The manifest is a text file. The first line is the format version and the time
+ * the manifest was recorded. Each of the following lines describes a file as
+ * its hash, size, last modification time and the relative path separated by spaces.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentManifest {
+
+    private static final String FORMAT = "pvmanifest";
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * File systems with a coarse timestamp granularity may not change the last
+     * modification time of a file re-written within this interval.
+     */
+    private static final long TIMESTAMP_GRANULARITY = 2000;
+
+    public static ContentManifest read(File file) throws ProvisionException {
+        assert file != null : ProvisionErrors.nullArgument("file");
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            String line = reader.readLine();
+            final String[] header = line == null ? null : line.split(" ");
+            if(header == null || header.length != 3 || !FORMAT.equals(header[0]) || !String.valueOf(FORMAT_VERSION).equals(header[1])) {
+                throw ProvisionErrors.unsupportedManifestFormat(file, line);
+            }
+            final ContentManifest manifest = new ContentManifest(Long.parseLong(header[2]));
+            line = reader.readLine();
+            while(line != null) {
+                final String[] parts = line.split(" ", 4);
+                if(parts.length != 4) {
+                    throw ProvisionErrors.unsupportedManifestFormat(file, line);
+                }
+                manifest.add(new Entry(ContentPath.forPath(parts[3]), HashUtils.hexStringToByteArray(parts[0]),
+                        Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                line = reader.readLine();
+            }
+            return manifest;
+        } catch (FileNotFoundException e) {
+            throw ProvisionErrors.pathDoesNotExist(file);
+        } catch (IOException e) {
+            throw ProvisionErrors.readError(file, e);
+        } catch (NumberFormatException e) {
+            throw ProvisionErrors.unsupportedManifestFormat(file, e.getMessage());
+        } finally {
+            IoUtils.safeClose(reader);
+        }
+    }
+
+    static class Entry {
+        final ContentPath path;
+        final byte[] hash;
+        final long size;
+        final long lastModified;
+
+        Entry(ContentPath path, byte[] hash, long size, long lastModified) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long recordedAt;
+    private Map<ContentPath, Entry> entries = Collections.emptyMap();
+
+    ContentManifest(long recordedAt) {
+        this.recordedAt = recordedAt;
+    }
+
+    void add(Entry entry) {
+        switch(entries.size()) {
+            case 0:
+                entries = Collections.singletonMap(entry.path, entry);
+                break;
+            case 1:
+                entries = new HashMap<ContentPath, Entry>(entries);
+            default:
+                entries.put(entry.path, entry);
+        }
+    }
+
+    /**
+     * Returns the recorded hash of the file if its size and last modification
+     * time are the same as when the manifest was recorded.
+     *
+     * @param path  relative path of the file
+     * @param size  current size of the file
+     * @param lastModified  current last modification time of the file
+     * @return  the hash or null if the file has to be hashed
+     */
+    byte[] getUnchangedHash(ContentPath path, long size, long lastModified) {
+        final Entry entry = entries.get(path);
+        if(entry == null || entry.size != size || entry.lastModified != lastModified) {
+            return null;
+        }
+        // the file could have been modified after it was hashed without updating the timestamp
+        if(lastModified + TIMESTAMP_GRANULARITY > recordedAt) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    public long getRecordedAt() {
+        return recordedAt;
+    }
+
+    public Collection<ContentPath> getPaths() {
+        return entries.keySet();
+    }
+
+    /**
+     * The content of the manifest as the content of the unit.
+     *
+     * @param name  unit name
+     * @param version  unit version
+     * @return  unit content info
+     */
+    public ProvisionUnitContentInfo getContentInfo(String name, String version) {
+        final ProvisionUnitContentInfo.Builder builder = ProvisionUnitContentInfo.forUnit(name, version);
+        for(Entry entry : entries.values()) {
+            builder.add(ContentItemInfo.create(entry.path, entry.hash));
+        }
+        return builder.build();
+    }
+
+    public void write(File file) throws ProvisionException {
+        assert file != null : ProvisionErrors.nullArgument("file");
+        final List<String> paths = new ArrayList<String>(entries.size());
+        for(ContentPath path : entries.keySet()) {
+            paths.add(path.getRelativePath());
+        }
+        Collections.sort(paths);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+            writer.write(FORMAT);
+            writer.write(' ');
+            writer.write(String.valueOf(FORMAT_VERSION));
+            writer.write(' ');
+            writer.write(String.valueOf(recordedAt));
+            writer.newLine();
+            for(String path : paths) {
+                final Entry entry = entries.get(ContentPath.forPath(path));
+                writer.write(HashUtils.bytesToHexString(entry.hash));
+                writer.write(' ');
+                writer.write(String.valueOf(entry.size));
+                writer.write(' ');
+                writer.write(String.valueOf(entry.lastModified));
+                writer.write(' ');
+                writer.write(path);
+                writer.newLine();
+            }
+            writer.close();
+        } catch (IOException e) {
+            throw ProvisionErrors.writeError(file, e);
+        } finally {
+            IoUtils.safeClose(writer);
+        }
+    }
+}
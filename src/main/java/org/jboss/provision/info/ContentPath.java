@@ -25,6 +25,7 @@ package org.jboss.provision.info;
 import java.io.File;
 
 import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.PathTrie;
 
 /**
  *
@@ -52,12 +53,13 @@ public class ContentPath {
     }
 
     private final String locationName;
-    private final String relativePath;
+    /** interned, so that the paths share the common prefixes */
+    private final PathTrie.Node relativePath;
 
     protected ContentPath(String locationName, String relativePath) {
         assert relativePath != null || locationName != null : ProvisionErrors.nullArgument("relativePath && locationName");
         this.locationName = locationName;
-        this.relativePath = relativePath;
+        this.relativePath = relativePath == null ? null : PathTrie.forRelativePaths().intern(relativePath);
     }
 
     public String getLocationName() {
@@ -65,14 +67,14 @@ public class ContentPath {
     }
 
     public String getRelativePath() {
-        return relativePath;
+        return relativePath == null ? null : relativePath.getPath();
     }
 
     public String getFSRelativePath() {
         if(relativePath == null) {
             return null;
         }
-        return File.separatorChar == '\\' ? relativePath.replace('/', '\\') : relativePath;
+        return File.separatorChar == '\\' ? relativePath.getPath().replace('/', '\\') : relativePath.getPath();
     }
 
     @Override
@@ -98,10 +100,8 @@ public class ContentPath {
                 return false;
         } else if (!locationName.equals(other.locationName))
             return false;
-        if (relativePath == null) {
-            if (other.relativePath != null)
-                return false;
-        } else if (!relativePath.equals(other.relativePath))
+        // the nodes are interned
+        if (relativePath != other.relativePath)
             return false;
         return true;
     }
@@ -109,14 +109,14 @@ public class ContentPath {
     @Override
     public String toString() {
         if(locationName == null) {
-            return relativePath;
+            return relativePath.getPath();
         }
         final StringBuilder buf = new StringBuilder();
         buf.append('$').append(locationName);
         if(relativePath == null) {
             return buf.toString();
         }
-        return buf.append('/').append(relativePath).toString();
+        return buf.append('/').append(relativePath.getPath()).toString();
     }
 
     public static ContentPath fromString(String str) {
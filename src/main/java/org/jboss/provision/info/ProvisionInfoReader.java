@@ -24,11 +24,13 @@ package org.jboss.provision.info;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jboss.provision.ProvisionEnvironment;
 import org.jboss.provision.ProvisionErrors;
 import org.jboss.provision.ProvisionException;
-import org.jboss.provision.util.HashUtils;
+import org.jboss.provision.util.HashingService;
 
 /**
  *
@@ -44,32 +46,82 @@ public class ProvisionInfoReader {
     }
 
     public static ProvisionUnitContentInfo readContentInfo(String name, String version, File root) throws ProvisionException {
+        return readContentInfo(name, version, root, HashingService.getDefault());
+    }
+
+    public static ProvisionUnitContentInfo readContentInfo(String name, String version, File root, HashingService hashing) throws ProvisionException {
+        return readManifest(root, null, hashing).getContentInfo(name, version);
+    }
 
-        final ProvisionUnitContentInfo.Builder builder = ProvisionUnitContentInfo.forUnit(name, version);
-        if(root.exists()) {
-            readContentInfo(builder, root, root.getAbsolutePath().length() + 1);
+    /**
+     * Reads the content of the installation re-hashing only the files
+     * whose size or last modification time changed since the previous
+     * manifest was recorded.
+     *
+     * @param root  installation directory
+     * @param previous  previously recorded manifest of the installation or null
+     * @param hashing  hashing service
+     * @return  manifest of the current content of the installation
+     * @throws ProvisionException  in case the content could not be read
+     */
+    public static ContentManifest readManifest(File root, ContentManifest previous, HashingService hashing) throws ProvisionException {
+        assert root != null : ProvisionErrors.nullArgument("root");
+        assert hashing != null : ProvisionErrors.nullArgument("hashing");
+        final ContentManifest manifest = new ContentManifest(System.currentTimeMillis());
+        if(!root.exists()) {
+            return manifest;
+        }
+
+        final List<File> files = new ArrayList<File>();
+        collectFiles(root, files);
+
+        final int rootPathOffset = root.getAbsolutePath().length() + 1;
+        final ContentPath[] paths = new ContentPath[files.size()];
+        final long[] sizes = new long[paths.length];
+        final long[] timestamps = new long[paths.length];
+        final byte[][] hashes = new byte[paths.length][];
+        final List<File> changedFiles = previous == null ? files : new ArrayList<File>();
+        final List<Integer> changedIndexes = previous == null ? null : new ArrayList<Integer>();
+        for(int i = 0; i < paths.length; ++i) {
+            final File file = files.get(i);
+            paths[i] = ContentPath.forFSPath(file.getAbsolutePath().substring(rootPathOffset));
+            sizes[i] = file.length();
+            timestamps[i] = file.lastModified();
+            if(previous != null) {
+                hashes[i] = previous.getUnchangedHash(paths[i], sizes[i], timestamps[i]);
+                if(hashes[i] == null) {
+                    changedFiles.add(file);
+                    changedIndexes.add(i);
+                }
+            }
         }
-        return builder.build();
+
+        final List<byte[]> changedHashes;
+        try {
+            changedHashes = hashing.hashFiles(changedFiles);
+        } catch (IOException e) {
+            throw ProvisionErrors.hashCalculationFailed(root, e);
+        }
+        for(int i = 0; i < changedHashes.size(); ++i) {
+            hashes[changedIndexes == null ? i : changedIndexes.get(i)] = changedHashes.get(i);
+        }
+
+        for(int i = 0; i < paths.length; ++i) {
+            manifest.add(new ContentManifest.Entry(paths[i], hashes[i], sizes[i], timestamps[i]));
+        }
+        return manifest;
     }
 
-    private static void readContentInfo(final ProvisionUnitContentInfo.Builder builder, File file, final int rootPathOffset)
-            throws ProvisionException {
+    private static void collectFiles(File file, List<File> files) {
         if(file.isDirectory()) {
             if(file.getName().equals(ProvisionEnvironment.DEF_HISTORY_DIR)) {
                 return;
             }
             for(File f : file.listFiles()) {
-                readContentInfo(builder, f, rootPathOffset);
+                collectFiles(f, files);
             }
         } else {
-            final byte[] fileHash;
-            try {
-                fileHash = HashUtils.hashFile(file);
-            } catch (IOException e) {
-                throw ProvisionErrors.hashCalculationFailed(file, e);
-            }
-            String relativePath = file.getAbsolutePath().substring(rootPathOffset);
-            builder.add(ContentItemInfo.create(ContentPath.forFSPath(relativePath), fileHash));
+            files.add(file);
         }
     }
 }
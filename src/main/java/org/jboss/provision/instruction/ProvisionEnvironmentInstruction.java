@@ -122,7 +122,7 @@ public class ProvisionEnvironmentInstruction {
                     continue;
                 }
 
-                final String originalResultingVersion = unit.getRequiredVersion();
+                final String originalResultingVersion = unit.getResultingVersion();
                 final String overrideRequiredVersion = overrideUnit.getRequiredVersion();
                 if(originalResultingVersion == null) {
                     if(overrideRequiredVersion != null) {
@@ -154,11 +154,8 @@ public class ProvisionEnvironmentInstruction {
                         unitInstBuilder = ProvisionUnitInstruction.replaceUnit(unitName, requiredVersion, resultingVersion);
                     }
                 } else {
-                    // patch + version update, which shouldn't happen
-                    if(!unit.getId().startsWith("rollback-")) {
-                        throw ProvisionErrors.versionUpdateOverPatch(unitName, unit.getId(), overrideUnit.getResultingVersion());
-                    }
-                    // version update
+                    // patch + version update, the version update is applied once the patch has been reverted,
+                    // so the patch is either a rollback or the reverted patch of a squashed history
                     unitInstBuilder = ProvisionUnitInstruction.replaceUnit(unitName, requiredVersion, resultingVersion);
                 }
 
@@ -22,25 +22,26 @@
 
 package org.jboss.provision.instruction;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.Deflater;
 
 import javax.xml.stream.XMLStreamException;
 
 import org.jboss.provision.ProvisionErrors;
 import org.jboss.provision.ProvisionException;
+import org.jboss.provision.info.ContentManifest;
 import org.jboss.provision.info.ProvisionInfoReader;
 import org.jboss.provision.info.ProvisionUnitContentInfo;
 import org.jboss.provision.info.ProvisionUnitInfo;
-import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.io.ContentDelta;
+import org.jboss.provision.io.ParallelZipWriter;
 import org.jboss.provision.util.HashUtils;
+import org.jboss.provision.util.HashingService;
+import org.jboss.provision.xml.ProvisionBinary;
 import org.jboss.provision.xml.ProvisionXml;
 
 /**
@@ -59,13 +60,123 @@ public class ProvisionPackage {
     public static class Builder {
 
         private File curDir;
+        private File curManifest;
         private File targetDir;
+        private File targetManifest;
         private File pkgFile;
         private String patchId;
+        private HashingService hashing = HashingService.getDefault();
+        private int packagingParallelism;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private boolean storeCompressedContent = true;
+        private boolean contentDelta;
+        private boolean contentDeltaFallback;
+        private ProvisionXml.Namespace instructionFormat = ProvisionXml.Namespace.PROVISION_1_0;
 
         private Builder() {
         }
 
+        /**
+         * The number of threads hashing the content of the installations.
+         * By default, it is {@link HashingService#getDefaultParallelism()}.
+         *
+         * @param parallelism  the number of hashing threads
+         * @return  this builder
+         */
+        public Builder setHashingParallelism(int parallelism) {
+            this.hashing = parallelism == HashingService.getDefault().getParallelism() ?
+                    HashingService.getDefault() : HashingService.create(parallelism);
+            return this;
+        }
+
+        /**
+         * The number of threads compressing the content of the package.
+         * By default, it is the same as the hashing parallelism.
+         *
+         * @param parallelism  the number of compressing threads
+         * @return  this builder
+         */
+        public Builder setPackagingParallelism(int parallelism) {
+            if(parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be greater than 0: " + parallelism);
+            }
+            this.packagingParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * The deflate compression level of the package content, see {@link Deflater}.
+         * The level of 0 means the content is stored uncompressed.
+         * By default, it is {@link Deflater#DEFAULT_COMPRESSION}.
+         *
+         * @param compressionLevel  compression level
+         * @return  this builder
+         */
+        public Builder setCompressionLevel(int compressionLevel) {
+            if(compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+            }
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        /**
+         * Whether the content that is already compressed, such as jars and other
+         * archives, should be stored in the package as is. By default, it is true.
+         *
+         * @param storeCompressedContent  whether to store compressed content as is
+         * @return  this builder
+         */
+        public Builder setStoreCompressedContent(boolean storeCompressedContent) {
+            this.storeCompressedContent = storeCompressedContent;
+            return this;
+        }
+
+        /**
+         * Whether the replaced content should be stored in the package as binary
+         * deltas against the replaced content of the current installation.
+         * A delta is stored only if it is less than half the size of the new content,
+         * otherwise the new content is stored as is. The delta can be applied only
+         * to the content it was created against, see {@link #setContentDeltaFallback(boolean)}.
+         * By default, it is false.
+         *
+         * @param contentDelta  whether to store the replaced content as deltas
+         * @return  this builder
+         */
+        public Builder setContentDelta(boolean contentDelta) {
+            this.contentDelta = contentDelta;
+            return this;
+        }
+
+        /**
+         * Whether the new content should also be stored as is next to its delta.
+         * The full content is used when the file being replaced does not match the base
+         * of the delta, which is possible with the forced update policy. Without it,
+         * applying such a package over a modified file fails. By default, it is false.
+         *
+         * @param contentDeltaFallback  whether to store the full content next to the deltas
+         * @return  this builder
+         */
+        public Builder setContentDeltaFallback(boolean contentDeltaFallback) {
+            this.contentDeltaFallback = contentDeltaFallback;
+            return this;
+        }
+
+        /**
+         * The format of the instructions of the package, either {@link ProvisionXml.Namespace#PROVISION_1_0}
+         * or {@link ProvisionXml.Namespace#PROVISION_BINARY_1_0}. By default, it is the former.
+         *
+         * @param instructionFormat  the format of the instructions
+         * @return  this builder
+         */
+        public Builder setInstructionFormat(ProvisionXml.Namespace instructionFormat) {
+            if(instructionFormat != ProvisionXml.Namespace.PROVISION_1_0 && instructionFormat != ProvisionXml.Namespace.PROVISION_BINARY_1_0) {
+                throw new IllegalArgumentException("Unsupported instruction format " + instructionFormat);
+            }
+            this.instructionFormat = instructionFormat;
+            return this;
+        }
+
         public Builder setCurrentInstallationDir(File curInstall) {
             this.curDir = curInstall;
             return this;
@@ -76,6 +187,35 @@ public class ProvisionPackage {
             return this;
         }
 
+        /**
+         * The content manifest of the current installation. If the current
+         * installation directory is not set, the content recorded in the manifest
+         * is used as the current content. Otherwise, only the files of the current
+         * installation that changed since the manifest was recorded are re-hashed
+         * and the manifest is updated.
+         *
+         * @param manifest  content manifest file
+         * @return  this builder
+         */
+        public Builder setCurrentInstallationManifest(File manifest) {
+            this.curManifest = manifest;
+            return this;
+        }
+
+        /**
+         * The content manifest of the target installation. If the file exists,
+         * only the files of the target installation that changed since
+         * the manifest was recorded are re-hashed. The manifest is then
+         * (re-)written to reflect the current content of the target installation.
+         *
+         * @param manifest  content manifest file
+         * @return  this builder
+         */
+        public Builder setTargetInstallationManifest(File manifest) {
+            this.targetManifest = manifest;
+            return this;
+        }
+
         public Builder setPackageOutputFile(File pkgFile) {
             this.pkgFile = pkgFile;
             return this;
@@ -94,17 +234,31 @@ public class ProvisionPackage {
         }
 
         public void buildUpdate(String unitName, String replacedVersion, String targetVersion) throws ProvisionException {
-            assertExists(curDir, "currentInstallationDir");
-            assertExists(targetDir, "targetInstallationDir");
-            final ProvisionUnitContentInfo currentContent = ProvisionInfoReader.readContentInfo(unitName, replacedVersion, curDir);
-            final ProvisionUnitContentInfo targetContent = ProvisionInfoReader.readContentInfo(unitName, targetVersion, targetDir);
-            final ProvisionUnitInstruction updateInstruction;
-            if(patchId == null) {
-                updateInstruction = ProvisionInstructionBuilder.replace(currentContent, targetContent);
+            if(curDir != null || curManifest == null) {
+                assertExists(curDir, "currentInstallationDir");
             } else {
-                updateInstruction = ProvisionInstructionBuilder.patch(patchId, currentContent, targetContent);
+                assertExists(curManifest, "currentInstallationManifest");
+            }
+            assertExists(targetDir, "targetInstallationDir");
+            try {
+                final ProvisionUnitContentInfo currentContent;
+                if(curDir == null) {
+                    currentContent = ContentManifest.read(curManifest).getContentInfo(unitName, replacedVersion);
+                } else {
+                    currentContent = readContentInfo(unitName, replacedVersion, curDir, curManifest);
+                }
+                final ProvisionUnitContentInfo targetContent = readContentInfo(unitName, targetVersion, targetDir, targetManifest);
+                final ProvisionUnitInstruction updateInstruction;
+                if(patchId == null) {
+                    updateInstruction = ProvisionInstructionBuilder.replace(currentContent, targetContent);
+                } else {
+                    updateInstruction = ProvisionInstructionBuilder.patch(patchId, currentContent, targetContent);
+                }
+                ProvisionPackage.build(ProvisionEnvironmentInstruction.builder().add(updateInstruction).build(), targetDir,
+                        contentDelta ? curDir : null, contentDeltaFallback, instructionFormat, newPackageWriter());
+            } finally {
+                hashing.shutdown();
             }
-            ProvisionPackage.build(ProvisionEnvironmentInstruction.builder().add(updateInstruction).build(), targetDir, pkgFile);
         }
 
         public void buildInstall() throws ProvisionException {
@@ -116,9 +270,13 @@ public class ProvisionPackage {
                 throw ProvisionErrors.patchCantChangeVersion();
             }
             assertExists(targetDir, "targetInstallationDir");
-            final ProvisionUnitContentInfo contentInfo = ProvisionInfoReader.readContentInfo(unitName, targetVersion, targetDir);
-            final ProvisionUnitInstruction installInstruction = ProvisionInstructionBuilder.install(contentInfo);
-            ProvisionPackage.build(ProvisionEnvironmentInstruction.builder().add(installInstruction).build(), targetDir, pkgFile);
+            try {
+                final ProvisionUnitContentInfo contentInfo = readContentInfo(unitName, targetVersion, targetDir, targetManifest);
+                final ProvisionUnitInstruction installInstruction = ProvisionInstructionBuilder.install(contentInfo);
+                ProvisionPackage.build(ProvisionEnvironmentInstruction.builder().add(installInstruction).build(), targetDir, null, false, instructionFormat, newPackageWriter());
+            } finally {
+                hashing.shutdown();
+            }
         }
 
         public void buildUninstall() throws ProvisionException {
@@ -130,9 +288,33 @@ public class ProvisionPackage {
                 throw ProvisionErrors.patchCantChangeVersion();
             }
             assertExists(curDir, "currentInstallationDir");
-            final ProvisionUnitContentInfo contentInfo = ProvisionInfoReader.readContentInfo(unitName, unitVersion, curDir);
-            final ProvisionUnitInstruction uninstallInstruction = ProvisionInstructionBuilder.uninstall(contentInfo);
-            ProvisionPackage.build(ProvisionEnvironmentInstruction.builder().add(uninstallInstruction).build(), curDir, pkgFile);
+            try {
+                final ProvisionUnitContentInfo contentInfo = readContentInfo(unitName, unitVersion, curDir, curManifest);
+                final ProvisionUnitInstruction uninstallInstruction = ProvisionInstructionBuilder.uninstall(contentInfo);
+                ProvisionPackage.build(ProvisionEnvironmentInstruction.builder().add(uninstallInstruction).build(), curDir, null, false, instructionFormat, newPackageWriter());
+            } finally {
+                hashing.shutdown();
+            }
+        }
+
+        private ParallelZipWriter newPackageWriter() throws ProvisionException {
+            if(pkgFile == null) {
+                throw new ProvisionException(ProvisionErrors.nullArgument("packageFile"));
+            }
+            return ParallelZipWriter.create(pkgFile)
+                    .setParallelism(packagingParallelism == 0 ? hashing.getParallelism() : packagingParallelism)
+                    .setCompressionLevel(compressionLevel)
+                    .setStoreCompressedContent(storeCompressedContent);
+        }
+
+        private ProvisionUnitContentInfo readContentInfo(String unitName, String version, File dir, File manifestFile) throws ProvisionException {
+            if(manifestFile == null) {
+                return ProvisionInfoReader.readContentInfo(unitName, version, dir, hashing);
+            }
+            final ContentManifest previous = manifestFile.exists() ? ContentManifest.read(manifestFile) : null;
+            final ContentManifest manifest = ProvisionInfoReader.readManifest(dir, previous, hashing);
+            manifest.write(manifestFile);
+            return manifest.getContentInfo(unitName, version);
         }
 
         private void assertExists(File f, String argName) throws ProvisionException {
@@ -146,10 +328,22 @@ public class ProvisionPackage {
     }
 
     public static void build(ProvisionEnvironmentInstruction instructions, File src, File packageFile) throws ProvisionException {
+        build(instructions, src, packageFile, HashingService.getDefault());
+    }
 
+    public static void build(ProvisionEnvironmentInstruction instructions, File src, File packageFile, HashingService hashing) throws ProvisionException {
         if(packageFile == null) {
             throw new ProvisionException(ProvisionErrors.nullArgument("packageFile"));
         }
+        if(hashing == null) {
+            throw new ProvisionException(ProvisionErrors.nullArgument("hashing"));
+        }
+        build(instructions, src, null, false, ProvisionXml.Namespace.PROVISION_1_0, ParallelZipWriter.create(packageFile).setParallelism(hashing.getParallelism()));
+    }
+
+    private static void build(ProvisionEnvironmentInstruction instructions, File src, File deltaBaseDir, boolean deltaFallback,
+            ProvisionXml.Namespace instructionFormat, ParallelZipWriter packageWriter) throws ProvisionException {
+
         if(src == null) {
             throw new ProvisionException(ProvisionErrors.nullArgument("src"));
         }
@@ -157,59 +351,89 @@ public class ProvisionPackage {
             throw new ProvisionException(ProvisionErrors.nullArgument("instructions"));
         }
 
-        ZipOutputStream zos = null;
-        try {
-            zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(packageFile)));
-
-            zos.putNextEntry(new ZipEntry(ProvisionXml.PROVISION_XML));
-            ProvisionXml.marshal(zos, instructions);
-            zos.closeEntry();
+        if(instructionFormat == ProvisionXml.Namespace.PROVISION_BINARY_1_0) {
+            try {
+                packageWriter.add(ProvisionBinary.PROVISION_BIN, ProvisionBinary.marshal(instructions));
+            } catch (IOException e) {
+                throw ProvisionErrors.xmlMarshallingFailed(ProvisionBinary.PROVISION_BIN, e);
+            }
+        } else {
+            final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try {
+                ProvisionXml.marshal(xml, instructions);
+            } catch (XMLStreamException e) {
+                throw ProvisionErrors.xmlMarshallingFailed(ProvisionXml.PROVISION_XML, e);
+            }
+            packageWriter.add(ProvisionXml.PROVISION_XML, xml.toByteArray());
+        }
 
-            for(String unitName : instructions.getUnitNames()) {
-                final ProvisionUnitInstruction unitInfo = instructions.getUnitInstruction(unitName);
-                for (ContentItemInstruction itemInfo : unitInfo.getContentInstructions()) {
-                    if (itemInfo.getContentHash() == null) {
-                        continue;
-                    }
-                    final File itemFile = new File(src, itemInfo.getPath().getFSRelativePath());
-                    if (!itemFile.exists()) {
-                        throw ProvisionErrors.pathDoesNotExist(itemFile);
-                    }
-                    final byte[] actualHash;
-                    try {
-                        actualHash = HashUtils.hashFile(itemFile);
-                    } catch (IOException e) {
-                        throw ProvisionErrors.hashCalculationFailed(itemFile, e);
-                    }
-                    if (!Arrays.equals(itemInfo.getContentHash(), actualHash)) {
-                        throw ProvisionErrors.unexpectedContentHash(itemFile, itemInfo.getContentHash(), actualHash);
+        for(String unitName : instructions.getUnitNames()) {
+            final ProvisionUnitInstruction unitInfo = instructions.getUnitInstruction(unitName);
+            for (ContentItemInstruction itemInfo : unitInfo.getContentInstructions()) {
+                if (itemInfo.getContentHash() == null) {
+                    continue;
+                }
+                final File itemFile = new File(src, itemInfo.getPath().getFSRelativePath());
+                if (!itemFile.exists()) {
+                    throw ProvisionErrors.pathDoesNotExist(itemFile);
+                }
+                if (deltaBaseDir != null && itemInfo.getReplacedHash() != null && HashUtils.isContentHashed(itemFile)) {
+                    final byte[] delta = createDelta(itemInfo, itemFile, new File(deltaBaseDir, itemInfo.getPath().getFSRelativePath()));
+                    if (delta != null) {
+                        packageWriter.add(ContentDelta.entryName(itemInfo.getPath().getRelativePath()), delta);
+                        if (!deltaFallback) {
+                            continue;
+                        }
                     }
-
-                    addFileToZip(itemFile, itemInfo.getPath().getRelativePath(), zos);
                 }
+                // the content is verified while it is compressed, so that it is read only once
+                packageWriter.add(itemInfo.getPath().getRelativePath(), itemFile, itemInfo.getContentHash());
             }
+        }
+
+        try {
+            packageWriter.write();
         } catch (IOException ioe) {
             throw ProvisionErrors.failedToZip(src, ioe);
-        } catch (XMLStreamException xmlE) {
-            throw ProvisionErrors.xmlMarshallingFailed(ProvisionXml.PROVISION_XML, xmlE);
-        } finally {
-            IoUtils.safeClose(zos);
         }
     }
 
-    private static void addFileToZip(File file, String entryName, ZipOutputStream zos) throws IOException {
-        final FileInputStream is = new FileInputStream(file);
+    /**
+     * Creates the delta of the item against the replaced content, verifying both the replaced and the new content.
+     * Returns null if the replaced content is not available or the delta is not worth storing.
+     */
+    private static byte[] createDelta(ContentItemInstruction itemInfo, File itemFile, File baseFile) throws ProvisionException {
+        if(!baseFile.isFile()) {
+            return null;
+        }
         try {
-            zos.putNextEntry(new ZipEntry(entryName));
-            final BufferedInputStream bis = new BufferedInputStream(is);
-            try {
-                IoUtils.copyStream(bis, zos);
-            } finally {
-                IoUtils.safeClose(bis);
+            if(ContentDelta.isArchive(itemFile) && ContentDelta.isArchive(baseFile)) {
+                // the archives are compared entry by entry without reading them into memory
+                if(!Arrays.equals(itemInfo.getReplacedHash(), HashUtils.hashFile(baseFile))) {
+                    return null;
+                }
+                assertHash(itemInfo, itemFile, HashUtils.hashFile(itemFile));
+                final byte[] delta = ContentDelta.createForArchive(baseFile, itemInfo.getReplacedHash(), itemFile);
+                if(delta != null) {
+                    return delta.length < itemFile.length() / 2 ? delta : null;
+                }
+            }
+            final byte[] base = Files.readAllBytes(baseFile.toPath());
+            if(!Arrays.equals(itemInfo.getReplacedHash(), HashUtils.hashBytes(base))) {
+                return null;
             }
-            zos.closeEntry();
-        } finally {
-            IoUtils.safeClose(is);
+            final byte[] target = Files.readAllBytes(itemFile.toPath());
+            assertHash(itemInfo, itemFile, HashUtils.hashBytes(target));
+            final byte[] delta = ContentDelta.create(base, itemInfo.getReplacedHash(), target);
+            return delta.length < target.length / 2 ? delta : null;
+        } catch (IOException e) {
+            throw ProvisionErrors.readError(itemFile, e);
+        }
+    }
+
+    private static void assertHash(ContentItemInstruction itemInfo, File itemFile, byte[] actualHash) throws ProvisionException {
+        if(!Arrays.equals(itemInfo.getContentHash(), actualHash)) {
+            throw ProvisionErrors.unexpectedContentHash(itemFile, itemInfo.getContentHash(), actualHash);
         }
     }
 }
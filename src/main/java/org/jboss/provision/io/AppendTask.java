@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.provision.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.jboss.provision.ProvisionErrors;
+
+/**
+ * Appends content to the end of the target. Instead of copying the target,
+ * the backup remembers its length and the revert truncates the target back to it.
+ * If the target was scheduled to be deleted before the content was appended
+ * the task replaces the target with the content.
+ *
+ * @author Alexey Loubyansky
+ */
+class AppendTask extends ContentTask {
+    private byte[] content;
+    private final boolean truncate;
+    private boolean backedUp;
+    private long originalLength = -1;
+    AppendTask(byte[] content, File target, boolean truncate) {
+        super(target);
+        assert content != null : ProvisionErrors.nullArgument("content");
+        this.content = content;
+        this.truncate = truncate;
+    }
+    void append(byte[] bytes) {
+        final byte[] tmp = new byte[content.length + bytes.length];
+        System.arraycopy(content, 0, tmp, 0, content.length);
+        System.arraycopy(bytes, 0, tmp, content.length, bytes.length);
+        content = tmp;
+    }
+    byte[] getContent() {
+        return content;
+    }
+    boolean isTruncate() {
+        return truncate;
+    }
+    @Override
+    public long getContentSize() {
+        return content.length;
+    }
+
+    @Override
+    public long getBackupSize() {
+        // only the length of the original is recorded when the content is appended
+        return truncate ? super.getBackupSize() : 0;
+    }
+
+    @Override
+    public void backup() throws IOException {
+        if(truncate) {
+            super.backup();
+            return;
+        }
+        originalLength = original.exists() ? original.length() : -1;
+        backedUp = true;
+    }
+    @Override
+    public void execute() throws IOException {
+        if(!original.getParentFile().exists()) {
+            IoUtils.mkdirs(original.getParentFile());
+        }
+        final FileOutputStream os = new FileOutputStream(original, !truncate);
+        try {
+            os.write(content);
+            os.close();
+        } finally {
+            IoUtils.safeClose(os);
+        }
+    }
+    @Override
+    public void revert() throws IOException {
+        if(truncate) {
+            super.revert();
+            return;
+        }
+        if(!backedUp) {
+            return;
+        }
+        backedUp = false;
+        if(originalLength < 0) {
+            IoUtils.recursiveDelete(original);
+            return;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(original, "rw");
+        try {
+            raf.setLength(originalLength);
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+    }
+    @Override
+    public void cleanup() throws IOException {
+        if(truncate) {
+            super.cleanup();
+        }
+    }
+    @Override
+    public String toString() {
+        return "AppendTask for " + original.getAbsolutePath();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.provision.ProvisionErrors;
+
+/**
+ * Write-ahead journal of an {@link FSImage} commit.
+ *
+ * Before anything is backed up, the journal records the target of every task,
+ * whether the target existed and where it is going to be backed up. Then the journal
+ * is marked once all the backups are complete and once all the tasks are executed.
+ * The journal is synced to the disk at each of these three points only, no matter how many
+ * tasks are committed. Once the commit is complete, or reverted, the journal is deleted.
+ *
+ * If the journal exists when the commit is not in progress, the commit was interrupted.
+ * {@link #recover(File)} then reverts the tasks using the backups, unless all of them
+ * had been executed, in which case it completes the cleanup of the backups.
+ * An interrupted commit is never rolled forward, no matter how many of its tasks
+ * had been executed: the journal does not hold the new content and its sources,
+ * e.g. the package being applied, may be gone by the time the recovery runs.
+ * Only the paths recorded in the journal are examined.
+ *
+ * Content appended to a target is not backed up, the journal records the original
+ * length of the target instead and the recovery truncates the target back to it.
+ *
+ * @author Alexey Loubyansky
+ */
+class CommitJournal {
+
+    private static final int MAGIC = 0x50564a4c; // PVJL
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte INTENT_COMPLETE = 1;
+    private static final byte BACKUP_COMPLETE = 2;
+    private static final byte EXECUTE_COMPLETE = 3;
+
+    private static final byte EXISTED = 1;
+    private static final byte CLEANUP = 2;
+    private static final byte APPEND = 4;
+
+    private static class Entry {
+        final File target;
+        final File backup;
+        final byte flags;
+        final long length;
+
+        Entry(File target, File backup, byte flags, long length) {
+            this.target = target;
+            this.backup = backup;
+            this.flags = flags;
+            this.length = length;
+        }
+
+        boolean existed() {
+            return (flags & EXISTED) != 0;
+        }
+
+        boolean isCleanup() {
+            return (flags & CLEANUP) != 0;
+        }
+
+        boolean isAppend() {
+            return (flags & APPEND) != 0;
+        }
+    }
+
+    /**
+     * Records the intent to commit the tasks.
+     *
+     * @param file  journal file
+     * @param tasks  the tasks in the order they are scheduled
+     * @return  the journal
+     * @throws IOException  in case the journal could not be written
+     */
+    static CommitJournal begin(File file, List<ContentTask> tasks) throws IOException {
+        final File parent = file.getParentFile();
+        if(parent != null && !parent.exists()) {
+            IoUtils.mkdirs(parent);
+        }
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(tasks.size());
+            for(ContentTask task : tasks) {
+                final File target = task.getTarget();
+                final boolean append = task instanceof AppendTask && !((AppendTask)task).isTruncate();
+                final File backup = append ? null : task.getBackupFile();
+                byte flags = 0;
+                if(target.exists()) {
+                    flags |= EXISTED;
+                }
+                if(task.isCleanup()) {
+                    flags |= CLEANUP;
+                }
+                if(append) {
+                    flags |= APPEND;
+                }
+                out.writeUTF(target.getAbsolutePath());
+                out.writeUTF(backup == null ? "" : backup.getAbsolutePath());
+                out.writeByte(flags);
+                if(append) {
+                    out.writeLong(target.length());
+                }
+            }
+            out.writeByte(INTENT_COMPLETE);
+            out.flush();
+            IoUtils.sync(fos, file);
+        } catch(IOException | RuntimeException | Error e) {
+            IoUtils.safeClose(fos);
+            IoUtils.recursiveDelete(file);
+            throw e;
+        }
+        return new CommitJournal(file, fos);
+    }
+
+    /**
+     * Completes or reverts the interrupted commit recorded in the journal
+     * and deletes the journal.
+     *
+     * @param file  journal file
+     * @return  true if the tasks were reverted, false if the commit was completed
+     *          or there was nothing to recover
+     * @throws IOException  in case of a failure, the journal is not deleted then
+     */
+    static boolean recover(File file) throws IOException {
+        if(!file.exists()) {
+            return false;
+        }
+        final List<Entry> entries = new ArrayList<Entry>();
+        byte phase = 0;
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+        try {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a commit journal " + file.getAbsolutePath());
+            }
+            final int version = in.readInt();
+            if(version != FORMAT_VERSION) {
+                throw new IOException("Unsupported commit journal format version " + version + " of " + file.getAbsolutePath());
+            }
+            int size = in.readInt();
+            while(size-- > 0) {
+                final File target = new File(in.readUTF());
+                final String backup = in.readUTF();
+                final byte flags = in.readByte();
+                final long length = (flags & APPEND) == 0 ? -1 : in.readLong();
+                entries.add(new Entry(target, backup.isEmpty() ? null : new File(backup), flags, length));
+            }
+            while(true) {
+                phase = in.readByte();
+            }
+        } catch(EOFException e) {
+            // the last phase has been reached
+        }
+
+        boolean reverted = false;
+        if(phase == EXECUTE_COMPLETE) {
+            for(Entry entry : entries) {
+                if(entry.isCleanup() && entry.backup != null) {
+                    IoUtils.recursiveDelete(entry.backup);
+                }
+            }
+        } else if(phase == BACKUP_COMPLETE) {
+            // the tasks may have been executed, every backup is complete
+            for(int i = entries.size() - 1; i >= 0; --i) {
+                final Entry entry = entries.get(i);
+                if(!entry.existed()) {
+                    IoUtils.recursiveDelete(entry.target);
+                } else if(entry.isAppend()) {
+                    truncate(entry.target, entry.length);
+                } else if(entry.backup != null && entry.backup.exists()) {
+                    restore(entry.backup, entry.target);
+                }
+            }
+            reverted = true;
+        } else if(phase == INTENT_COMPLETE) {
+            // nothing has been executed but the originals may have been moved to the backups
+            for(int i = entries.size() - 1; i >= 0; --i) {
+                final Entry entry = entries.get(i);
+                if(!entry.existed() || entry.backup == null || !entry.backup.exists()) {
+                    continue;
+                }
+                if(entry.target.exists()) {
+                    IoUtils.recursiveDelete(entry.backup);
+                } else {
+                    restore(entry.backup, entry.target);
+                }
+            }
+            reverted = true;
+        }
+        // otherwise the journal is incomplete and nothing has been touched yet
+        if(!IoUtils.recursiveDelete(file)) {
+            throw new IOException(ProvisionErrors.failedToDelete(file).getLocalizedMessage());
+        }
+        return reverted;
+    }
+
+    /**
+     * The backup is copied so that the restored target doesn't share
+     * the content with the backup (which could be a stored content link).
+     */
+    private static void restore(File backup, File target) throws IOException {
+        IoUtils.recursiveDelete(target);
+        IoUtils.copyFile(backup, target);
+        IoUtils.recursiveDelete(backup);
+    }
+
+    private static void truncate(File target, long length) throws IOException {
+        if(!target.exists() || target.length() <= length) {
+            return;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream out;
+
+    private CommitJournal(File file, FileOutputStream out) {
+        this.file = file;
+        this.out = out;
+    }
+
+    void backupComplete() throws IOException {
+        mark(BACKUP_COMPLETE);
+    }
+
+    void executeComplete() throws IOException {
+        mark(EXECUTE_COMPLETE);
+    }
+
+    private void mark(byte phase) throws IOException {
+        out.write(phase);
+        IoUtils.sync(out, file);
+    }
+
+    /**
+     * Deletes the journal once the commit is complete or reverted.
+     */
+    void delete() {
+        IoUtils.safeClose(out);
+        IoUtils.recursiveDelete(file);
+    }
+
+    /**
+     * Closes the journal leaving it for the recovery.
+     */
+    void close() {
+        IoUtils.safeClose(out);
+    }
+}
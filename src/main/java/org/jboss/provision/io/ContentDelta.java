@@ -0,0 +1,538 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.provision.ProvisionErrors;
+
+/**
+ * Binary delta of a file against the previous version of the file.
+ *
+ * The delta is a sequence of instructions to copy a range of the base content
+ * or to add literal bytes. The copied ranges are found by indexing the blocks
+ * of the base content by a rolling checksum and scanning the new content for
+ * the blocks, the way rsync does, extending every match as far as the bytes match.
+ * The deltas of ZIP archives are created at the level of the archive entries instead,
+ * see {@link #createForArchive(File, byte[], File)}. Either way, the delta is applied
+ * by streaming the target content in one pass.
+ *
+ * The delta starts with the hash and the length of the base content. The base
+ * is expected to be verified against the hash before the delta is applied.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentDelta {
+
+    /** the directory of the package the deltas are stored in */
+    public static final String ENTRY_PREFIX = ".pvdelta/";
+
+    private static final int MAGIC = 0x50564454; // PVDT
+    private static final int FORMAT_VERSION = 1;
+    private static final int BLOCK_SIZE = 1024;
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int EOCD_SIZE = 22;
+
+    private static final byte END = 0;
+    private static final byte COPY = 1;
+    private static final byte ADD = 2;
+
+    /**
+     * Creates the delta which turns the base content into the target content.
+     *
+     * @param base  base content
+     * @param baseHash  hash of the base content
+     * @param target  target content
+     * @return  the delta
+     * @throws IOException  in case of a failure
+     */
+    public static byte[] create(byte[] base, byte[] baseHash, byte[] target) throws IOException {
+        assert base != null : ProvisionErrors.nullArgument("base");
+        assert baseHash != null : ProvisionErrors.nullArgument("baseHash");
+        assert target != null : ProvisionErrors.nullArgument("target");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, baseHash, base.length, target.length);
+
+        // the first base block for every checksum
+        final Map<Integer, Integer> blocks = new HashMap<Integer, Integer>(base.length / BLOCK_SIZE + 1);
+        for(int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            final int checksum = checksum(base, offset);
+            if(!blocks.containsKey(checksum)) {
+                blocks.put(checksum, offset);
+            }
+        }
+
+        int literalStart = 0;
+        int i = 0;
+        int a = 0;
+        int b = 0;
+        if(target.length >= BLOCK_SIZE) {
+            for(int j = 0; j < BLOCK_SIZE; ++j) {
+                a += target[j] & 0xff;
+                b += (BLOCK_SIZE - j) * (target[j] & 0xff);
+            }
+        }
+        while(i + BLOCK_SIZE <= target.length) {
+            final Integer baseOffset = blocks.get(((b & 0xffff) << 16) | (a & 0xffff));
+            if(baseOffset != null && matches(base, baseOffset, target, i, BLOCK_SIZE)) {
+                int baseStart = baseOffset;
+                int targetStart = i;
+                while(targetStart > literalStart && baseStart > 0 && base[baseStart - 1] == target[targetStart - 1]) {
+                    --baseStart;
+                    --targetStart;
+                }
+                int length = i - targetStart + BLOCK_SIZE;
+                while(targetStart + length < target.length && baseStart + length < base.length
+                        && base[baseStart + length] == target[targetStart + length]) {
+                    ++length;
+                }
+                writeLiteral(out, target, literalStart, targetStart);
+                out.writeByte(COPY);
+                out.writeLong(baseStart);
+                out.writeInt(length);
+
+                i = targetStart + length;
+                literalStart = i;
+                if(i + BLOCK_SIZE <= target.length) {
+                    a = 0;
+                    b = 0;
+                    for(int j = 0; j < BLOCK_SIZE; ++j) {
+                        a += target[i + j] & 0xff;
+                        b += (BLOCK_SIZE - j) * (target[i + j] & 0xff);
+                    }
+                }
+                continue;
+            }
+            if(i + BLOCK_SIZE < target.length) {
+                final int out0 = target[i] & 0xff;
+                a += (target[i + BLOCK_SIZE] & 0xff) - out0;
+                b += a - BLOCK_SIZE * out0;
+            }
+            ++i;
+        }
+        writeLiteral(out, target, literalStart, target.length);
+        out.writeByte(END);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks whether the file starts with the signature of a ZIP archive.
+     *
+     * @param f  file to check
+     * @return  true if the file looks like a ZIP archive
+     * @throws IOException  in case the file could not be read
+     */
+    public static boolean isArchive(File f) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            return raf.length() >= EOCD_SIZE && Integer.reverseBytes(raf.readInt()) == LOCAL_HEADER_SIG;
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+    }
+
+    /**
+     * Creates the delta of two ZIP archives at the level of their entries.
+     *
+     * The entries of the target archive are matched to the entries of the base
+     * archive by their names, CRC-32 checksums and compressed sizes. The compressed data
+     * of the matching entries is copied from the base archive, provided it is byte-identical.
+     * The local headers, which differ in the modification time even if the content
+     * is the same, the records of the other entries and the central directory
+     * of the target archive are added to the delta as they are, so the target archive
+     * is rebuilt byte-identical without inflating any entry.
+     *
+     * @param base  base archive
+     * @param baseHash  hash of the base archive
+     * @param target  target archive
+     * @return  the delta or null if either of the files is not a ZIP archive the delta could be created for
+     * @throws IOException  in case of a failure
+     */
+    public static byte[] createForArchive(File base, byte[] baseHash, File target) throws IOException {
+        assert base != null : ProvisionErrors.nullArgument("base");
+        assert baseHash != null : ProvisionErrors.nullArgument("baseHash");
+        assert target != null : ProvisionErrors.nullArgument("target");
+
+        final RandomAccessFile baseRaf = new RandomAccessFile(base, "r");
+        RandomAccessFile targetRaf = null;
+        try {
+            targetRaf = new RandomAccessFile(target, "r");
+            final ArchiveRecords baseRecords = ArchiveRecords.read(baseRaf);
+            if(baseRecords == null) {
+                return null;
+            }
+            final ArchiveRecords targetRecords = ArchiveRecords.read(targetRaf);
+            if(targetRecords == null) {
+                return null;
+            }
+            final Map<String, ArchiveRecord> baseEntries = new HashMap<String, ArchiveRecord>(baseRecords.records.length);
+            for(ArchiveRecord record : baseRecords.records) {
+                baseEntries.put(record.name, record);
+            }
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, baseHash, baseRaf.length(), targetRaf.length());
+
+            final byte[] baseBuf = new byte[65536];
+            final byte[] targetBuf = new byte[65536];
+            long literalStart = 0;
+            for(ArchiveRecord record : targetRecords.records) {
+                final ArchiveRecord baseRecord = baseEntries.get(record.name);
+                if(baseRecord == null || record.compressedSize == 0 || baseRecord.crc != record.crc
+                        || baseRecord.compressedSize != record.compressedSize
+                        || !matches(baseRaf, baseRecord.dataOffset, targetRaf, record.dataOffset, record.compressedSize, baseBuf, targetBuf)) {
+                    continue;
+                }
+                // the local header of the target entry and whatever precedes it
+                writeLiteral(out, targetRaf, literalStart, record.dataOffset - literalStart, targetBuf);
+                writeCopy(out, baseRecord.dataOffset, record.compressedSize);
+                literalStart = record.dataOffset + record.compressedSize;
+            }
+            // the rest of the records and the central directory
+            writeLiteral(out, targetRaf, literalStart, targetRaf.length() - literalStart, targetBuf);
+            out.writeByte(END);
+            out.close();
+            return bytes.toByteArray();
+        } finally {
+            IoUtils.safeClose(targetRaf);
+            IoUtils.safeClose(baseRaf);
+        }
+    }
+
+    /**
+     * Reads the header of the delta. The rest of the delta is read
+     * from the stream when the delta is applied.
+     *
+     * @param delta  delta stream, which is not closed by the delta
+     * @return  the delta
+     * @throws IOException  in case the delta could not be read
+     */
+    public static ContentDelta read(InputStream delta) throws IOException {
+        assert delta != null : ProvisionErrors.nullArgument("delta");
+        final DataInputStream in = new DataInputStream(delta);
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a content delta");
+        }
+        final int version = in.readInt();
+        if(version != FORMAT_VERSION) {
+            throw new IOException("Unsupported content delta format version " + version);
+        }
+        final byte[] baseHash = new byte[in.readUnsignedShort()];
+        in.readFully(baseHash);
+        return new ContentDelta(in, baseHash, in.readLong(), in.readLong());
+    }
+
+    /**
+     * The name of the package entry holding the delta of the content at the path.
+     *
+     * @param relativePath  relative path of the content
+     * @return  entry name
+     */
+    public static String entryName(String relativePath) {
+        return ENTRY_PREFIX + relativePath;
+    }
+
+    private final DataInputStream in;
+    private final byte[] baseHash;
+    private final long baseLength;
+    private final long targetLength;
+
+    private ContentDelta(DataInputStream in, byte[] baseHash, long baseLength, long targetLength) {
+        this.in = in;
+        this.baseHash = baseHash;
+        this.baseLength = baseLength;
+        this.targetLength = targetLength;
+    }
+
+    /**
+     * The hash of the base content the delta was created against.
+     *
+     * @return  hash of the base content
+     */
+    public byte[] getBaseHash() {
+        return baseHash;
+    }
+
+    /**
+     * Writes the content the delta turns the base into.
+     * The delta can be applied only once.
+     *
+     * @param base  base content
+     * @param os  target stream, which is left open
+     * @throws IOException  in case of a failure or if the delta does not match the base
+     */
+    public void apply(File base, OutputStream os) throws IOException {
+        assert base != null : ProvisionErrors.nullArgument("base");
+        assert os != null : ProvisionErrors.nullArgument("os");
+        final RandomAccessFile raf = new RandomAccessFile(base, "r");
+        try {
+            if(raf.length() != baseLength) {
+                throw new IOException("The length of " + base.getAbsolutePath() + " is " + raf.length() + " but the delta expects " + baseLength);
+            }
+            final byte[] buf = new byte[65536];
+            long written = 0;
+            byte op = in.readByte();
+            while(op != END) {
+                int length;
+                if(op == COPY) {
+                    raf.seek(in.readLong());
+                    length = in.readInt();
+                    written += length;
+                    while(length > 0) {
+                        final int chunk = Math.min(length, buf.length);
+                        raf.readFully(buf, 0, chunk);
+                        os.write(buf, 0, chunk);
+                        length -= chunk;
+                    }
+                } else if(op == ADD) {
+                    length = in.readInt();
+                    written += length;
+                    while(length > 0) {
+                        final int chunk = Math.min(length, buf.length);
+                        in.readFully(buf, 0, chunk);
+                        os.write(buf, 0, chunk);
+                        length -= chunk;
+                    }
+                } else {
+                    throw new IOException("Unexpected delta instruction " + op);
+                }
+                op = in.readByte();
+            }
+            if(written != targetLength) {
+                throw new IOException("The delta produced " + written + " bytes instead of " + targetLength);
+            }
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, byte[] baseHash, long baseLength, long targetLength) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeShort(baseHash.length);
+        out.write(baseHash);
+        out.writeLong(baseLength);
+        out.writeLong(targetLength);
+    }
+
+    private static void writeCopy(DataOutputStream out, long offset, long length) throws IOException {
+        while(length > 0) {
+            final int chunk = (int) Math.min(length, Integer.MAX_VALUE);
+            out.writeByte(COPY);
+            out.writeLong(offset);
+            out.writeInt(chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private static void writeLiteral(DataOutputStream out, RandomAccessFile target, long offset, long length, byte[] buf) throws IOException {
+        target.seek(offset);
+        while(length > 0) {
+            int chunk = (int) Math.min(length, Integer.MAX_VALUE);
+            out.writeByte(ADD);
+            out.writeInt(chunk);
+            length -= chunk;
+            while(chunk > 0) {
+                final int read = Math.min(chunk, buf.length);
+                target.readFully(buf, 0, read);
+                out.write(buf, 0, read);
+                chunk -= read;
+            }
+        }
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] target, int start, int end) throws IOException {
+        if(start == end) {
+            return;
+        }
+        out.writeByte(ADD);
+        out.writeInt(end - start);
+        out.write(target, start, end - start);
+    }
+
+    private static int checksum(byte[] bytes, int offset) {
+        int a = 0;
+        int b = 0;
+        for(int j = 0; j < BLOCK_SIZE; ++j) {
+            a += bytes[offset + j] & 0xff;
+            b += (BLOCK_SIZE - j) * (bytes[offset + j] & 0xff);
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int targetOffset, int length) {
+        for(int j = 0; j < length; ++j) {
+            if(base[baseOffset + j] != target[targetOffset + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(RandomAccessFile base, long baseOffset, RandomAccessFile target, long targetOffset, long length,
+            byte[] baseBuf, byte[] targetBuf) throws IOException {
+        base.seek(baseOffset);
+        target.seek(targetOffset);
+        while(length > 0) {
+            final int chunk = (int) Math.min(length, baseBuf.length);
+            base.readFully(baseBuf, 0, chunk);
+            target.readFully(targetBuf, 0, chunk);
+            if(!matches(baseBuf, 0, targetBuf, 0, chunk)) {
+                return false;
+            }
+            length -= chunk;
+        }
+        return true;
+    }
+
+    private static class ArchiveRecord {
+        final String name;
+        final long crc;
+        final long compressedSize;
+        final long offset;
+        long dataOffset;
+
+        ArchiveRecord(String name, long crc, long compressedSize, long offset) {
+            this.name = name;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * The records of the entries of an archive, i.e. the local headers, the compressed data
+     * and the data descriptors, in the order they appear in the archive, and where the compressed
+     * data of each entry starts.
+     */
+    private static class ArchiveRecords {
+
+        /**
+         * Reads the records from the central directory of the archive.
+         * Returns null if the file is not a ZIP archive or uses the ZIP64 extensions.
+         */
+        static ArchiveRecords read(RandomAccessFile raf) throws IOException {
+            final long length = raf.length();
+            if(length < EOCD_SIZE) {
+                return null;
+            }
+            final int tailLength = (int) Math.min(length, EOCD_SIZE + 0xffff);
+            final byte[] tail = new byte[tailLength];
+            raf.seek(length - tailLength);
+            raf.readFully(tail);
+            int eocd = tailLength - EOCD_SIZE;
+            while(eocd >= 0 && readInt(tail, eocd) != EOCD_SIG) {
+                --eocd;
+            }
+            if(eocd < 0) {
+                return null;
+            }
+            final int entries = readShort(tail, eocd + 10);
+            final long cdSize = readInt(tail, eocd + 12) & 0xffffffffL;
+            final long cdOffset = readInt(tail, eocd + 16) & 0xffffffffL;
+            if(entries == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL || cdOffset + cdSize > length - tailLength + eocd) {
+                return null;
+            }
+
+            final byte[] cd = new byte[(int) cdSize];
+            raf.seek(cdOffset);
+            raf.readFully(cd);
+            final ArchiveRecord[] records = new ArchiveRecord[entries];
+            int i = 0;
+            for(int e = 0; e < entries; ++e) {
+                if(i + CENTRAL_HEADER_SIZE > cd.length || readInt(cd, i) != CENTRAL_HEADER_SIG) {
+                    return null;
+                }
+                final int nameLength = readShort(cd, i + 28);
+                final long offset = readInt(cd, i + 42) & 0xffffffffL;
+                if(offset >= cdOffset || i + CENTRAL_HEADER_SIZE + nameLength > cd.length) {
+                    return null;
+                }
+                records[e] = new ArchiveRecord(new String(cd, i + CENTRAL_HEADER_SIZE, nameLength, "UTF-8"),
+                        readInt(cd, i + 16) & 0xffffffffL, readInt(cd, i + 20) & 0xffffffffL, offset);
+                i += CENTRAL_HEADER_SIZE + nameLength + readShort(cd, i + 30) + readShort(cd, i + 32);
+            }
+
+            // a record ends where the next one or the central directory starts,
+            // the data follows the local header, which may differ from the central one in the extra field
+            final byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+            Arrays.sort(records, new Comparator<ArchiveRecord>() {
+                @Override
+                public int compare(ArchiveRecord o1, ArchiveRecord o2) {
+                    return o1.offset < o2.offset ? -1 : (o1.offset == o2.offset ? 0 : 1);
+                }
+            });
+            for(int e = 0; e < records.length; ++e) {
+                final long end = e + 1 < records.length ? records[e + 1].offset : cdOffset;
+                if(end - records[e].offset < LOCAL_HEADER_SIZE) {
+                    return null;
+                }
+                raf.seek(records[e].offset);
+                raf.readFully(localHeader);
+                if(readInt(localHeader, 0) != LOCAL_HEADER_SIG) {
+                    return null;
+                }
+                records[e].dataOffset = records[e].offset + LOCAL_HEADER_SIZE + readShort(localHeader, 26) + readShort(localHeader, 28);
+                if(records[e].dataOffset + records[e].compressedSize > end) {
+                    return null;
+                }
+            }
+            return new ArchiveRecords(records);
+        }
+
+        final ArchiveRecord[] records;
+
+        private ArchiveRecords(ArchiveRecord[] records) {
+            this.records = records;
+        }
+
+        private static int readInt(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+        }
+
+        private static int readShort(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+        }
+    }
+}
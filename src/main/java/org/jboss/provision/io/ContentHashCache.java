@@ -0,0 +1,277 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.provision.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.HashUtils;
+
+/**
+ * Persistent cache of content hashes. An entry is keyed by the absolute path
+ * of a file and is valid as long as the size, the last modification time and
+ * the file key (the inode, where supported) of the file remain the same.
+ *
+ * The modification time is advanced by the file system in ticks coarser than
+ * its precision, so a change made shortly after the entry was recorded may not
+ * be reflected in the modification time. An entry for a file modified shortly
+ * before it was hashed would be racy, i.e. never trusted, so it is not recorded and
+ * the hash is re-calculated for the file until its modification time becomes old enough.
+ * This is also why the hashes of the content just written are not recorded.
+ *
+ * In the verify mode, the hashes are always calculated from the content
+ * on the disk and the cache is only updated.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentHashCache {
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** The interval during which an entry with a low precision modification time is not trusted */
+    private static final long RACY_INTERVAL_MILLIS = 2000;
+
+    /**
+     * Loads the cache from the file. If the file does not exist
+     * or could not be read, the cache will be empty.
+     *
+     * @param file  file the cache is persisted to
+     * @param verify  whether the cached hashes should be ignored
+     * @return  hash cache
+     */
+    public static ContentHashCache load(File file, boolean verify) {
+        assert file != null : ProvisionErrors.nullArgument("file");
+        final ContentHashCache cache = new ContentHashCache(file, verify);
+        if(file.exists()) {
+            try {
+                cache.read();
+            } catch (IOException e) {
+                // the cache will be re-populated
+                cache.entries.clear();
+                cache.modified = true;
+            }
+        }
+        return cache;
+    }
+
+    private final File file;
+    private final boolean verify;
+    private final ConcurrentNavigableMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+    private volatile boolean modified;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private ContentHashCache(File file, boolean verify) {
+        this.file = file;
+        this.verify = verify;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * Returns the hash of the file from the cache, if the cached entry is
+     * still valid, otherwise calculates the hash and caches it.
+     *
+     * @param f  file to hash
+     * @return  hash of the file
+     * @throws IOException  in case the file could not be read
+     */
+    public byte[] getHash(File f) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        if(attrs.isDirectory()) {
+            // the modification time of a directory does not reflect changes deeper in the tree
+            misses.incrementAndGet();
+            return HashUtils.hashFile(f);
+        }
+        final String path = f.getAbsolutePath();
+        if(!verify) {
+            final Entry entry = entries.get(path);
+            if(entry != null && entry.matches(attrs) && !entry.isRacy()) {
+                hits.incrementAndGet();
+                return entry.hash;
+            }
+        }
+        misses.incrementAndGet();
+        final long verifiedAt = System.currentTimeMillis();
+        final byte[] hash = HashUtils.hashFile(f);
+        bytesRead.addAndGet(attrs.size());
+        final Entry entry = new Entry(attrs, hash, verifiedAt);
+        if(!entry.isRacy()) {
+            entries.put(path, entry);
+            modified = true;
+        } else if(entries.remove(path) != null) {
+            modified = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Removes the entry for the path and the paths under it.
+     *
+     * @param f  file or directory
+     */
+    public void remove(File f) {
+        final String path = f.getAbsolutePath();
+        if(entries.remove(path) != null) {
+            modified = true;
+        }
+        final Map<String, Entry> children = entries.subMap(path + File.separatorChar, path + (char)(File.separatorChar + 1));
+        if(!children.isEmpty()) {
+            children.clear();
+            modified = true;
+        }
+    }
+
+    /**
+     * @return  the number of hashes returned from the cache since the cache was loaded
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return  the number of hashes calculated from the content since the cache was loaded
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return  the number of bytes of the files read to calculate their hashes
+     *          since the cache was loaded, the content of the directories is not counted
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Persists the cache, if it has been modified since it was loaded.
+     *
+     * @throws IOException  in case the cache could not be persisted
+     */
+    public void store() throws IOException {
+        if(!modified) {
+            return;
+        }
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        if(!file.getParentFile().exists()) {
+            IoUtils.mkdirs(file.getParentFile());
+        }
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for(Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                final Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeUTF(entry.fileKey);
+                out.writeLong(entry.verifiedAt);
+                out.writeShort(entry.hash.length);
+                out.write(entry.hash);
+            }
+            out.close();
+        } finally {
+            IoUtils.safeClose(out);
+        }
+        IoUtils.move(tmp, file);
+        modified = false;
+    }
+
+    private void read() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported hash cache format in " + file.getAbsolutePath());
+            }
+            int i = in.readInt();
+            while(i-- > 0) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+                final String fileKey = in.readUTF();
+                final long verifiedAt = in.readLong();
+                final byte[] hash = new byte[in.readShort()];
+                in.readFully(hash);
+                entries.put(path, new Entry(size, lastModified, fileKey, verifiedAt, hash));
+            }
+        } finally {
+            IoUtils.safeClose(in);
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String fileKey;
+        final long verifiedAt;
+        final byte[] hash;
+
+        Entry(BasicFileAttributes attrs, byte[] hash, long verifiedAt) {
+            this(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), toString(attrs.fileKey()), verifiedAt, hash);
+        }
+
+        Entry(long size, long lastModified, String fileKey, long verifiedAt, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.verifiedAt = verifiedAt;
+            this.hash = hash;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() &&
+                    lastModified == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) &&
+                    fileKey.equals(toString(attrs.fileKey()));
+        }
+
+        boolean isRacy() {
+            return TimeUnit.NANOSECONDS.toMillis(lastModified) + RACY_INTERVAL_MILLIS > verifiedAt;
+        }
+
+        private static String toString(Object fileKey) {
+            return fileKey == null ? "" : fileKey.toString();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.io.ContentTask.BackupPathFactory;
+import org.jboss.provision.io.ContentTask.BackupStrategy;
+import org.jboss.provision.util.HashUtils;
+
+/**
+ * Content-addressable store of the backed up content.
+ *
+ * The content is stored once per digest of its bytes under <code>&lt;hex[0..2]&gt;/&lt;hex[2..]&gt;</code>.
+ * The digest is calculated from the stored bytes themselves, neither the hash cache nor the hashing
+ * rules of the instructions, such as {@link HashUtils#isContentHashed(File)}, are involved,
+ * so that different content never shares a stored file. Every backup of the same content
+ * is a hard link to the stored file.
+ * The number of links of a stored file is its reference count, deleting a backup
+ * releases the reference. The stored files nobody refers to are deleted by {@link #gc()}.
+ *
+ * If the file system does not support hard links, the backups are copies of the stored content.
+ * If the file system does not report the number of links, the stored content is never collected.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentStore {
+
+    private static final String TMP_SUFFIX = ".tmp";
+    /** the content being stored before its digest is known */
+    private static final String TMP_DIR = "tmp";
+    private static final String NLINK = "unix:nlink";
+
+    public static ContentStore open(File dir) {
+        assert dir != null : ProvisionErrors.nullArgument("dir");
+        return new ContentStore(dir);
+    }
+
+    private final File dir;
+
+    private ContentStore(File dir) {
+        this.dir = dir;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @param hash  the digest of the content
+     * @return  the stored file for the digest, which may not exist
+     */
+    public File getContent(byte[] hash) {
+        final String hex = HashUtils.bytesToHexString(hash);
+        return IoUtils.newFile(dir, hex.substring(0, 2), hex.substring(2));
+    }
+
+    /**
+     * Creates a backup path factory which stores the backups in this store
+     * and links them to the backup files of the given factory.
+     *
+     * @param backupFiles  the factory of the backup files
+     * @return  backup path factory
+     */
+    public BackupPathFactory backupPathFactory(final BackupPathFactory backupFiles) {
+        assert backupFiles != null : ProvisionErrors.nullArgument("backupFiles");
+        return new BackupStrategy() {
+            @Override
+            public File getBackupFile(File original) {
+                return backupFiles.getBackupFile(original);
+            }
+            @Override
+            public void backup(File original, File backup) throws IOException {
+                ContentStore.this.backup(original, backup);
+            }
+            @Override
+            public void restore(File backup, File original) throws IOException {
+                ContentStore.this.restore(backup, original);
+            }
+        };
+    }
+
+    /**
+     * Moves the file to the store, unless the same content is already stored,
+     * and links the backup to the stored content. Directories are moved to the backup.
+     *
+     * @param original  the file to back up
+     * @param backup  backup file
+     * @throws IOException  in case of a failure
+     */
+    void backup(File original, File backup) throws IOException {
+        if(original.isDirectory()) {
+            IoUtils.move(original, backup);
+            return;
+        }
+        // the original stays in place until the backup is complete, the commit journal relies on it
+        final File tmp = IoUtils.newFile(dir, TMP_DIR, UUID.randomUUID() + TMP_SUFFIX);
+        IoUtils.mkdirs(tmp.getParentFile());
+        byte[] hash;
+        try {
+            Files.createLink(tmp.toPath(), original.toPath());
+            hash = digest(tmp);
+        } catch(IOException | UnsupportedOperationException e) {
+            IoUtils.recursiveDelete(tmp);
+            hash = copy(original, tmp);
+        }
+        final File content = getContent(hash);
+        if(content.exists()) {
+            IoUtils.recursiveDelete(tmp);
+        } else {
+            // concurrent backups of the same content end up with the same content stored
+            IoUtils.mkdirs(content.getParentFile());
+            Files.move(tmp.toPath(), content.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        if(!backup.getParentFile().exists()) {
+            IoUtils.mkdirs(backup.getParentFile());
+        }
+        try {
+            Files.createLink(backup.toPath(), content.toPath());
+        } catch(FileAlreadyExistsException e) {
+            throw e;
+        } catch(IOException | UnsupportedOperationException e) {
+            IoUtils.copyFile(content, backup);
+        }
+        if(original.exists()) {
+            IoUtils.recursiveDelete(original);
+        }
+    }
+
+    /**
+     * Restores the original from the backup. The original is a copy of
+     * the backup so that the stored content is never modified through it.
+     *
+     * @param backup  backup file
+     * @param original  the file to restore
+     * @throws IOException  in case of a failure
+     */
+    void restore(File backup, File original) throws IOException {
+        IoUtils.recursiveDelete(original);
+        if(backup.isDirectory()) {
+            IoUtils.move(backup, original);
+            return;
+        }
+        IoUtils.copyFile(backup, original);
+        IoUtils.recursiveDelete(backup);
+    }
+
+    /**
+     * Deletes the stored content which is not linked to by any backup.
+     *
+     * @return  the number of deleted files
+     * @throws IOException  in case of a failure
+     */
+    public int gc() throws IOException {
+        final File[] buckets = dir.listFiles();
+        if(buckets == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for(File bucket : buckets) {
+            final File[] files = bucket.listFiles();
+            if(files == null) {
+                continue;
+            }
+            for(File f : files) {
+                if(f.getName().endsWith(TMP_SUFFIX) || !isReferenced(f)) {
+                    IoUtils.recursiveDelete(f);
+                    ++deleted;
+                }
+            }
+            if(bucket.list().length == 0) {
+                IoUtils.recursiveDelete(bucket);
+            }
+        }
+        return deleted;
+    }
+
+    private static byte[] digest(File f) throws IOException {
+        final MessageDigest digest = HashUtils.getDigest();
+        final InputStream is = new FileInputStream(f);
+        try {
+            final byte[] buf = new byte[8192];
+            int read = is.read(buf);
+            while(read != -1) {
+                digest.update(buf, 0, read);
+                read = is.read(buf);
+            }
+        } finally {
+            IoUtils.safeClose(is);
+        }
+        return digest.digest();
+    }
+
+    private static byte[] copy(File original, File target) throws IOException {
+        final InputStream is = new FileInputStream(original);
+        try {
+            final OutputStream os = new FileOutputStream(target);
+            try {
+                final byte[] hash = HashUtils.copyAndGetHash(is, os);
+                os.close();
+                return hash;
+            } finally {
+                IoUtils.safeClose(os);
+            }
+        } finally {
+            IoUtils.safeClose(is);
+        }
+    }
+
+    private static boolean isReferenced(File f) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(f.toPath(), NLINK)).intValue() > 1;
+        } catch(UnsupportedOperationException | IllegalArgumentException e) {
+            // the reference count is not available, the content is kept
+            return true;
+        }
+    }
+}
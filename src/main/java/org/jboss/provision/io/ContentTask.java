@@ -23,9 +23,11 @@ package org.jboss.provision.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Properties;
 
 import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.HashUtils;
 
 /**
  *
@@ -37,20 +39,79 @@ public abstract class ContentTask {
         File getBackupFile(File original);
     }
 
-    public static final BackupPathFactory DEFAULT_BACKUP_FACTORY = new BackupPathFactory() {
+    /**
+     * Backup path factory which also controls how the original content is preserved
+     * before it is overwritten or deleted. By default, the original is copied to the backup file
+     * and stays in place until the task is executed, which is also how the content is backed up
+     * for the factories that don't extend this class.
+     */
+    public abstract static class BackupStrategy implements BackupPathFactory {
+
+        /**
+         * Preserves the original in the backup file.
+         *
+         * @param original  the file to back up
+         * @param backup  backup file, which does not exist
+         * @throws IOException  in case of a failure
+         */
+        public void backup(File original, File backup) throws IOException {
+            IoUtils.copyFile(original, backup);
+        }
+
+        /**
+         * Replaces the original with the backup.
+         *
+         * @param backup  backup file
+         * @param original  the file to restore
+         * @throws IOException  in case of a failure
+         */
+        public void restore(File backup, File original) throws IOException {
+            IoUtils.recursiveDelete(original);
+            IoUtils.move(backup, original);
+        }
+    }
+
+    /**
+     * Backup strategy which renames the original to the backup file,
+     * the original is copied only if the rename is not possible.
+     */
+    public abstract static class MoveBackupStrategy extends BackupStrategy {
+        @Override
+        public void backup(File original, File backup) throws IOException {
+            IoUtils.move(original, backup);
+        }
+    }
+
+    // other tasks of the same commit may read from the originals (e.g. the history records) during execution, so they are copied
+    public static final BackupPathFactory DEFAULT_BACKUP_FACTORY = new BackupStrategy() {
         @Override
         public File getBackupFile(File original) {
             return new File(original.getParentFile(), original.getName() + FSImage.BACKUP_SUFFIX);
         }
     };
 
+    private static BackupStrategy copy(final BackupPathFactory backupPathFactory) {
+        return new BackupStrategy() {
+            @Override
+            public File getBackupFile(File original) {
+                return backupPathFactory.getBackupFile(original);
+            }
+        };
+    }
+
     public static PropertiesContentWriter forProperties(Properties props, File target) {
         return new PropertiesContentWriter(props, target);
     }
     protected final File original;
     private File backup;
-    private final BackupPathFactory backupPathFactory;
+    private final BackupStrategy backupStrategy;
     private final boolean cleanup;
+    private boolean created;
+    /** the outermost directory that will be created for the target */
+    private File createdDir;
+    protected byte[] writtenHash;
+    protected byte[] expectedHash;
+    protected boolean expectedHashVerified;
 
     ContentTask(File target) {
         this(target, DEFAULT_BACKUP_FACTORY, true);
@@ -58,7 +119,7 @@ public abstract class ContentTask {
 
     protected ContentTask(File target, BackupPathFactory backupPathFactory, boolean cleanup) {
         this.original = target;
-        this.backupPathFactory = backupPathFactory;
+        this.backupStrategy = backupPathFactory instanceof BackupStrategy ? (BackupStrategy) backupPathFactory : copy(backupPathFactory);
         this.cleanup = cleanup;
     }
 
@@ -78,27 +139,141 @@ public abstract class ContentTask {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * The file the task reads its content from during execution, if any.
+     * FSImage uses it to order the tasks that are executed concurrently.
+     */
+    File getSourceFile() {
+        return null;
+    }
+
+    /**
+     * The number of bytes the task will write to the target.
+     *
+     * @return  the size of the content or -1 if it is not known until the task is executed
+     */
+    public long getContentSize() {
+        return -1;
+    }
+
+    /**
+     * The number of bytes of the current content of the target
+     * that will be preserved in the backup.
+     *
+     * @return  the size of the current content of the target or 0 if it does not exist
+     */
+    public long getBackupSize() {
+        return IoUtils.sizeOf(original);
+    }
+
+    /**
+     * The hash of the content the target will have once the task is executed.
+     *
+     * @return  hash of the content or null if the target will not exist
+     * @throws IOException  in case the content could not be read
+     */
+    public byte[] getContentHash() throws IOException {
+        if(expectedHash != null) {
+            return expectedHash;
+        }
+        if(getContentFile() != null) {
+            return HashUtils.hashFile(getContentFile());
+        }
+        if(getContentString() != null) {
+            return HashUtils.hashBytes(getContentString().getBytes());
+        }
+        if(!original.exists()) {
+            return null;
+        }
+        return HashUtils.hashFile(original);
+    }
+
+    /**
+     * The hash of the content written to the target by {@link #execute()},
+     * if the task calculated it while writing.
+     *
+     * @return  hash of the written content or null
+     */
+    public byte[] getWrittenHash() {
+        return writtenHash;
+    }
+
+    /**
+     * The hash the content written by {@link #execute()} is expected to have.
+     * A task that is given the expected hash calculates the hash of the content
+     * while writing it and fails if the hashes don't match.
+     *
+     * @param expectedHash  the expected hash or null if the content is not verified
+     */
+    void setExpectedHash(byte[] expectedHash) {
+        this.expectedHash = expectedHash;
+    }
+
+    /**
+     * The hash of the content which has already been verified. The task
+     * doesn't re-calculate it while writing the content.
+     *
+     * @param contentHash  hash of the content
+     */
+    void setVerifiedHash(byte[] contentHash) {
+        this.expectedHash = contentHash;
+        this.expectedHashVerified = contentHash != null;
+    }
+
+    protected void verifyWrittenHash() throws IOException {
+        if(expectedHash != null && !Arrays.equals(expectedHash, writtenHash)) {
+            throw new IOException(ProvisionErrors.unexpectedContentHash(original, expectedHash, writtenHash).getLocalizedMessage());
+        }
+    }
+
+    /**
+     * The file the original content of the target is going to be backed up to.
+     */
+    File getBackupFile() {
+        return backupStrategy.getBackupFile(original);
+    }
+
+    /**
+     * Whether the backup is deleted once the image is committed.
+     */
+    boolean isCleanup() {
+        return cleanup;
+    }
+
     public void backup() throws IOException {
         if (!original.exists()) {
+            created = true;
+            File dir = original.getParentFile();
+            while(dir != null && !dir.exists()) {
+                createdDir = dir;
+                dir = dir.getParentFile();
+            }
             return;
         }
-        backup = backupPathFactory.getBackupFile(original);
+        final File backup = backupStrategy.getBackupFile(original);
         if (backup.exists()) {
-            backup = null;
             throw new IOException(ProvisionErrors.pathAlreadyExists(backup).getLocalizedMessage());
         }
-        IoUtils.copyFile(original, backup);
+        backupStrategy.backup(original, backup);
+        this.backup = backup;
     }
 
     public void revert() throws IOException {
-        if (backup == null) {
+        if (created) {
+            // the target did not exist before the task was executed
+            IoUtils.recursiveDelete(original);
+            if(createdDir != null) {
+                // the tasks for the other targets in the directory may have not been reverted yet
+                deleteEmptyDirs(createdDir);
+                createdDir = null;
+            }
+            created = false;
             return;
         }
-        if (backup.isDirectory()) {
-            IoUtils.recursiveDelete(original);
+        if (backup == null) {
+            return;
         }
-        IoUtils.copyFile(backup, original);
-        IoUtils.recursiveDelete(backup);
+        backupStrategy.restore(backup, original);
         backup = null;
     }
 
@@ -115,6 +290,23 @@ public abstract class ContentTask {
 
     public abstract void execute() throws IOException;
 
+    /**
+     * Deletes the directory unless there is a file under it.
+     */
+    private static void deleteEmptyDirs(File dir) {
+        final File[] children = dir.listFiles();
+        if(children == null) {
+            return;
+        }
+        for(File child : children) {
+            if(child.isDirectory()) {
+                deleteEmptyDirs(child);
+            }
+        }
+        // not deleted unless empty
+        dir.delete();
+    }
+
     @Override
     public String toString() {
         return "ContentTask for " + original.getAbsolutePath();
@@ -23,10 +23,12 @@ package org.jboss.provision.io;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.security.DigestOutputStream;
 
-import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.HashUtils;
 
 /**
  *
@@ -42,13 +44,16 @@ public abstract class ContentWriter extends ContentTask {
 
     @Override
     public void execute() throws IOException {
-        if(!original.getParentFile().exists() && !original.getParentFile().mkdirs()) {
-            throw new IOException(ProvisionErrors.couldNotCreateDir(original.getParentFile()));
+        if(!original.getParentFile().exists()) {
+            IoUtils.mkdirs(original.getParentFile());
         }
         BufferedWriter writer = null;
         try {
-            writer = new BufferedWriter(new FileWriter(original));
+            final DigestOutputStream os = new DigestOutputStream(new FileOutputStream(original), HashUtils.newDigest());
+            writer = new BufferedWriter(new OutputStreamWriter(os));
             write(writer);
+            writer.close();
+            writtenHash = os.getMessageDigest().digest();
         } finally {
             IoUtils.safeClose(writer);
         }
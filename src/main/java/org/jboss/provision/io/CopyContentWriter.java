@@ -43,6 +43,15 @@ class CopyContentWriter extends ContentWriter {
         return f;
     }
     @Override
+    public long getContentSize() {
+        return f.length();
+    }
+
+    @Override
+    File getSourceFile() {
+        return f;
+    }
+    @Override
     public void execute() throws IOException {
         IoUtils.copyFile(f, original);
     }
@@ -43,6 +43,11 @@ class DeleteTask extends ContentTask {
                 return true;
             }
             @Override
+            public long getBackupSize() {
+                // the parent directory is backed up with its content
+                return 0;
+            }
+            @Override
             public void backup() throws IOException {
             }
             @Override
@@ -69,6 +74,10 @@ class DeleteTask extends ContentTask {
         return true;
     }
     @Override
+    public long getContentSize() {
+        return 0;
+    }
+    @Override
     public void execute() throws IOException {
         IoUtils.recursiveDelete(original);
     }
@@ -25,13 +25,31 @@ package org.jboss.provision.io;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.ProvisionListener;
 import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
 import org.jboss.provision.io.ContentTask.BackupPathFactory;
 import org.jboss.provision.util.HashUtils;
+import org.jboss.provision.util.PathTrie;
 
 /**
  *
@@ -41,6 +59,18 @@ public class FSImage {
 
     static final String BACKUP_SUFFIX = ".fsimagebkp";
 
+    /**
+     * How the committed changes are synced to the disk.
+     */
+    public enum Durability {
+        /** nothing is synced, the changes reach the disk whenever the operating system writes them back */
+        NONE,
+        /** the backups, and then the updated paths, are synced all together at the end of the phase they are written in */
+        BATCHED,
+        /** every backup and every updated path is synced as soon as it is written */
+        STRICT
+    }
+
     public enum PathStatus {
         DELETE_SCHEDULED,
         NOT_SCHEDULED,
@@ -60,21 +90,149 @@ public class FSImage {
         }
     }
 
-    public FSImage() {}
+    /**
+     * An update of a path scheduled in the image.
+     */
+    public static class ScheduledUpdate {
+        private final File target;
+        private final PathStatus status;
+        private final long contentSize;
+        private final long backupSize;
+
+        ScheduledUpdate(File target, PathStatus status, long contentSize, long backupSize) {
+            this.target = target;
+            this.status = status;
+            this.contentSize = contentSize;
+            this.backupSize = backupSize;
+        }
+
+        public File getTarget() {
+            return target;
+        }
+
+        public PathStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * @return  the number of bytes written to the target or -1 if it is not known
+         */
+        public long getContentSize() {
+            return contentSize;
+        }
+
+        /**
+         * @return  the number of bytes of the current content of the target preserved in the backup
+         */
+        public long getBackupSize() {
+            return backupSize;
+        }
+
+        @Override
+        public String toString() {
+            return status + " " + target.getAbsolutePath();
+        }
+    }
+
+    private final int parallelism;
+    private ContentHashCache hashCache;
+    private File journalFile;
+    private Durability durability = Durability.NONE;
+    private ProvisionListener listener;
+
+    public FSImage() {
+        this(1);
+    }
+
+    /**
+     * Creates an image which will execute up to the specified number
+     * of independent tasks concurrently when committed.
+     *
+     * @param parallelism  the max number of tasks executed concurrently
+     */
+    public FSImage(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be greater than 0: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /** the keys are interned absolute paths of the targets */
+    private Map<PathTrie.Node, OpDescr> updates = new LinkedHashMap<PathTrie.Node, OpDescr>();
+
+    /**
+     * Sets the cache the hashes of the files that are not scheduled to be
+     * updated are looked up in. The entries of the targets are evicted on commit,
+     * the content just written is hashed again the next time its hash is requested.
+     *
+     * @param hashCache  hash cache
+     */
+    public void setHashCache(ContentHashCache hashCache) {
+        this.hashCache = hashCache;
+    }
+
+    public ContentHashCache getHashCache() {
+        return hashCache;
+    }
+
+    /**
+     * Sets the file the commit journal is written to. If the journal is set,
+     * an interrupted commit can be completed or reverted by {@link #recover(File)}.
+     *
+     * @param journalFile  commit journal file
+     */
+    public void setJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Sets how the changes are synced to the disk on commit. The default is {@link Durability#NONE}.
+     * Along with a file, its directory is synced too, so that the file is found after a power loss.
+     *
+     * @param durability  durability mode
+     */
+    public void setDurability(Durability durability) {
+        assert durability != null : ProvisionErrors.nullArgument("durability");
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
 
-    private Map<String, OpDescr> updates = new LinkedHashMap<String, OpDescr>();
+    /**
+     * Sets the listener notified of the phases of the commit and of the committed changes.
+     *
+     * @param listener  listener or null
+     */
+    public void setListener(ProvisionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Completes or reverts the commit that was interrupted while writing the journal.
+     *
+     * @param journalFile  commit journal file
+     * @return  true if the changes of the interrupted commit were reverted
+     * @throws IOException  in case of a failure
+     */
+    public static boolean recover(File journalFile) throws IOException {
+        assert journalFile != null : ProvisionErrors.nullArgument("journalFile");
+        return CommitJournal.recover(journalFile);
+    }
 
     public void write(ContentWriter contentWriter) {
-        final OpDescr descr = updates.get(contentWriter.getTarget().getAbsolutePath());
+        final PathTrie.Node path = key(contentWriter.getTarget());
+        final OpDescr descr = updates.get(path);
         if(descr != null) {
             if(descr.contentTask.isDelete()) {
                 // re-schedule to be the last
-                updates.remove(contentWriter.getTarget().getAbsolutePath());
-                updates.put(contentWriter.getTarget().getAbsolutePath(), descr);
+                updates.remove(path);
+                updates.put(path, descr);
             }
             descr.setTask(contentWriter);
         } else {
-            updates.put(contentWriter.getTarget().getAbsolutePath(), OpDescr.newTask(contentWriter));
+            updates.put(path, OpDescr.newTask(contentWriter));
         }
     }
 
@@ -87,14 +245,15 @@ public class FSImage {
     }
 
     protected void scheduleDelete(File target, ContentTask task) {
-        final OpDescr descr = updates.get(target.getAbsolutePath());
+        final PathTrie.Node path = key(target);
+        final OpDescr descr = updates.get(path);
         if (descr != null) {
             if (descr.contentTask == DeleteTask.DELETE_FLAG) {
                 return;
             }
             descr.setTask(task);
         } else {
-            updates.put(target.getAbsolutePath(), OpDescr.newTask(task));
+            updates.put(path, OpDescr.newTask(task));
         }
         if(target.isDirectory()) {
             for(File f : target.listFiles()) {
@@ -112,7 +271,67 @@ public class FSImage {
     }
 
     public void write(File content, File target, BackupPathFactory backupPathFactory, boolean cleanup) {
-        write(new FileContentWriter(content, target, backupPathFactory, cleanup));
+        write(content, target, null, backupPathFactory, cleanup);
+    }
+
+    /**
+     * Schedules the content to be copied to the target verifying
+     * the hash of the content while it is copied.
+     *
+     * @param content  file to copy
+     * @param target  target file
+     * @param expectedHash  expected hash of the content or null if the content should not be verified
+     * @param backupPathFactory  backup path factory
+     * @param cleanup  whether the backup should be deleted once the image is committed
+     */
+    public void write(File content, File target, byte[] expectedHash, BackupPathFactory backupPathFactory, boolean cleanup) {
+        write(content, target, expectedHash, true, backupPathFactory, cleanup);
+    }
+
+    /**
+     * Schedules the content to be copied to the target.
+     *
+     * @param content  file to copy
+     * @param target  target file
+     * @param contentHash  hash of the content or null if it is not known
+     * @param verify  whether the content should be verified against the hash while it is copied
+     *                or the hash has already been verified
+     * @param backupPathFactory  backup path factory
+     * @param cleanup  whether the backup should be deleted once the image is committed
+     */
+    public void write(File content, File target, byte[] contentHash, boolean verify, BackupPathFactory backupPathFactory, boolean cleanup) {
+        final ContentWriter task = new FileContentWriter(content, target, backupPathFactory, cleanup);
+        if(verify) {
+            task.setExpectedHash(contentHash);
+        } else {
+            task.setVerifiedHash(contentHash);
+        }
+        write(task);
+    }
+
+    public void write(ZipFile zip, ZipEntry entry, File target) {
+        write(new ZipEntryContentWriter(zip, entry, target));
+    }
+
+    public void write(ZipFile zip, ZipEntry entry, File target, BackupPathFactory backupPathFactory, boolean cleanup) {
+        write(zip, entry, target, null, backupPathFactory, cleanup);
+    }
+
+    /**
+     * Schedules the content of the ZIP entry to be written to the target
+     * verifying its hash while it is written.
+     *
+     * @param zip  ZIP file
+     * @param entry  ZIP entry
+     * @param target  target file
+     * @param expectedHash  expected hash of the content or null if the content should not be verified
+     * @param backupPathFactory  backup path factory
+     * @param cleanup  whether the backup should be deleted once the image is committed
+     */
+    public void write(ZipFile zip, ZipEntry entry, File target, byte[] expectedHash, BackupPathFactory backupPathFactory, boolean cleanup) {
+        final ContentWriter task = new ZipEntryContentWriter(zip, entry, target, backupPathFactory, cleanup);
+        task.setExpectedHash(expectedHash);
+        write(task);
     }
 
     public void write(Properties content, File target) {
@@ -123,6 +342,52 @@ public class FSImage {
         write(new ProvisionXmlWriter(content, target));
     }
 
+    /**
+     * Schedules the target to be replaced with the content.
+     *
+     * @param content  new content of the target
+     * @param target  target file
+     */
+    public void write(byte[] content, File target) {
+        final PathTrie.Node path = key(target);
+        final AppendTask task = new AppendTask(content, target, true);
+        final OpDescr descr = updates.get(path);
+        if(descr == null) {
+            updates.put(path, OpDescr.newTask(task));
+            return;
+        }
+        if(descr.contentTask.isDelete()) {
+            // re-schedule to be the last
+            updates.remove(path);
+            updates.put(path, descr);
+        }
+        descr.setTask(task);
+    }
+
+    /**
+     * Schedules the content to be appended to the target. Content appended
+     * to the same target is merged into a single task.
+     *
+     * @param content  content to append
+     * @param target  target file
+     */
+    public void append(byte[] content, File target) {
+        final PathTrie.Node path = key(target);
+        final OpDescr descr = updates.get(path);
+        if(descr == null) {
+            updates.put(path, OpDescr.newTask(new AppendTask(content, target, false)));
+        } else if(descr.contentTask instanceof AppendTask) {
+            ((AppendTask)descr.contentTask).append(content);
+        } else if(descr.contentTask.isDelete()) {
+            // re-schedule to be the last
+            updates.remove(path);
+            updates.put(path, descr);
+            descr.setTask(new AppendTask(content, target, true));
+        } else {
+            throw new IllegalStateException("Can't append to " + path + " scheduled for " + descr.contentTask);
+        }
+    }
+
     public void mkdirs(File target) {
         write(new MkDirsWriter(target));
     }
@@ -132,7 +397,7 @@ public class FSImage {
     }
 
     public String readContent(File target) throws IOException {
-        final OpDescr opDescr = updates.get(target.getAbsolutePath());
+        final OpDescr opDescr = updates.get(key(target));
         if(opDescr == null) {
             if(!target.exists()) {
                 return null;
@@ -145,8 +410,44 @@ public class FSImage {
         return opDescr.contentTask.getContentString();
     }
 
+    /**
+     * Reads the content the target will have once the scheduled updates are committed.
+     *
+     * @param target  target file
+     * @return  the content or null if the target won't exist
+     * @throws IOException  in case the content could not be read
+     */
+    public byte[] readBytes(File target) throws IOException {
+        final OpDescr opDescr = updates.get(key(target));
+        if(opDescr == null) {
+            if(!target.exists()) {
+                return null;
+            }
+            return Files.readAllBytes(target.toPath());
+        }
+        if(opDescr.contentTask.isDelete()) {
+            return null;
+        }
+        if(opDescr.contentTask instanceof AppendTask) {
+            final AppendTask appendTask = (AppendTask) opDescr.contentTask;
+            if(appendTask.isTruncate() || !target.exists()) {
+                return appendTask.getContent().clone();
+            }
+            final byte[] current = Files.readAllBytes(target.toPath());
+            final byte[] appended = appendTask.getContent();
+            final byte[] bytes = new byte[current.length + appended.length];
+            System.arraycopy(current, 0, bytes, 0, current.length);
+            System.arraycopy(appended, 0, bytes, current.length, appended.length);
+            return bytes;
+        }
+        if(opDescr.contentTask.getContentFile() != null) {
+            return Files.readAllBytes(opDescr.contentTask.getContentFile().toPath());
+        }
+        return opDescr.contentTask.getContentString().getBytes();
+    }
+
     public boolean exists(File target) {
-        final OpDescr opDescr = updates.get(target.getAbsolutePath());
+        final OpDescr opDescr = updates.get(key(target));
         if(opDescr == null) {
             return target.exists();
         }
@@ -154,7 +455,7 @@ public class FSImage {
     }
 
     public boolean isDeleted(File target) {
-        final OpDescr opDescr = updates.get(target.getAbsolutePath());
+        final OpDescr opDescr = updates.get(key(target));
         if(opDescr == null) {
             return false;
         }
@@ -162,30 +463,21 @@ public class FSImage {
     }
 
     public byte[] getHash(File target) throws IOException {
-        final OpDescr opDescr = updates.get(target.getAbsolutePath());
+        final OpDescr opDescr = updates.get(key(target));
         if(opDescr == null) {
             if(!target.exists()) {
                 return null;
             }
-            return HashUtils.hashFile(target);
+            return hashCache == null ? HashUtils.hashFile(target) : hashCache.getHash(target);
         }
         if(opDescr.contentTask.isDelete()) {
             return null;
         }
-        if(opDescr.contentTask.getContentFile() != null) {
-            return HashUtils.hashFile(opDescr.contentTask.getContentFile());
-        }
-        if(opDescr.contentTask.getContentString() != null) {
-            return HashUtils.hashBytes(opDescr.contentTask.getContentString().getBytes());
-        }
-        if(!opDescr.contentTask.getTarget().exists()) {
-            return null;
-        }
-        return HashUtils.hashFile(opDescr.contentTask.getTarget());
+        return opDescr.contentTask.getContentHash();
     }
 
     public PathStatus getStatus(File target) {
-        final OpDescr opDescr = updates.get(target.getAbsolutePath());
+        final OpDescr opDescr = updates.get(key(target));
         if(opDescr == null) {
             return PathStatus.NOT_SCHEDULED;
         }
@@ -193,56 +485,516 @@ public class FSImage {
     }
 
     public void commit() throws IOException {
+        CommitJournal journal = null;
+        if(journalFile != null && !updates.isEmpty()) {
+            // a previous commit might have been interrupted
+            CommitJournal.recover(journalFile);
+            final List<ContentTask> tasks = new ArrayList<ContentTask>(updates.size());
+            for(OpDescr op : updates.values()) {
+                // the paths under a deleted directory are backed up and restored along with the directory
+                if(op.contentTask != DeleteTask.DELETE_FLAG) {
+                    tasks.add(op.contentTask);
+                }
+            }
+            journal = CommitJournal.begin(journalFile, tasks);
+        }
+
+        // the sizes of the content are recorded before the sources and the targets are moved
+        final CommitStats stats = listener == null ? null : new CommitStats(updates.values());
+        if(parallelism > 1 && updates.size() > 1) {
+            commitConcurrently(journal);
+        } else {
+            commitSequentially(journal);
+        }
+
+        evictHashCache();
+        if(stats != null) {
+            stats.report(listener);
+        }
+        updates.clear();
+    }
+
+    private void commitSequentially(CommitJournal journal) throws IOException {
 
         final OpDescr[] ops = new OpDescr[updates.size()];
         int i = 0;
 
         // backup
+        long startedAt = phaseStarted(ProvisionListener.Phase.BACKUP);
         try {
             for (OpDescr op : updates.values()) {
                 ops[i++] = op;
-                op.contentTask.backup();
+                backup(op.contentTask);
+            }
+            syncBatch(null, true);
+            if(journal != null) {
+                journal.backupComplete();
             }
+            phaseEnded(ProvisionListener.Phase.BACKUP, startedAt);
         } catch (IOException | RuntimeException | Error e) {
+            // the originals may have been moved to the backups
+            boolean reverted = true;
             while(i > 0) {
-                ops[--i].contentTask.cleanup();
+                try {
+                    ops[--i].contentTask.revert();
+                } catch(Throwable t) {
+                    reverted = false;
+                    t.printStackTrace();
+                }
             }
+            closeJournal(journal, reverted);
             throw e;
         }
 
         // execute
+        startedAt = phaseStarted(ProvisionListener.Phase.EXECUTE);
         try {
             i = 0;
             while(i < ops.length) {
-                ops[i++].contentTask.execute();
+                execute(ops[i++].contentTask);
             }
+            syncBatch(null, false);
+            if(journal != null) {
+                journal.executeComplete();
+            }
+            phaseEnded(ProvisionListener.Phase.EXECUTE, startedAt);
         } catch (IOException | RuntimeException | Error e) {
+            // the tasks that haven't been executed are reverted too to restore their backups
+            boolean reverted = true;
+            i = ops.length;
             while (i > 0) {
                 try {
                     ops[--i].contentTask.revert();
                 } catch(Throwable t) {
+                    reverted = false;
                     t.printStackTrace();
                 }
             }
+            closeJournal(journal, reverted);
             throw e;
         }
 
         // cleanup
+        startedAt = phaseStarted(ProvisionListener.Phase.CLEANUP);
+        boolean cleanedUp = true;
         while(i > 0) {
             try {
                 ops[--i].contentTask.cleanup();
             } catch (IOException | RuntimeException | Error e) {
+                cleanedUp = false;
                 e.printStackTrace();
             }
         }
+        closeJournal(journal, cleanedUp);
+        phaseEnded(ProvisionListener.Phase.CLEANUP, startedAt);
+    }
 
-        updates.clear();
+    private void commitConcurrently(CommitJournal journal) throws IOException {
+
+        final List<List<ContentTask>> levels = scheduleLevels();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, updates.size()));
+        try {
+            // backup
+            int level = 0;
+            long startedAt = phaseStarted(ProvisionListener.Phase.BACKUP);
+            try {
+                while(level < levels.size()) {
+                    executeLevel(executor, levels.get(level++), true);
+                }
+                syncBatch(executor, true);
+                if(journal != null) {
+                    journal.backupComplete();
+                }
+                phaseEnded(ProvisionListener.Phase.BACKUP, startedAt);
+            } catch (IOException | RuntimeException | Error e) {
+                closeJournal(journal, revert(levels, level));
+                throw e;
+            }
+
+            // execute
+            startedAt = phaseStarted(ProvisionListener.Phase.EXECUTE);
+            try {
+                level = 0;
+                while(level < levels.size()) {
+                    executeLevel(executor, levels.get(level++), false);
+                }
+                syncBatch(executor, false);
+                if(journal != null) {
+                    journal.executeComplete();
+                }
+                phaseEnded(ProvisionListener.Phase.EXECUTE, startedAt);
+            } catch (IOException | RuntimeException | Error e) {
+                closeJournal(journal, revert(levels, levels.size()));
+                throw e;
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // cleanup
+        final long startedAt = phaseStarted(ProvisionListener.Phase.CLEANUP);
+        boolean cleanedUp = true;
+        int level = levels.size();
+        while(level > 0) {
+            final List<ContentTask> tasks = levels.get(--level);
+            int i = tasks.size();
+            while(i > 0) {
+                try {
+                    tasks.get(--i).cleanup();
+                } catch (IOException | RuntimeException | Error e) {
+                    cleanedUp = false;
+                    e.printStackTrace();
+                }
+            }
+        }
+        closeJournal(journal, cleanedUp);
+        phaseEnded(ProvisionListener.Phase.CLEANUP, startedAt);
+    }
+
+    private long phaseStarted(ProvisionListener.Phase phase) {
+        if(listener != null) {
+            listener.phaseStarted(phase);
+        }
+        return System.nanoTime();
+    }
+
+    private void phaseEnded(ProvisionListener.Phase phase, long startedAt) {
+        if(listener != null) {
+            listener.phaseEnded(phase, System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * The numbers of the committed paths and bytes reported to the listener.
+     */
+    private static class CommitStats {
+        private int pathsWritten;
+        private int pathsDeleted;
+        private long bytesWritten;
+        private long bytesBackedUp;
+        /** the targets the size of the content written to which is known only once it is written */
+        private List<File> unknownSizes = Collections.emptyList();
+
+        CommitStats(Collection<OpDescr> ops) {
+            for(OpDescr op : ops) {
+                final ContentTask task = op.contentTask;
+                bytesBackedUp += task.getBackupSize();
+                if(task.isDelete()) {
+                    ++pathsDeleted;
+                    continue;
+                }
+                ++pathsWritten;
+                final long size = task.getContentSize();
+                if(size >= 0) {
+                    bytesWritten += size;
+                    continue;
+                }
+                switch(unknownSizes.size()) {
+                    case 0:
+                        unknownSizes = Collections.singletonList(task.getTarget());
+                        break;
+                    case 1:
+                        unknownSizes = new ArrayList<File>(unknownSizes);
+                    default:
+                        unknownSizes.add(task.getTarget());
+                }
+            }
+        }
+
+        void report(ProvisionListener listener) {
+            long written = bytesWritten;
+            for(File target : unknownSizes) {
+                if(target.isFile()) {
+                    written += target.length();
+                }
+            }
+            listener.committed(pathsWritten, pathsDeleted, written, bytesBackedUp);
+        }
+    }
+
+    /**
+     * The written hashes are not recorded in the cache, the modification time of the targets
+     * is within the racy interval of the cache, so the entries would never be trusted.
+     */
+    private void evictHashCache() {
+        if(hashCache == null) {
+            return;
+        }
+        for(PathTrie.Node target : updates.keySet()) {
+            hashCache.remove(new File(target.getPath()));
+        }
+    }
+
+    /**
+     * Splits the tasks into levels. The tasks of the same level don't depend on each other
+     * and can be executed concurrently. A task depends on every task scheduled before it
+     * whose target or source is the same as, a parent of or a child of its target or source.
+     * Such a task is assigned a level higher than the levels of all the tasks it depends on.
+     */
+    private List<List<ContentTask>> scheduleLevels() {
+        final List<List<ContentTask>> levels = new ArrayList<List<ContentTask>>();
+        // the highest level of the tasks for exactly the path
+        final Map<PathTrie.Node, Integer> exactLevels = new HashMap<PathTrie.Node, Integer>();
+        // the highest level of the tasks for the path or any path under it
+        final Map<PathTrie.Node, Integer> underLevels = new HashMap<PathTrie.Node, Integer>();
+        for(Map.Entry<PathTrie.Node, OpDescr> entry : updates.entrySet()) {
+            final ContentTask task = entry.getValue().contentTask;
+            final File source = task.getSourceFile();
+            final PathTrie.Node sourcePath = source == null ? null : key(source);
+
+            int level = getDependencyLevel(entry.getKey(), exactLevels, underLevels);
+            if(sourcePath != null) {
+                level = Math.max(level, getDependencyLevel(sourcePath, exactLevels, underLevels));
+            }
+            ++level;
+
+            registerLevel(entry.getKey(), level, exactLevels, underLevels);
+            if(sourcePath != null) {
+                registerLevel(sourcePath, level, exactLevels, underLevels);
+            }
+            if(levels.size() == level) {
+                levels.add(new ArrayList<ContentTask>());
+            }
+            levels.get(level).add(task);
+        }
+        return levels;
+    }
+
+    private static int getDependencyLevel(PathTrie.Node path, Map<PathTrie.Node, Integer> exactLevels, Map<PathTrie.Node, Integer> underLevels) {
+        final Integer under = underLevels.get(path);
+        int level = under == null ? -1 : under;
+        PathTrie.Node parent = path.getParent();
+        while(parent != null) {
+            final Integer exact = exactLevels.get(parent);
+            if(exact != null && exact > level) {
+                level = exact;
+            }
+            parent = parent.getParent();
+        }
+        return level;
+    }
+
+    private static void registerLevel(PathTrie.Node path, int level, Map<PathTrie.Node, Integer> exactLevels, Map<PathTrie.Node, Integer> underLevels) {
+        final Integer exact = exactLevels.get(path);
+        if(exact == null || exact < level) {
+            exactLevels.put(path, level);
+        }
+        PathTrie.Node node = path;
+        while(node != null) {
+            final Integer under = underLevels.get(node);
+            if(under == null || under < level) {
+                underLevels.put(node, level);
+            }
+            node = node.getParent();
+        }
+    }
+
+    private void executeLevel(ExecutorService executor, List<ContentTask> tasks, final boolean backup) throws IOException {
+        if(tasks.size() == 1) {
+            if(backup) {
+                backup(tasks.get(0));
+            } else {
+                execute(tasks.get(0));
+            }
+            return;
+        }
+
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+        for(final ContentTask task : tasks) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if(backup) {
+                        backup(task);
+                    } else {
+                        execute(task);
+                    }
+                    return null;
+                }}));
+        }
+        // wait for all the tasks to complete before the level can be reverted
+        awaitAll(futures);
+    }
+
+    private void backup(ContentTask task) throws IOException {
+        task.backup();
+        if(durability == Durability.STRICT) {
+            final Set<File> paths = new LinkedHashSet<File>(2);
+            addBackupPaths(task, paths);
+            sync(null, paths);
+        }
+    }
+
+    private void execute(ContentTask task) throws IOException {
+        task.execute();
+        if(durability == Durability.STRICT) {
+            final Set<File> paths = new LinkedHashSet<File>(2);
+            addTargetPaths(task, paths);
+            sync(null, paths);
+        }
+    }
+
+    /**
+     * In the batched mode, syncs the backups or the targets of all the tasks
+     * along with their directories, each file and directory once.
+     */
+    private void syncBatch(ExecutorService executor, boolean backups) throws IOException {
+        if(durability != Durability.BATCHED) {
+            return;
+        }
+        final Set<File> paths = new LinkedHashSet<File>(updates.size() * 2);
+        for(OpDescr op : updates.values()) {
+            if(backups) {
+                addBackupPaths(op.contentTask, paths);
+            } else {
+                addTargetPaths(op.contentTask, paths);
+            }
+        }
+        sync(executor, paths);
+    }
+
+    private static void addBackupPaths(ContentTask task, Set<File> paths) {
+        final File backup = task.getBackupFile();
+        if(backup != null && backup.exists()) {
+            paths.add(backup);
+            paths.add(backup.getParentFile());
+        }
+    }
+
+    private static void addTargetPaths(ContentTask task, Set<File> paths) {
+        final File target = task.getTarget();
+        if(target.exists()) {
+            paths.add(target);
+        }
+        final File dir = target.getParentFile();
+        if(dir != null && dir.exists()) {
+            paths.add(dir);
+        }
+    }
+
+    /**
+     * Syncs the paths, splitting them between the threads of the executor, if there is one.
+     */
+    private void sync(ExecutorService executor, Set<File> paths) throws IOException {
+        if(executor == null || paths.size() < 2) {
+            for(File f : paths) {
+                IoUtils.sync(f);
+            }
+            return;
+        }
+        final File[] files = paths.toArray(new File[paths.size()]);
+        final int chunks = Math.min(parallelism, files.length);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks);
+        for(int i = 0; i < chunks; ++i) {
+            final int first = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for(int j = first; j < files.length; j += chunks) {
+                        IoUtils.sync(files[j]);
+                    }
+                    return null;
+                }}));
+        }
+        awaitAll(futures);
+    }
+
+    private static void awaitAll(List<Future<Void>> futures) throws IOException {
+        Throwable failure = null;
+        boolean interrupted = false;
+        for(Future<Void> future : futures) {
+            while(true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if(failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(failure == null) {
+            return;
+        }
+        if(failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if(failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if(failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+
+    /**
+     * @return  true if all the tasks were reverted
+     */
+    private static boolean revert(List<List<ContentTask>> levels, int level) {
+        boolean reverted = true;
+        while(level > 0) {
+            final List<ContentTask> tasks = levels.get(--level);
+            int i = tasks.size();
+            while(i > 0) {
+                try {
+                    tasks.get(--i).revert();
+                } catch(Throwable t) {
+                    reverted = false;
+                    t.printStackTrace();
+                }
+            }
+        }
+        return reverted;
+    }
+
+    /**
+     * Deletes the journal if the commit has been completed or reverted,
+     * otherwise leaves it to the recovery.
+     */
+    private static void closeJournal(CommitJournal journal, boolean done) {
+        if(journal == null) {
+            return;
+        }
+        if(done) {
+            journal.delete();
+        } else {
+            journal.close();
+        }
+    }
+
+    private static PathTrie.Node key(File target) {
+        return PathTrie.forFileSystem().intern(target);
     }
 
     public boolean isUntouched() {
         return updates.isEmpty();
     }
 
+    /**
+     * Describes the updates scheduled so far in the order they will be executed.
+     *
+     * @return  scheduled updates
+     */
+    public List<ScheduledUpdate> getScheduledUpdates() {
+        final List<ScheduledUpdate> result = new ArrayList<ScheduledUpdate>(updates.size());
+        for(Map.Entry<PathTrie.Node, OpDescr> entry : updates.entrySet()) {
+            final ContentTask task = entry.getValue().contentTask;
+            result.add(new ScheduledUpdate(new File(entry.getKey().getPath()),
+                    task.isDelete() ? PathStatus.DELETE_SCHEDULED : PathStatus.WRITE_SCHEDULED,
+                    task.getContentSize(), task.getBackupSize()));
+        }
+        return result;
+    }
+
     public void logUpdates(PrintStream out) {
         for(OpDescr op : updates.values()) {
             out.println(op.contentTask);
@@ -21,13 +21,14 @@
  */
 package org.jboss.provision.io;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.HashUtils;
 
 /**
  *
@@ -50,23 +51,36 @@ class FileContentWriter extends ContentWriter {
         return f;
     }
     @Override
-    public void write(BufferedWriter writer) throws IOException {
-        BufferedReader reader = null;
+    public long getContentSize() {
+        return f.length();
+    }
+
+    @Override
+    File getSourceFile() {
+        return f;
+    }
+    @Override
+    public void execute() throws IOException {
+        if(!original.getParentFile().exists()) {
+            IoUtils.mkdirs(original.getParentFile());
+        }
+        if(expectedHash == null || expectedHashVerified) {
+            IoUtils.transfer(f, original);
+            writtenHash = expectedHash;
+            return;
+        }
+        final OutputStream os = new FileOutputStream(original);
         try {
-            reader = new BufferedReader(new FileReader(f));
-            String line = reader.readLine();
-            if(line != null) {
-                writer.write(line);
-                line = reader.readLine();
-                while (line != null) {
-                    writer.newLine();
-                    writer.write(line);
-                    line = reader.readLine();
-                }
-            }
+            writtenHash = HashUtils.copyAndGetHash(f, os);
+            os.close();
         } finally {
-            IoUtils.safeClose(reader);
+            IoUtils.safeClose(os);
         }
+        verifyWrittenHash();
+    }
+    @Override
+    public void write(BufferedWriter writer) throws IOException {
+        throw new UnsupportedOperationException();
     }
     @Override
     public String toString() {
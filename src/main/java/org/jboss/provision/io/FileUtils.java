@@ -77,8 +77,8 @@ public class FileUtils {
     }
 
     public static void writeProperties(File f, final Properties props) throws IOException {
-        if(!f.getParentFile().exists() && !f.getParentFile().mkdirs()) {
-            throw new IOException(ProvisionErrors.couldNotCreateDir(f.getParentFile()));
+        if(!f.getParentFile().exists()) {
+            IoUtils.mkdirs(f.getParentFile());
         }
         FileWriter writer = null;
         try {
@@ -90,8 +90,8 @@ public class FileUtils {
     }
 
     public static void writeFile(File f, final String content) throws IOException {
-        if(!f.getParentFile().exists() && !f.getParentFile().mkdirs()) {
-            throw new IOException(ProvisionErrors.couldNotCreateDir(f.getParentFile()));
+        if(!f.getParentFile().exists()) {
+            IoUtils.mkdirs(f.getParentFile());
         }
         FileWriter writer = null;
         try {
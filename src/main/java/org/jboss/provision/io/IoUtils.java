@@ -29,6 +29,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
 import java.util.zip.ZipFile;
 
@@ -48,6 +53,25 @@ public class IoUtils {
 
     private static final int DEFAULT_BUFFER_SIZE = 65536;
 
+    /**
+     * Notified of the files synced to the storage device.
+     */
+    public interface SyncListener {
+        void synced(File f);
+    }
+
+    private static volatile SyncListener syncListener;
+
+    /**
+     * Sets the listener notified after each sync, which allows tests to check
+     * which files are synced and in what order.
+     *
+     * @param listener  sync listener or null to remove the current one
+     */
+    public static void setSyncListener(SyncListener listener) {
+        syncListener = listener;
+    }
+
     /**
      * Copy input stream to output stream and close them both
      *
@@ -108,13 +132,56 @@ public class IoUtils {
         } else {
             File parent = targetFile.getParentFile();
             if (!parent.exists()) {
-                if (!parent.mkdirs()) {
-                    throw new IOException(ProvisionErrors.couldNotCreateDir(parent));
-                }
+                mkdirs(parent);
+            }
+            transfer(sourceFile, targetFile);
+        }
+    }
+
+    /**
+     * Copies the content of the source file to the target file as is, byte for byte.
+     * The bytes are transferred between the file channels, which lets the operating
+     * system copy them without passing them through the heap.
+     *
+     * @param sourceFile  file to copy
+     * @param targetFile  file to copy to, it is overwritten if it exists
+     * @throws IOException  in case of a failure
+     */
+    public static void transfer(File sourceFile, File targetFile) throws IOException {
+        final FileInputStream is = new FileInputStream(sourceFile);
+        try {
+            final FileOutputStream os = new FileOutputStream(targetFile);
+            try {
+                final FileChannel source = is.getChannel();
+                transfer(sourceFile, source, source.size(), os.getChannel());
+                os.close();
+            } finally {
+                safeClose(os);
             }
-            final InputStream is = new FileInputStream(sourceFile);
-            final OutputStream os = new FileOutputStream(targetFile);
-            copyStreamAndClose(is, os);
+        } finally {
+            safeClose(is);
+        }
+    }
+
+    /**
+     * Transfers the bytes of the source channel from its beginning to the target channel.
+     *
+     * @param sourceFile  file the source channel reads
+     * @param source  source channel
+     * @param size  the number of bytes to transfer
+     * @param target  target channel
+     * @throws IOException  in case of a failure or if the source ends
+     *                      before the bytes are transferred, e.g. because it was truncated meanwhile
+     */
+    public static void transfer(File sourceFile, FileChannel source, long size, FileChannel target) throws IOException {
+        long position = 0;
+        while(position < size) {
+            // nothing is transferred past the end of the source
+            final long transferred = source.transferTo(position, size - position, target);
+            if(transferred == 0) {
+                throw new IOException(ProvisionErrors.fileTruncatedWhileCopied(sourceFile, size, position));
+            }
+            position += transferred;
         }
     }
 
@@ -123,8 +190,8 @@ public class IoUtils {
             if (!targetDir.isDirectory()) {
                 throw new IOException(ProvisionErrors.notADir(targetDir));
             }
-        } else if (!targetDir.mkdirs()) {
-            throw new IOException(ProvisionErrors.couldNotCreateDir(targetDir));
+        } else {
+            mkdirs(targetDir);
         }
 
         File[] children = sourceDir.listFiles();
@@ -135,6 +202,77 @@ public class IoUtils {
         }
     }
 
+    /**
+     * Renames the source to the target atomically. If that is not possible
+     * (e.g. the source and the target belong to different file stores),
+     * the source is copied to the target and then deleted.
+     *
+     * @param source  file or directory to move
+     * @param target  the new location
+     * @throws IOException  in case the source could not be moved
+     */
+    public static void move(File source, File target) throws IOException {
+        final File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) {
+            mkdirs(parent);
+        }
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            try {
+                copyFile(source, target);
+            } catch (IOException copyError) {
+                recursiveDelete(target);
+                throw copyError;
+            }
+            recursiveDelete(source);
+        }
+    }
+
+    /**
+     * Forces the content and the metadata of the file or the entries of the directory
+     * to the storage device.
+     *
+     * @param f  file or directory to sync
+     * @throws IOException  in case the file could not be synced
+     */
+    public static void sync(File f) throws IOException {
+        final boolean dir = f.isDirectory();
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            // some platforms don't allow opening a directory, the entries are synced along with the files there
+            if(!dir) {
+                throw e;
+            }
+        } finally {
+            safeClose(channel);
+        }
+        synced(f);
+    }
+
+    /**
+     * Forces what has been written to the stream of the file to the storage device.
+     *
+     * @param out  stream writing the file
+     * @param f  the file written by the stream
+     * @throws IOException  in case the file could not be synced
+     */
+    public static void sync(FileOutputStream out, File f) throws IOException {
+        out.getFD().sync();
+        synced(f);
+    }
+
+    private static void synced(File f) {
+        final SyncListener listener = syncListener;
+        if(listener != null) {
+            listener.synced(f);
+        }
+    }
+
     public static void copy(final InputStream is, final File target) throws IOException {
         if(! target.getParentFile().exists()) {
             target.getParentFile().mkdirs(); // Hmm
@@ -148,12 +286,10 @@ public class IoUtils {
     }
 
     public static void copy(File source, File target) throws IOException {
-        final FileInputStream is = new FileInputStream(source);
-        try {
-            copy(is, target);
-        } finally {
-            safeClose(is);
+        if(! target.getParentFile().exists()) {
+            target.getParentFile().mkdirs(); // Hmm
         }
+        transfer(source, target);
     }
 
     public static void safeClose(final Closeable closeable) {
@@ -193,6 +329,39 @@ public class IoUtils {
         return ok;
     }
 
+    /**
+     * The size of the file or the total size of the files under the directory.
+     *
+     * @param root  file or directory
+     * @return  the size in bytes or 0 if the file does not exist
+     */
+    public static long sizeOf(File root) {
+        if (!root.isDirectory()) {
+            return root.length();
+        }
+        long size = 0;
+        final File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += sizeOf(file);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Creates the directory including its missing parents. Unlike {@link File#mkdirs()},
+     * it does not fail when the directory is concurrently created by another thread.
+     *
+     * @param dir  directory to create
+     * @throws IOException  in case the directory could not be created
+     */
+    public static void mkdirs(File dir) throws IOException {
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException(ProvisionErrors.couldNotCreateDir(dir));
+        }
+    }
+
     public static File mkdir(File parent, String... segments) throws IOException {
         File dir = parent;
         for (String segment : segments) {
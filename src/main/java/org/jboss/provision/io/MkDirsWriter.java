@@ -25,13 +25,12 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 
-import org.jboss.provision.ProvisionErrors;
-
 /**
  *
  * @author Alexey Loubyansky
  */
 class MkDirsWriter extends ContentWriter {
+    private boolean created;
     protected MkDirsWriter(File target) {
         super(target);
     }
@@ -40,20 +39,32 @@ class MkDirsWriter extends ContentWriter {
         if(original.exists()) {
             return;
         }
-        if(!original.mkdirs()) {
-            throw new IOException(ProvisionErrors.couldNotCreateDir(original));
-        }
+        IoUtils.mkdirs(original);
+        created = true;
     }
     @Override
     public void write(BufferedWriter writer) throws IOException {
         throw new UnsupportedOperationException();
     }
+    @Override
+    public long getContentSize() {
+        return 0;
+    }
+
+    @Override
+    public long getBackupSize() {
+        return 0;
+    }
+
     @Override
     public void backup() throws IOException {
     }
     @Override
     public void revert() throws IOException {
-        IoUtils.recursiveDelete(original);
+        if(created) {
+            IoUtils.recursiveDelete(original);
+            created = false;
+        }
     }
     @Override
     public void cleanup() throws IOException {
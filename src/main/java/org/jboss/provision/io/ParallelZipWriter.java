@@ -0,0 +1,573 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.HashUtils;
+
+/**
+ * Writes a ZIP archive compressing its entries in parallel.
+ *
+ * Each entry is deflated into its own raw deflate stream by a worker thread,
+ * small entries into memory and large ones into a temporary file next to the archive.
+ * The compressed entries are then appended to the archive in the order they were added,
+ * so the layout of the archive does not depend on the parallelism. Entries with the
+ * content that is already compressed (e.g. jars) can be stored as they are.
+ *
+ * ZIP64 extensions are used for entries and archives exceeding the limits of
+ * the original format.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ParallelZipWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+    private static final short ZIP64_EXTRA = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_COUNT_MAGIC = 0xFFFF;
+    private static final short VERSION = 20;
+    private static final short ZIP64_VERSION = 45;
+    /** the names are encoded in UTF-8 */
+    private static final short FLAGS = 0x0800;
+    private static final short STORED = 0;
+    private static final short DEFLATED = 8;
+
+    private static final int BUFFER_SIZE = 65536;
+    /** entries larger than this are compressed into temporary files */
+    private static final long IN_MEMORY_LIMIT = 1024 * 1024;
+
+    private static final String[] COMPRESSED_EXTENSIONS = new String[] {".jar", ".war", ".ear", ".rar", ".sar", ".zip", ".gz", ".bz2", ".xz", ".tgz", ".7z", ".png", ".jpg", ".jpeg", ".gif"};
+
+    public static ParallelZipWriter create(File zipFile) {
+        return new ParallelZipWriter(zipFile);
+    }
+
+    private final File zipFile;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean storeCompressedContent = true;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private ParallelZipWriter(File zipFile) {
+        assert zipFile != null : ProvisionErrors.nullArgument("zipFile");
+        this.zipFile = zipFile;
+    }
+
+    /**
+     * The number of threads compressing the entries.
+     * By default, it is the number of available processors.
+     *
+     * @param parallelism  the number of compressing threads
+     * @return  this writer
+     */
+    public ParallelZipWriter setParallelism(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be greater than 0: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * The deflate compression level, see {@link Deflater}. The level of 0
+     * means all the entries are stored uncompressed.
+     * By default, it is {@link Deflater#DEFAULT_COMPRESSION}.
+     *
+     * @param compressionLevel  compression level
+     * @return  this writer
+     */
+    public ParallelZipWriter setCompressionLevel(int compressionLevel) {
+        if(compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * Whether the files that are already compressed, such as jars and other
+     * archives, should be stored as they are instead of being deflated again.
+     * By default, it is true.
+     *
+     * @param storeCompressedContent  whether to store compressed content as is
+     * @return  this writer
+     */
+    public ParallelZipWriter setStoreCompressedContent(boolean storeCompressedContent) {
+        this.storeCompressedContent = storeCompressedContent;
+        return this;
+    }
+
+    /**
+     * Adds an entry with the content.
+     *
+     * @param name  entry name
+     * @param content  entry content
+     * @return  this writer
+     */
+    public ParallelZipWriter add(String name, byte[] content) {
+        assert name != null : ProvisionErrors.nullArgument("name");
+        assert content != null : ProvisionErrors.nullArgument("content");
+        entries.add(new Entry(name, null, content, null, System.currentTimeMillis()));
+        return this;
+    }
+
+    /**
+     * Adds an entry with the content of the file. If the expected hash is not null,
+     * the hash of the file is calculated while it is compressed and
+     * {@link #write()} fails if the hashes don't match.
+     *
+     * @param name  entry name
+     * @param file  content file
+     * @param expectedHash  expected hash of the content or null
+     * @return  this writer
+     */
+    public ParallelZipWriter add(String name, File file, byte[] expectedHash) {
+        assert name != null : ProvisionErrors.nullArgument("name");
+        assert file != null : ProvisionErrors.nullArgument("file");
+        entries.add(new Entry(name, file, null, expectedHash, file.lastModified()));
+        return this;
+    }
+
+    /**
+     * Writes the archive with the entries added so far. The archive is deleted
+     * if it could not be completely written.
+     *
+     * @throws IOException  in case of a failure
+     */
+    public void write() throws IOException {
+        final ExecutorService executor = parallelism == 1 || entries.size() < 2 ? null : Executors.newFixedThreadPool(parallelism);
+        // the number of the compressed entries waiting to be written is limited to bound the memory
+        final int window = parallelism * 2;
+        final List<Future<Entry>> compressed = new ArrayList<Future<Entry>>(Math.min(window, entries.size()));
+        boolean written = false;
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(zipFile);
+            final FileChannel channel = os.getChannel();
+            int submitted = 0;
+            for(int i = 0; i < entries.size(); ++i) {
+                final Entry entry;
+                if(executor == null) {
+                    entry = entries.get(i);
+                    compress(entry);
+                } else {
+                    while(submitted < entries.size() && submitted - i < window) {
+                        compressed.add(submit(executor, entries.get(submitted++)));
+                    }
+                    entry = get(compressed.remove(0));
+                }
+                try {
+                    writeLocal(channel, entry);
+                } finally {
+                    entry.release();
+                }
+            }
+            writeCentral(channel);
+            os.close();
+            written = true;
+        } finally {
+            IoUtils.safeClose(os);
+            if(executor != null) {
+                executor.shutdownNow();
+                if(!written) {
+                    awaitTermination(executor);
+                }
+            }
+            if(!written) {
+                for(Entry entry : entries) {
+                    entry.release();
+                }
+                IoUtils.recursiveDelete(zipFile);
+            }
+        }
+    }
+
+    private Future<Entry> submit(ExecutorService executor, final Entry entry) {
+        return executor.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                compress(entry);
+                return entry;
+            }
+        });
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Entry get(Future<Entry> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if(cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if(cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if(cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void compress(Entry entry) throws IOException {
+        final boolean store = compressionLevel == 0 || storeCompressedContent && isCompressed(entry.name);
+        entry.method = store ? STORED : DEFLATED;
+        final MessageDigest digest = entry.expectedHash == null ? null : HashUtils.getDigest();
+        final CRC32 crc = new CRC32();
+        final Deflater deflater = store ? null : new Deflater(compressionLevel, true);
+        OutputStream out = null;
+        final InputStream is = entry.file == null ? new ByteArrayInputStream(entry.content) : new FileInputStream(entry.file);
+        try {
+            if(!store) {
+                final long size = entry.file == null ? entry.content.length : entry.file.length();
+                if(size > IN_MEMORY_LIMIT) {
+                    entry.tmpFile = File.createTempFile(zipFile.getName(), ".tmp", zipFile.getAbsoluteFile().getParentFile());
+                    out = new DeflaterOutputStream(new FileOutputStream(entry.tmpFile), deflater, BUFFER_SIZE);
+                } else {
+                    entry.data = new ByteArrayOutputStream((int) (size / 2) + 64);
+                    out = new DeflaterOutputStream(entry.data, deflater, BUFFER_SIZE);
+                }
+            }
+            final byte[] buf = new byte[BUFFER_SIZE];
+            long size = 0;
+            int read = is.read(buf);
+            while(read != -1) {
+                crc.update(buf, 0, read);
+                if(digest != null) {
+                    digest.update(buf, 0, read);
+                }
+                if(out != null) {
+                    out.write(buf, 0, read);
+                }
+                size += read;
+                read = is.read(buf);
+            }
+            if(out != null) {
+                out.close();
+                entry.compressedSize = deflater.getBytesWritten();
+            } else {
+                entry.compressedSize = size;
+            }
+            entry.size = size;
+            entry.crc = crc.getValue();
+        } finally {
+            IoUtils.safeClose(is);
+            IoUtils.safeClose(out);
+            if(deflater != null) {
+                deflater.end();
+            }
+        }
+        if(digest != null) {
+            final byte[] hash = HashUtils.isContentHashed(entry.file) ? digest.digest() : HashUtils.getDigest().digest();
+            if(!Arrays.equals(entry.expectedHash, hash)) {
+                throw new IOException(ProvisionErrors.unexpectedContentHash(entry.file, entry.expectedHash, hash).getLocalizedMessage());
+            }
+        }
+    }
+
+    private void writeLocal(FileChannel channel, Entry entry) throws IOException {
+        entry.offset = channel.position();
+        final boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        final ByteBuffer buf = newBuffer(30 + entry.nameBytes.length + (zip64 ? 20 : 0));
+        buf.putInt(LOCAL_HEADER);
+        buf.putShort(zip64 ? ZIP64_VERSION : VERSION);
+        buf.putShort(FLAGS);
+        buf.putShort(entry.method);
+        buf.putInt((int) entry.dosTime);
+        buf.putInt((int) entry.crc);
+        buf.putInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        buf.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        buf.putShort((short) entry.nameBytes.length);
+        buf.putShort((short) (zip64 ? 20 : 0));
+        buf.put(entry.nameBytes);
+        if(zip64) {
+            buf.putShort(ZIP64_EXTRA);
+            buf.putShort((short) 16);
+            buf.putLong(entry.size);
+            buf.putLong(entry.compressedSize);
+        }
+        write(channel, buf);
+
+        if(entry.data != null) {
+            write(channel, ByteBuffer.wrap(entry.data.toByteArray()));
+        } else if(entry.tmpFile != null) {
+            transfer(entry.tmpFile, channel);
+        } else if(entry.file != null) {
+            copyStored(entry, channel);
+        } else {
+            write(channel, ByteBuffer.wrap(entry.content));
+        }
+    }
+
+    private void writeCentral(FileChannel channel) throws IOException {
+        final long centralOffset = channel.position();
+        for(Entry entry : entries) {
+            int extraLength = 0;
+            if(entry.size >= ZIP64_MAGIC) {
+                extraLength += 8;
+            }
+            if(entry.compressedSize >= ZIP64_MAGIC) {
+                extraLength += 8;
+            }
+            if(entry.offset >= ZIP64_MAGIC) {
+                extraLength += 8;
+            }
+            if(extraLength > 0) {
+                extraLength += 4;
+            }
+            final ByteBuffer buf = newBuffer(46 + entry.nameBytes.length + extraLength);
+            buf.putInt(CENTRAL_HEADER);
+            buf.putShort(extraLength > 0 ? ZIP64_VERSION : VERSION);
+            buf.putShort(extraLength > 0 ? ZIP64_VERSION : VERSION);
+            buf.putShort(FLAGS);
+            buf.putShort(entry.method);
+            buf.putInt((int) entry.dosTime);
+            buf.putInt((int) entry.crc);
+            buf.putInt((int) Math.min(entry.compressedSize, ZIP64_MAGIC));
+            buf.putInt((int) Math.min(entry.size, ZIP64_MAGIC));
+            buf.putShort((short) entry.nameBytes.length);
+            buf.putShort((short) extraLength);
+            buf.putShort((short) 0); // comment
+            buf.putShort((short) 0); // disk
+            buf.putShort((short) 0); // internal attributes
+            buf.putInt(0); // external attributes
+            buf.putInt((int) Math.min(entry.offset, ZIP64_MAGIC));
+            buf.put(entry.nameBytes);
+            if(extraLength > 0) {
+                buf.putShort(ZIP64_EXTRA);
+                buf.putShort((short) (extraLength - 4));
+                if(entry.size >= ZIP64_MAGIC) {
+                    buf.putLong(entry.size);
+                }
+                if(entry.compressedSize >= ZIP64_MAGIC) {
+                    buf.putLong(entry.compressedSize);
+                }
+                if(entry.offset >= ZIP64_MAGIC) {
+                    buf.putLong(entry.offset);
+                }
+            }
+            write(channel, buf);
+        }
+        final long centralSize = channel.position() - centralOffset;
+
+        if(entries.size() >= ZIP64_COUNT_MAGIC || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            final long zip64EndOffset = channel.position();
+            final ByteBuffer buf = newBuffer(56 + 20);
+            buf.putInt(ZIP64_END);
+            buf.putLong(44);
+            buf.putShort(ZIP64_VERSION);
+            buf.putShort(ZIP64_VERSION);
+            buf.putInt(0); // disk
+            buf.putInt(0); // central directory disk
+            buf.putLong(entries.size());
+            buf.putLong(entries.size());
+            buf.putLong(centralSize);
+            buf.putLong(centralOffset);
+
+            buf.putInt(ZIP64_LOCATOR);
+            buf.putInt(0); // zip64 end disk
+            buf.putLong(zip64EndOffset);
+            buf.putInt(1); // total disks
+            write(channel, buf);
+        }
+
+        final ByteBuffer buf = newBuffer(22);
+        buf.putInt(END);
+        buf.putShort((short) 0); // disk
+        buf.putShort((short) 0); // central directory disk
+        buf.putShort((short) Math.min(entries.size(), ZIP64_COUNT_MAGIC));
+        buf.putShort((short) Math.min(entries.size(), ZIP64_COUNT_MAGIC));
+        buf.putInt((int) Math.min(centralSize, ZIP64_MAGIC));
+        buf.putInt((int) Math.min(centralOffset, ZIP64_MAGIC));
+        buf.putShort((short) 0); // comment
+        write(channel, buf);
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+        if(buf.position() > 0) {
+            buf.flip();
+        }
+        while(buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void transfer(File file, FileChannel target) throws IOException {
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            final FileChannel source = is.getChannel();
+            IoUtils.transfer(file, source, source.size(), target);
+        } finally {
+            IoUtils.safeClose(is);
+        }
+    }
+
+    /**
+     * Copies the content of a stored file entry checking it against the size and the CRC
+     * recorded in the local header, since the file is read again after it was verified.
+     */
+    private static void copyStored(Entry entry, FileChannel target) throws IOException {
+        final CRC32 crc = new CRC32();
+        final FileInputStream is = new FileInputStream(entry.file);
+        try {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            long size = 0;
+            int read = is.read(buf);
+            while(read != -1 && size + read <= entry.size) {
+                crc.update(buf, 0, read);
+                write(target, ByteBuffer.wrap(buf, 0, read));
+                size += read;
+                read = is.read(buf);
+            }
+            if(read != -1 || size != entry.size || crc.getValue() != entry.crc) {
+                throw new IOException(ProvisionErrors.fileChangedWhilePackaged(entry.file));
+            }
+        } finally {
+            IoUtils.safeClose(is);
+        }
+    }
+
+    private static boolean isCompressed(String name) {
+        final String lowerCase = name.toLowerCase();
+        for(String extension : COMPRESSED_EXTENSIONS) {
+            if(lowerCase.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long toDosTime(long time) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        final int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16 |
+                c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        final String name;
+        final byte[] nameBytes;
+        final File file;
+        final byte[] content;
+        final byte[] expectedHash;
+        final long dosTime;
+
+        short method;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        ByteArrayOutputStream data;
+        File tmpFile;
+
+        Entry(String name, File file, byte[] content, byte[] expectedHash, long time) {
+            this.name = name;
+            this.nameBytes = name.getBytes(UTF_8);
+            this.file = file;
+            this.content = content;
+            this.expectedHash = expectedHash;
+            this.dosTime = toDosTime(time);
+        }
+
+        void release() {
+            data = null;
+            if(tmpFile != null) {
+                IoUtils.recursiveDelete(tmpFile);
+                tmpFile = null;
+            }
+        }
+    }
+}
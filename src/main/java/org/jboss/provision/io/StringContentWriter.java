@@ -42,6 +42,11 @@ class StringContentWriter extends ContentWriter {
     public String getContentString() {
         return content;
     }
+    @Override
+    public long getContentSize() {
+        return content.getBytes().length;
+    }
+
     @Override
     public void write(BufferedWriter writer) throws IOException {
         writer.write(content);
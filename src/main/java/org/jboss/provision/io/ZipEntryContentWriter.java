@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.provision.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.HashUtils;
+
+/**
+ * Writes the content of a ZIP entry directly to the target,
+ * without expanding the ZIP into a temporary directory first.
+ *
+ * @author Alexey Loubyansky
+ */
+class ZipEntryContentWriter extends ContentWriter {
+    private final ZipFile zip;
+    private final ZipEntry entry;
+    ZipEntryContentWriter(ZipFile zip, ZipEntry entry, File target) {
+        super(target);
+        assert zip != null : ProvisionErrors.nullArgument("zip");
+        assert entry != null : ProvisionErrors.nullArgument("entry");
+        this.zip = zip;
+        this.entry = entry;
+    }
+    ZipEntryContentWriter(ZipFile zip, ZipEntry entry, File target, BackupPathFactory backupPathFactory, boolean cleanup) {
+        super(target, backupPathFactory, cleanup);
+        assert zip != null : ProvisionErrors.nullArgument("zip");
+        assert entry != null : ProvisionErrors.nullArgument("entry");
+        this.zip = zip;
+        this.entry = entry;
+    }
+    @Override
+    public long getContentSize() {
+        return entry.getSize();
+    }
+
+    @Override
+    public byte[] getContentHash() throws IOException {
+        if(expectedHash != null) {
+            return expectedHash;
+        }
+        final MessageDigest digest = HashUtils.getDigest();
+        if(!HashUtils.isContentHashed(original)) {
+            return digest.digest();
+        }
+        final InputStream is = zip.getInputStream(entry);
+        try {
+            final byte[] bytes = new byte[8192];
+            int read;
+            while ((read = is.read(bytes)) > -1) {
+                digest.update(bytes, 0, read);
+            }
+        } finally {
+            IoUtils.safeClose(is);
+        }
+        return digest.digest();
+    }
+    @Override
+    public void execute() throws IOException {
+        if(!original.getParentFile().exists()) {
+            IoUtils.mkdirs(original.getParentFile());
+        }
+        final InputStream is = zip.getInputStream(entry);
+        try {
+            final OutputStream os = new FileOutputStream(original);
+            try {
+                final byte[] hash = HashUtils.copyAndGetHash(is, os);
+                writtenHash = HashUtils.isContentHashed(original) ? hash : HashUtils.getDigest().digest();
+            } finally {
+                IoUtils.safeClose(os);
+            }
+        } finally {
+            IoUtils.safeClose(is);
+        }
+        verifyWrittenHash();
+    }
+    @Override
+    public void write(BufferedWriter writer) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public String toString() {
+        return "ZipEntryContentWriter " + zip.getName() + '!' + entry.getName() + " -> " + original.getAbsolutePath();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.util.HashUtils;
+
+/**
+ * Extracts the entries of a ZIP archive into a directory on multiple threads.
+ *
+ * The directory skeleton of the archive is created once, when the extractor is opened.
+ * The entries are then inflated from the shared {@link ZipFile} by a pool of workers
+ * in the order they are submitted. A caller can wait for a specific group of entries
+ * to be extracted while the rest of the entries are still being extracted.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ZipExtractor implements Closeable {
+
+    public static ZipExtractor open(File zip, File targetDir, int parallelism) throws IOException {
+        assert zip != null : ProvisionErrors.nullArgument("zip");
+        assert targetDir != null : ProvisionErrors.nullArgument("targetDir");
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be greater than 0: " + parallelism);
+        }
+        final ZipFile zipFile = new ZipFile(zip);
+        try {
+            return new ZipExtractor(zipFile, targetDir, parallelism);
+        } catch(IOException | RuntimeException | Error e) {
+            IoUtils.safeClose(zipFile);
+            throw e;
+        }
+    }
+
+    private final ZipFile zip;
+    private final File targetDir;
+    private final ExecutorService executor;
+    private Map<String, Future<File>> extracted = Collections.emptyMap();
+
+    private ZipExtractor(ZipFile zip, File targetDir, int parallelism) throws IOException {
+        this.zip = zip;
+        this.targetDir = targetDir;
+
+        // the deepest directories first, their parents are then found existing
+        final TreeSet<String> dirs = new TreeSet<String>(Collections.reverseOrder());
+        final Enumeration<? extends ZipEntry> entries = zip.entries();
+        while(entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if(!entry.isDirectory()) {
+                final int i = name.lastIndexOf('/');
+                if(i <= 0) {
+                    continue;
+                }
+                name = name.substring(0, i);
+            }
+            dirs.add(name);
+        }
+        IoUtils.mkdirs(targetDir);
+        for(String dir : dirs) {
+            final File f = new File(targetDir, dir);
+            if(!f.isDirectory()) {
+                IoUtils.mkdirs(f);
+            }
+        }
+
+        this.executor = parallelism == 1 ? null : Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Checks whether the archive contains the entry.
+     *
+     * @param name  entry name
+     * @return  true if the entry exists in the archive
+     */
+    public boolean contains(String name) {
+        return zip.getEntry(name) != null;
+    }
+
+    /**
+     * Extracts the entry on the calling thread.
+     *
+     * @param name  entry name
+     * @return  the extracted file
+     * @throws IOException  in case the entry does not exist or could not be extracted
+     */
+    public File extract(String name) throws IOException {
+        return extract(name, null);
+    }
+
+    /**
+     * Schedules the entries to be extracted. The entries that have already been
+     * scheduled are not extracted again. If the expected hash of an entry is
+     * available, the hash of the content is calculated while the entry is
+     * extracted and the extraction of the entry fails if the hashes don't match.
+     *
+     * @param names  names of the entries to extract
+     * @param expectedHashes  expected hashes of the entries by the entry names
+     * @return  the pending extraction of the entries
+     */
+    public Extraction submit(Collection<String> names, Map<String, byte[]> expectedHashes) {
+        assert names != null : ProvisionErrors.nullArgument("names");
+        assert expectedHashes != null : ProvisionErrors.nullArgument("expectedHashes");
+        final List<Future<File>> futures = new ArrayList<Future<File>>(names.size());
+        for(final String name : names) {
+            Future<File> future = extracted.get(name);
+            if(future == null) {
+                final byte[] expectedHash = expectedHashes.get(name);
+                final Callable<File> task = new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return extract(name, expectedHash);
+                    }
+                };
+                if(executor == null) {
+                    final FutureTask<File> futureTask = new FutureTask<File>(task);
+                    futureTask.run();
+                    future = futureTask;
+                } else {
+                    future = executor.submit(task);
+                }
+                switch(extracted.size()) {
+                    case 0:
+                        extracted = Collections.singletonMap(name, future);
+                        break;
+                    case 1:
+                        extracted = new HashMap<String, Future<File>>(extracted);
+                    default:
+                        extracted.put(name, future);
+                }
+            }
+            futures.add(future);
+        }
+        return new Extraction(futures);
+    }
+
+    private File extract(String name, byte[] expectedHash) throws IOException {
+        final ZipEntry entry = zip.getEntry(name);
+        if(entry == null) {
+            throw new IOException(ProvisionErrors.pathDoesNotExist(new File(zip.getName(), name)).getLocalizedMessage());
+        }
+        final File target = new File(targetDir, name);
+        final InputStream is = zip.getInputStream(entry);
+        try {
+            final OutputStream os = new FileOutputStream(target);
+            try {
+                final byte[] hash = HashUtils.copyAndGetHash(is, os);
+                os.close();
+                if(expectedHash != null) {
+                    final byte[] actualHash = HashUtils.isContentHashed(target) ? hash : HashUtils.getDigest().digest();
+                    if(!Arrays.equals(expectedHash, actualHash)) {
+                        throw new IOException(ProvisionErrors.unexpectedContentHash(target, expectedHash, actualHash).getLocalizedMessage());
+                    }
+                }
+            } finally {
+                IoUtils.safeClose(os);
+            }
+        } finally {
+            IoUtils.safeClose(is);
+        }
+        return target;
+    }
+
+    /**
+     * Stops the extraction and closes the archive. The extracted files are not deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if(executor != null) {
+            executor.shutdownNow();
+            boolean interrupted = false;
+            try {
+                while(true) {
+                    try {
+                        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if(interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        zip.close();
+    }
+
+    /**
+     * Entries scheduled for extraction.
+     */
+    public static class Extraction {
+
+        private final List<Future<File>> futures;
+
+        private Extraction(List<Future<File>> futures) {
+            this.futures = futures;
+        }
+
+        /**
+         * Waits for the entries to be extracted.
+         *
+         * @throws IOException  in case any of the entries could not be extracted
+         */
+        public void await() throws IOException {
+            boolean interrupted = false;
+            try {
+                for(Future<File> future : futures) {
+                    while(true) {
+                        try {
+                            future.get();
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        } catch (ExecutionException e) {
+                            final Throwable cause = e.getCause();
+                            if(cause instanceof IOException) {
+                                throw (IOException) cause;
+                            }
+                            if(cause instanceof RuntimeException) {
+                                throw (RuntimeException) cause;
+                            }
+                            if(cause instanceof Error) {
+                                throw (Error) cause;
+                            }
+                            throw new IOException(cause);
+                        }
+                    }
+                }
+            } finally {
+                if(interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
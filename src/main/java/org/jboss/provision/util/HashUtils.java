@@ -46,29 +46,62 @@ public class HashUtils {
 
     private static final char[] TABLE = "0123456789abcdef".toCharArray();
 
-    private static final MessageDigest DIGEST;
-    static {
+    private static final String ALGORITHM = "SHA-1";
+
+    /**
+     * Each thread gets its own digest, so that hashing on one thread
+     * never waits for hashing on another one.
+     */
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    public static MessageDigest newDigest() {
         try {
-            DIGEST = MessageDigest.getInstance("SHA-1");
+            return MessageDigest.getInstance(ALGORITHM);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Returns the digest bound to the calling thread, reset and ready to use.
+     *
+     * @return  thread's digest
+     */
+    public static MessageDigest getDigest() {
+        final MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
     public static byte[] hashFile(File file) throws IOException {
-        synchronized (DIGEST) {
-            DIGEST.reset();
-            updateDigest(DIGEST, file);
-            return DIGEST.digest();
-        }
+        final MessageDigest digest = getDigest();
+        updateDigest(digest, file);
+        return digest.digest();
     }
 
     public static byte[] hashBytes(byte[] bytes) throws IOException {
-        synchronized (DIGEST) {
-            DIGEST.reset();
-            DIGEST.update(bytes);
-            return DIGEST.digest();
-        }
+        final MessageDigest digest = getDigest();
+        digest.update(bytes);
+        return digest.digest();
+    }
+
+    /**
+     * Whether the content of the file contributes to its hash.
+     *
+     * Jar index files are generated by JBoss modules at runtime (a pristine AS7 installation does not have them).
+     * They are skipped when computing checksum to avoid different checksum for the same JBoss module depending on
+     * whether the AS7 installation has been started or not.
+     *
+     * @param file  file
+     * @return  false if the hash of the file is the hash of no content
+     */
+    public static boolean isContentHashed(File file) {
+        return !file.getName().endsWith(".jar.index");
     }
 
     private static void updateDigest(MessageDigest digest, File file) throws IOException {
@@ -84,10 +117,7 @@ public class HashUtils {
                 }
             }
         } else {
-            // jar index files are generated by JBoss modules at runtime (a pristine AS7 installation does not have them).
-            // they are skipped when computing checksum to avoid different checksum for the same JBoss module depending on
-            // whether the AS7 installation has been started or not.
-            if (file.getName().endsWith(".jar.index")) {
+            if (!isContentHashed(file)) {
                 return;
             }
             BufferedInputStream bis = null;
@@ -105,16 +135,31 @@ public class HashUtils {
         }
     }
 
-    public static byte[] copyAndGetHash(final InputStream is, final OutputStream os) throws IOException {
-        byte[] sha1Bytes;
-        synchronized (DIGEST) {
-            DIGEST.reset();
-            BufferedInputStream bis = new BufferedInputStream(is);
-            DigestOutputStream dos = new DigestOutputStream(os, DIGEST);
-            IoUtils.copyStream(bis, dos);
-            sha1Bytes = DIGEST.digest();
+    /**
+     * Copies the content of the file to the output stream calculating its hash
+     * the same way {@link #hashFile(File)} does, so that the file is read only once.
+     *
+     * @param file  file to copy
+     * @param os  output stream
+     * @return  hash of the file
+     * @throws IOException  in case of a failure
+     */
+    public static byte[] copyAndGetHash(final File file, final OutputStream os) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] hash = copyAndGetHash(is, os);
+            return isContentHashed(file) ? hash : getDigest().digest();
+        } finally {
+            IoUtils.safeClose(is);
         }
-        return sha1Bytes;
+    }
+
+    public static byte[] copyAndGetHash(final InputStream is, final OutputStream os) throws IOException {
+        final MessageDigest digest = getDigest();
+        BufferedInputStream bis = new BufferedInputStream(is);
+        DigestOutputStream dos = new DigestOutputStream(os, digest);
+        IoUtils.copyStream(bis, dos);
+        return digest.digest();
     }
 
     /**
@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.jboss.provision.ProvisionErrors;
+
+/**
+ * Hashes files on a fork/join pool. Each worker uses its own digest
+ * (see {@link HashUtils#getDigest()}), so the only limit to the throughput
+ * is the parallelism level and the storage.
+ *
+ * @author Alexey Loubyansky
+ */
+public class HashingService {
+
+    /** System property to override the default parallelism level */
+    public static final String PARALLELISM_PROPERTY = "org.jboss.provision.hashing.parallelism";
+
+    /** The max number of files a single fork/join task hashes without splitting */
+    private static final int BATCH_SIZE = 8;
+
+    private static HashingService defaultService;
+
+    /**
+     * Returns the shared instance using the parallelism level configured with
+     * {@link #PARALLELISM_PROPERTY} or the number of available processors.
+     *
+     * @return  shared hashing service
+     */
+    public static synchronized HashingService getDefault() {
+        if(defaultService == null) {
+            defaultService = new HashingService(getDefaultParallelism());
+        }
+        return defaultService;
+    }
+
+    /**
+     * Creates a new hashing service. The parallelism level of 1 means
+     * the files will be hashed by the calling thread.
+     *
+     * @param parallelism  the number of threads hashing the files
+     * @return  new hashing service
+     */
+    public static HashingService create(int parallelism) {
+        return new HashingService(parallelism);
+    }
+
+    public static int getDefaultParallelism() {
+        final String value = PropertyUtils.getSystemProperty(PARALLELISM_PROPERTY);
+        if(value != null) {
+            try {
+                final int parallelism = Integer.parseInt(value);
+                if(parallelism > 0) {
+                    return parallelism;
+                }
+            } catch(NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private final int parallelism;
+    private ForkJoinPool pool;
+
+    private HashingService(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be greater than 0: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public byte[] hashFile(File file) throws IOException {
+        return HashUtils.hashFile(file);
+    }
+
+    /**
+     * Hashes the files. The hash of the file at index i in the argument list
+     * will be at index i in the returned list.
+     *
+     * @param files  files to hash
+     * @return  hashes of the files
+     * @throws IOException  in case any of the files could not be hashed
+     */
+    public List<byte[]> hashFiles(List<File> files) throws IOException {
+        assert files != null : ProvisionErrors.nullArgument("files");
+        final byte[][] hashes = new byte[files.size()][];
+        if(parallelism == 1 || files.size() <= BATCH_SIZE) {
+            for(int i = 0; i < hashes.length; ++i) {
+                hashes[i] = HashUtils.hashFile(files.get(i));
+            }
+        } else {
+            try {
+                getPool().invoke(new HashTask(files, hashes, 0, hashes.length));
+            } catch(HashFailure e) {
+                throw e.getCause();
+            }
+        }
+        return Arrays.asList(hashes);
+    }
+
+    /**
+     * Releases the threads of this service. The default instance can't be shut down.
+     */
+    public synchronized void shutdown() {
+        if(this == defaultService) {
+            return;
+        }
+        if(pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if(pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    private static class HashTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final byte[][] hashes;
+        private final int from;
+        private final int to;
+
+        HashTask(List<File> files, byte[][] hashes, int from, int to) {
+            this.files = files;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= BATCH_SIZE) {
+                for(int i = from; i < to; ++i) {
+                    final File file = files.get(i);
+                    try {
+                        hashes[i] = HashUtils.hashFile(file);
+                    } catch (IOException e) {
+                        throw new HashFailure(e);
+                    }
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new HashTask(files, hashes, from, middle), new HashTask(files, hashes, middle, to));
+        }
+    }
+
+    private static class HashFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        HashFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
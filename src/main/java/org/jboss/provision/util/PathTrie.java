@@ -0,0 +1,268 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.util;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.provision.ProvisionErrors;
+
+/**
+ * Interns paths as nodes of a trie, so that the paths sharing a prefix
+ * share the nodes of the prefix instead of each holding a copy of it.
+ *
+ * There is only one node for a path at a time, so nodes can be compared
+ * by identity. The hash code of a node is the hash code of its path string
+ * calculated once when the node is created. The trie references the nodes
+ * weakly, a node is released once nothing outside the trie references it
+ * or any of its children. The path string of a node is built on demand and
+ * cached softly, so that the cached strings don't outlive the need for memory.
+ *
+ * @author Alexey Loubyansky
+ */
+public class PathTrie {
+
+    private static final PathTrie RELATIVE_PATHS = new PathTrie('/');
+    private static final PathTrie FS_PATHS = File.separatorChar == '/' ? RELATIVE_PATHS : new PathTrie(File.separatorChar);
+
+    /**
+     * The trie for paths using '/' as the separator, such as
+     * the relative paths of the content.
+     *
+     * @return  trie for '/' separated paths
+     */
+    public static PathTrie forRelativePaths() {
+        return RELATIVE_PATHS;
+    }
+
+    /**
+     * The trie for paths using the file system separator.
+     *
+     * @return  trie for the file system paths
+     */
+    public static PathTrie forFileSystem() {
+        return FS_PATHS;
+    }
+
+    private final char separator;
+    private final Node root;
+    private final ReferenceQueue<Node> released = new ReferenceQueue<Node>();
+
+    private PathTrie(char separator) {
+        this.separator = separator;
+        this.root = new Node(this, null, null, 0);
+    }
+
+    public char getSeparator() {
+        return separator;
+    }
+
+    /**
+     * Returns the node for the path.
+     *
+     * @param path  path
+     * @return  node representing the path
+     */
+    public Node intern(String path) {
+        assert path != null : ProvisionErrors.nullArgument("path");
+        expungeReleased();
+        Node node = root;
+        int start = 0;
+        int end = path.indexOf(separator);
+        while(end >= 0) {
+            node = node.child(path.substring(start, end));
+            start = end + 1;
+            end = path.indexOf(separator, start);
+        }
+        return node.child(path.substring(start));
+    }
+
+    /**
+     * Returns the node for the absolute path of the file.
+     * Only valid for the {@link #forFileSystem()} trie.
+     *
+     * @param file  file
+     * @return  node representing the absolute path of the file
+     */
+    public Node intern(File file) {
+        assert file != null : ProvisionErrors.nullArgument("file");
+        return intern(file.getAbsolutePath());
+    }
+
+    private void expungeReleased() {
+        NodeRef ref = (NodeRef) released.poll();
+        while(ref != null) {
+            ref.parent.removeChild(ref);
+            ref = (NodeRef) released.poll();
+        }
+    }
+
+    public static final class Node {
+
+        private final PathTrie trie;
+        private final Node parent;
+        private final String name;
+        private final int hash;
+        private Map<String, NodeRef> children = Collections.emptyMap();
+        private volatile SoftReference<String> path;
+
+        private Node(PathTrie trie, Node parent, String name, int hash) {
+            this.trie = trie;
+            this.parent = parent;
+            this.name = name;
+            this.hash = hash;
+        }
+
+        /**
+         * The last segment of the path.
+         *
+         * @return  the name of the node
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The node of the path without its last segment.
+         *
+         * @return  parent node or null if the path has a single segment
+         */
+        public Node getParent() {
+            return parent == trie.root ? null : parent;
+        }
+
+        /**
+         * The string representation of the path.
+         *
+         * @return  path
+         */
+        public String getPath() {
+            if(parent == trie.root) {
+                return name;
+            }
+            final SoftReference<String> ref = path;
+            String str = ref == null ? null : ref.get();
+            if(str == null) {
+                str = buildPath();
+                path = new SoftReference<String>(str);
+            }
+            return str;
+        }
+
+        private String buildPath() {
+            int length = name.length();
+            Node node = parent;
+            while(node != trie.root) {
+                length += node.name.length() + 1;
+                node = node.parent;
+            }
+            final char[] chars = new char[length];
+            node = this;
+            int end = length;
+            while(node != trie.root) {
+                final int start = end - node.name.length();
+                node.name.getChars(0, node.name.length(), chars, start);
+                if(start > 0) {
+                    chars[start - 1] = trie.separator;
+                }
+                end = start - 1;
+                node = node.parent;
+            }
+            return new String(chars);
+        }
+
+        private synchronized Node child(String name) {
+            final NodeRef ref = children.get(name);
+            Node child = ref == null ? null : ref.get();
+            if(child != null) {
+                return child;
+            }
+            int childHash;
+            if(this == trie.root) {
+                childHash = name.hashCode();
+            } else {
+                childHash = 31 * hash + trie.separator;
+                for(int i = 0; i < name.length(); ++i) {
+                    childHash = 31 * childHash + name.charAt(i);
+                }
+            }
+            child = new Node(trie, this, name, childHash);
+            final NodeRef childRef = new NodeRef(child, this, trie.released);
+            switch(children.size()) {
+                case 0:
+                    children = Collections.singletonMap(name, childRef);
+                    break;
+                case 1:
+                    if(ref != null) {
+                        children = Collections.singletonMap(name, childRef);
+                        break;
+                    }
+                    children = new HashMap<String, NodeRef>(children);
+                default:
+                    children.put(name, childRef);
+            }
+            return child;
+        }
+
+        private synchronized void removeChild(NodeRef ref) {
+            if(children.get(ref.name) != ref) {
+                return;
+            }
+            if(children.size() == 1) {
+                children = Collections.emptyMap();
+            } else {
+                children.remove(ref.name);
+            }
+        }
+
+        /**
+         * The same as the hash code of the path string.
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return getPath();
+        }
+    }
+
+    private static class NodeRef extends WeakReference<Node> {
+
+        private final Node parent;
+        private final String name;
+
+        NodeRef(Node node, Node parent, ReferenceQueue<Node> queue) {
+            super(node, queue);
+            this.parent = parent;
+            this.name = node.name;
+        }
+    }
+}
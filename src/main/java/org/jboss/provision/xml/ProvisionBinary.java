@@ -0,0 +1,307 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.xml;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.provision.ProvisionErrors;
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.instruction.ContentItemInstruction;
+import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
+import org.jboss.provision.instruction.ProvisionUnitInstruction;
+import org.jboss.provision.xml.ProvisionXml.Namespace;
+
+/**
+ * Binary encoding of the provisioning instructions, an alternative to {@link ProvisionXml}
+ * for the instructions of many content items.
+ *
+ * The encoding starts with the namespace of the format, see {@link Namespace#PROVISION_BINARY_1_0},
+ * followed by a section per unit and an index of the sections. Each section consists of
+ * the unit instruction and its content items with their raw hashes. The index,
+ * which is located by the offset at the end of the encoding, maps the unit names
+ * to the sections, so that the instruction of a unit can be read without reading
+ * the instructions of the other units, see {@link #open(File)}.
+ *
+ * @author Alexey Loubyansky
+ */
+public class ProvisionBinary {
+
+    public static final String PROVISION_BIN = "provision.bin";
+
+    private static final int MAGIC = 0x50564942; // PVIB
+
+    private static final byte HAS_HASH = 1;
+    private static final byte HAS_REPLACED_HASH = 2;
+    private static final byte HAS_LOCATION = 4;
+    private static final byte NOT_REQUIRED = 8;
+
+    private ProvisionBinary() {
+    }
+
+    public static byte[] marshal(ProvisionEnvironmentInstruction instructions) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        marshal(bytes, instructions);
+        return bytes.toByteArray();
+    }
+
+    public static void marshal(OutputStream os, ProvisionEnvironmentInstruction instructions) throws IOException {
+        assert os != null : ProvisionErrors.nullArgument("os");
+        assert instructions != null : ProvisionErrors.nullArgument("instructions");
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeUTF(Namespace.PROVISION_BINARY_1_0.getNamespace());
+        out.writeInt(instructions.getUnitNames().size());
+        final Map<String, long[]> sections = new LinkedHashMap<String, long[]>(instructions.getUnitNames().size());
+        for(String unitName : instructions.getUnitNames()) {
+            final long offset = out.size();
+            writeUnit(out, instructions.getUnitInstruction(unitName));
+            sections.put(unitName, new long[] {offset, out.size() - offset});
+        }
+        final long indexOffset = out.size();
+        for(Map.Entry<String, long[]> entry : sections.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue()[0]);
+            out.writeInt((int) entry.getValue()[1]);
+        }
+        out.writeLong(indexOffset);
+        out.flush();
+    }
+
+    public static ProvisionEnvironmentInstruction parse(byte[] bytes) throws IOException {
+        return parse(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Reads all the unit instructions from the stream, which is not closed.
+     *
+     * @param is  input stream
+     * @return  the instructions
+     * @throws IOException  in case of a failure or if the format is not supported
+     */
+    public static ProvisionEnvironmentInstruction parse(InputStream is) throws IOException {
+        assert is != null : ProvisionErrors.nullArgument("is");
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        readHeader(in);
+        final int units = in.readInt();
+        final ProvisionEnvironmentInstruction.Builder builder = ProvisionEnvironmentInstruction.builder();
+        for(int i = 0; i < units; ++i) {
+            builder.add(readUnit(in));
+        }
+        return builder.build();
+    }
+
+    public static boolean isBinary(File f) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            return raf.length() > 4 && raf.readInt() == MAGIC;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens the encoded instructions for reading the instructions of the units
+     * one by one in any order.
+     *
+     * @param f  file with the encoded instructions
+     * @return  index of the unit instructions
+     * @throws IOException  in case of a failure or if the format is not supported
+     */
+    public static Index open(File f) throws IOException {
+        assert f != null : ProvisionErrors.nullArgument("f");
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            readHeader(raf);
+            final int units = raf.readInt();
+            raf.seek(raf.length() - 8);
+            raf.seek(raf.readLong());
+            final Map<String, long[]> sections = new LinkedHashMap<String, long[]>(units);
+            for(int i = 0; i < units; ++i) {
+                sections.put(raf.readUTF(), new long[] {raf.readLong(), raf.readInt()});
+            }
+            return new Index(raf, sections);
+        } catch(IOException | RuntimeException | Error e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Random access to the instructions of the units.
+     */
+    public static class Index implements Closeable {
+
+        private final RandomAccessFile raf;
+        private final Map<String, long[]> sections;
+
+        private Index(RandomAccessFile raf, Map<String, long[]> sections) {
+            this.raf = raf;
+            this.sections = sections;
+        }
+
+        public Set<String> getUnitNames() {
+            return Collections.unmodifiableSet(sections.keySet());
+        }
+
+        /**
+         * Reads the instruction of the unit.
+         *
+         * @param unitName  unit name
+         * @return  the unit instruction or null if the instructions don't include the unit
+         * @throws IOException  in case of a failure
+         */
+        public ProvisionUnitInstruction getUnitInstruction(String unitName) throws IOException {
+            final long[] section = sections.get(unitName);
+            if(section == null) {
+                return null;
+            }
+            // the section is read at once and then parsed
+            final byte[] bytes = new byte[(int) section[1]];
+            raf.seek(section[0]);
+            raf.readFully(bytes);
+            return readUnit(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    private static void readHeader(DataInput in) throws IOException {
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a binary provisioning instruction");
+        }
+        final String uri = in.readUTF();
+        if(Namespace.forUri(uri) != Namespace.PROVISION_BINARY_1_0) {
+            throw new IOException("Unsupported binary provisioning instruction format " + uri);
+        }
+    }
+
+    private static void writeUnit(DataOutputStream out, ProvisionUnitInstruction unitInstr) throws IOException {
+        out.writeUTF(unitInstr.getUnitName());
+        writeNullable(out, unitInstr.getRequiredVersion());
+        writeNullable(out, unitInstr.getResultingVersion());
+        writeNullable(out, unitInstr.getId());
+        out.writeInt(unitInstr.getContentInstructions().size());
+        for(ContentItemInstruction item : unitInstr.getContentInstructions()) {
+            final ContentPath path = item.getPath();
+            byte flags = 0;
+            if(item.getContentHash() != null) {
+                flags |= HAS_HASH;
+            }
+            if(item.getReplacedHash() != null) {
+                flags |= HAS_REPLACED_HASH;
+            }
+            if(path.getLocationName() != null) {
+                flags |= HAS_LOCATION;
+            }
+            if(!item.isRequired()) {
+                flags |= NOT_REQUIRED;
+            }
+            out.writeByte(flags);
+            if(path.getLocationName() != null) {
+                out.writeUTF(path.getLocationName());
+            }
+            out.writeUTF(path.getRelativePath());
+            if(item.getContentHash() != null) {
+                writeHash(out, item.getContentHash());
+            }
+            if(item.getReplacedHash() != null) {
+                writeHash(out, item.getReplacedHash());
+            }
+        }
+    }
+
+    private static ProvisionUnitInstruction readUnit(DataInput in) throws IOException {
+        final String name = in.readUTF();
+        final String requiredVersion = readNullable(in);
+        final String resultingVersion = readNullable(in);
+        final String id = readNullable(in);
+        final ProvisionUnitInstruction.Builder builder;
+        if(resultingVersion == null) {
+            builder = ProvisionUnitInstruction.uninstallUnit(name, requiredVersion);
+        } else if(requiredVersion == null) {
+            builder = ProvisionUnitInstruction.installUnit(name, resultingVersion);
+        } else if(requiredVersion.equals(resultingVersion)) {
+            builder = ProvisionUnitInstruction.patchUnit(name, requiredVersion, id);
+        } else {
+            builder = ProvisionUnitInstruction.replaceUnit(name, requiredVersion, resultingVersion);
+        }
+        final int items = in.readInt();
+        for(int i = 0; i < items; ++i) {
+            final byte flags = in.readByte();
+            final String location = (flags & HAS_LOCATION) == 0 ? null : in.readUTF();
+            final ContentPath path = ContentPath.create(location, in.readUTF());
+            final byte[] hash = (flags & HAS_HASH) == 0 ? null : readHash(in);
+            final byte[] replacedHash = (flags & HAS_REPLACED_HASH) == 0 ? null : readHash(in);
+            final ContentItemInstruction.Builder item;
+            if(replacedHash == null) {
+                item = ContentItemInstruction.Builder.addContent(path, hash);
+            } else if(hash == null) {
+                item = ContentItemInstruction.Builder.removeContent(path, replacedHash);
+            } else {
+                item = ContentItemInstruction.Builder.replaceContent(path, hash, replacedHash);
+            }
+            builder.addContentInstruction(item.setRequired((flags & NOT_REQUIRED) == 0).build());
+        }
+        return builder.build();
+    }
+
+    private static void writeHash(DataOutputStream out, byte[] hash) throws IOException {
+        out.writeByte(hash.length);
+        out.write(hash);
+    }
+
+    private static byte[] readHash(DataInput in) throws IOException {
+        final byte[] hash = new byte[in.readUnsignedByte()];
+        in.readFully(hash);
+        return hash;
+    }
+
+    private static void writeNullable(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if(str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -59,6 +59,7 @@ public class ProvisionXml {
     public enum Namespace {
 
         PROVISION_1_0("urn:jboss:provision:1.0"),
+        PROVISION_BINARY_1_0("urn:jboss:provision:binary:1.0"),
         UNKNOWN(null);
 
         private final String namespace;
@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.install;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class BinaryContentInstallTestCase extends ApplicationTestBase {
+
+    @Test
+    public void testMain() throws Exception {
+
+        final byte[] binary = new byte[256 * 1024];
+        new Random(1).nextBytes(binary);
+        writeBytes("lib/a.jar", binary);
+        writeBytes("b.txt", "line1\r\nline2\n".getBytes());
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall();
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+        assertArrayEquals(binary, Files.readAllBytes(new File(testInstall.getHome(), "lib/a.jar").toPath()));
+        assertArrayEquals("line1\r\nline2\n".getBytes(), Files.readAllBytes(new File(testInstall.getHome(), "b.txt").toPath()));
+    }
+
+    private void writeBytes(String relativePath, byte[] bytes) throws Exception {
+        final File f = originalInstall.resolvePath(relativePath);
+        f.getParentFile().mkdirs();
+        Files.write(f.toPath(), bytes);
+    }
+}
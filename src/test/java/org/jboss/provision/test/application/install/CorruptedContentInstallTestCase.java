@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.install;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.jboss.provision.test.util.FSUtils;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class CorruptedContentInstallTestCase extends ApplicationTestBase {
+
+    private File corrupted;
+
+    @Override
+    public void doInit() {
+        corrupted = FSUtils.newTmpFile("corrupted.tst");
+        originalInstall.createFileWithRandomContent("a.txt")
+            .createFileWithRandomContent("b/b.txt");
+    }
+
+    @Override
+    public void doCleanUp() {
+        IoUtils.recursiveDelete(corrupted);
+    }
+
+    @Test
+    public void testExtractedPackage() throws Exception {
+        assertNotApplied(ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build());
+    }
+
+    @Test
+    public void testZipPackage() throws Exception {
+        assertNotApplied(ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).setExtractPackages(false).build());
+    }
+
+    private void assertNotApplied(ProvisionEnvironment env) throws Exception {
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall();
+        replaceEntry(archive, corrupted, "b/b.txt", "corrupted");
+
+        try {
+            env.apply(corrupted);
+            fail("the content does not match the expected hash");
+        } catch(ProvisionException e) {
+            // expected
+        }
+        assertFalse(new File(testInstall.getHome(), "a.txt").exists());
+        assertFalse(new File(testInstall.getHome(), "b/b.txt").exists());
+
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+    }
+
+    private static void replaceEntry(File src, File target, String entryName, String content) throws Exception {
+        final ZipFile zip = new ZipFile(src);
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while(entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                if(entry.getName().equals(entryName)) {
+                    zos.write(content.getBytes());
+                } else {
+                    final InputStream is = zip.getInputStream(entry);
+                    try {
+                        IoUtils.copyStream(is, zos);
+                    } finally {
+                        IoUtils.safeClose(is);
+                    }
+                }
+                zos.closeEntry();
+            }
+        } finally {
+            IoUtils.safeClose(zos);
+            IoUtils.safeClose(zip);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.install;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ * The hash of a .jar.index file is the hash of no content.
+ *
+ * @author Alexey Loubyansky
+ */
+public class JarIndexInstallTestCase extends ApplicationTestBase {
+
+    @Override
+    protected void doInit() {
+        originalInstall.createFileWithRandomContent("modules/foo.jar")
+            .createFileWithRandomContent("modules/foo.jar.index");
+        try {
+            ProvisionPackage.newBuilder()
+                .setTargetInstallationDir(originalInstall.getHome())
+                .setPackageOutputFile(archive)
+                .buildInstall("unitA", "1.0");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testExtracted() throws Exception {
+        install(true);
+    }
+
+    @Test
+    public void testZip() throws Exception {
+        install(false);
+    }
+
+    private void install(boolean extract) throws Exception {
+        final ProvisionEnvironment env = ProvisionEnvironment.builder()
+                .setEnvironmentHome(testInstall.getHome())
+                .setExtractPackages(extract)
+                .build();
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        env.rollbackLast();
+        AssertUtil.assertEmptyDirBranch(testInstall.getHome());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.install;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.instruction.ContentItemInstruction;
+import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.instruction.ProvisionUnitInstruction;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ParallelPlanningInstallTestCase extends ApplicationTestBase {
+
+    @Override
+    protected void doInit() {
+        originalInstall.createFileWithRandomContent("a/1.txt")
+            .createFileWithRandomContent("a/2.txt")
+            .createFileWithRandomContent("b/1.txt")
+            .createFileWithRandomContent("b/2.txt")
+            .createFileWithRandomContent("c/1.txt")
+            .createFileWithRandomContent("shared.txt");
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        buildPackage();
+
+        final ProvisionEnvironment env = newEnv();
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+        assertEquals("1.0", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        assertEquals("2.0", env.getUnitEnvironment("unitB").getUnitInfo().getVersion());
+        assertEquals("3.0", env.getUnitEnvironment("unitC").getUnitInfo().getVersion());
+
+        env.rollbackLast();
+        AssertUtil.assertEmptyDirBranch(testInstall.getHome());
+    }
+
+    @Test
+    public void testConflictOnDisk() throws Exception {
+
+        buildPackage();
+        testInstall.createFileWithRandomContent("c/1.txt");
+        final byte[] localHash = testInstall.hashOf("c/1.txt");
+
+        try {
+            newEnv().apply(archive);
+            fail("install didn't fail");
+        } catch(ProvisionException e) {
+            // expected
+        }
+        assertArrayEquals(localHash, testInstall.hashOf("c/1.txt"));
+        assertFalse(testInstall.resolvePath("a/1.txt").exists());
+        assertFalse(testInstall.resolvePath("shared.txt").exists());
+    }
+
+    @Test
+    public void testSharedPath() throws Exception {
+
+        // unitC removes the content unitA puts at the path, the unitC's check must see the unitA's content, not the disk
+        // and the path remains owned by unitA
+        testInstall.createFileWithRandomContent("shared.txt");
+        final ProvisionEnvironmentInstruction instructions = ProvisionEnvironmentInstruction.builder()
+                .add(ProvisionUnitInstruction.installUnit("unitA", "1.0")
+                        .addContentInstruction(addContent("a/1.txt"))
+                        .addContentInstruction(ContentItemInstruction.Builder.replaceContent(ContentPath.forPath("shared.txt"),
+                                originalInstall.hashOf("shared.txt"), testInstall.hashOf("shared.txt")).build())
+                        .build())
+                .add(ProvisionUnitInstruction.installUnit("unitC", "3.0")
+                        .addContentInstruction(addContent("c/1.txt"))
+                        .addContentInstruction(ContentItemInstruction.Builder.removeContent(
+                                ContentPath.forPath("shared.txt"), originalInstall.hashOf("shared.txt")).build())
+                        .build())
+                .build();
+        ProvisionPackage.build(instructions, originalInstall.getHome(), archive);
+
+        newEnv().apply(archive);
+        assertArrayEquals(originalInstall.hashOf("shared.txt"), testInstall.hashOf("shared.txt"));
+        assertArrayEquals(originalInstall.hashOf("a/1.txt"), testInstall.hashOf("a/1.txt"));
+        assertArrayEquals(originalInstall.hashOf("c/1.txt"), testInstall.hashOf("c/1.txt"));
+    }
+
+    private ProvisionEnvironment newEnv() throws ProvisionException {
+        return ProvisionEnvironment.builder()
+                .setEnvironmentHome(testInstall.getHome())
+                .setPlanningParallelism(4)
+                .build();
+    }
+
+    private void buildPackage() throws Exception {
+        final ProvisionEnvironmentInstruction instructions = ProvisionEnvironmentInstruction.builder()
+                .add(ProvisionUnitInstruction.installUnit("unitA", "1.0")
+                        .addContentInstruction(addContent("a/1.txt"))
+                        .addContentInstruction(addContent("a/2.txt"))
+                        .addContentInstruction(addContent("shared.txt"))
+                        .build())
+                .add(ProvisionUnitInstruction.installUnit("unitB", "2.0")
+                        .addContentInstruction(addContent("b/1.txt"))
+                        .addContentInstruction(addContent("b/2.txt"))
+                        .build())
+                .add(ProvisionUnitInstruction.installUnit("unitC", "3.0")
+                        .addContentInstruction(addContent("c/1.txt"))
+                        .addContentInstruction(addContent("shared.txt"))
+                        .build())
+                .build();
+        ProvisionPackage.build(instructions, originalInstall.getHome(), archive);
+    }
+
+    private ContentItemInstruction addContent(String path) throws IOException {
+        return ContentItemInstruction.Builder.addContent(ContentPath.forPath(path), originalInstall.hashOf(path)).build();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.install;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionPlan;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.FSImage;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class PlanInstallTestCase extends ApplicationTestBase {
+
+    @Test
+    public void testMain() throws Exception {
+
+        originalInstall.createFile("a.txt", "aaaa")
+            .createFile("b/b.txt", "bbbbbbbb")
+            .createFile("c/c.txt", "cc");
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        testInstall.createFile("b/b.txt", "conflict");
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        ProvisionPlan plan = env.plan(archive);
+        assertTrue(plan.hasConflicts());
+        assertEquals(1, plan.getConflicts().size());
+        assertEquals(testInstall.resolvePath("b/b.txt").getAbsolutePath(), plan.getConflicts().get(0).getPath().getAbsolutePath());
+        assertFalse(testInstall.resolvePath("a.txt").exists());
+        assertFalse(new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR).exists());
+
+        testInstall.delete("b");
+        plan = env.plan(archive);
+        assertFalse(plan.hasConflicts());
+        Map<String, FSImage.ScheduledUpdate> updates = getUpdates(plan);
+        assertUpdate(updates, "a.txt", FSImage.PathStatus.WRITE_SCHEDULED, 4, 0);
+        assertUpdate(updates, "b/b.txt", FSImage.PathStatus.WRITE_SCHEDULED, 8, 0);
+        assertUpdate(updates, "c/c.txt", FSImage.PathStatus.WRITE_SCHEDULED, 2, 0);
+        assertTrue(plan.getBytesToWrite() >= 14);
+        assertEquals(0, plan.getBytesToBackup());
+        assertEquals(3, plan.getOwnershipChanges().size());
+        for(ProvisionPlan.OwnershipChange change : plan.getOwnershipChanges()) {
+            assertEquals("unitA", change.getUnitName());
+            assertTrue(change.isAdded());
+        }
+        assertFalse(testInstall.resolvePath("a.txt").exists());
+        assertFalse(new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR).exists());
+
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        originalInstall.updateFile("a.txt", "aaaaaa").delete("c");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildUpdate("unitA", "1.0", "1.1");
+
+        plan = env.plan(archive);
+        assertFalse(plan.hasConflicts());
+        updates = getUpdates(plan);
+        assertUpdate(updates, "a.txt", FSImage.PathStatus.WRITE_SCHEDULED, 6, 4);
+        assertUpdate(updates, "c/c.txt", FSImage.PathStatus.DELETE_SCHEDULED, 0, 2);
+        assertFalse(updates.containsKey(testInstall.resolvePath("b/b.txt").getAbsolutePath()));
+        assertTrue(plan.getBytesToBackup() >= 6);
+        assertEquals("1.0", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        assertEquals("aaaa", new String(Files.readAllBytes(testInstall.resolvePath("a.txt").toPath())));
+
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+        assertEquals("1.1", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+    }
+
+    private static Map<String, FSImage.ScheduledUpdate> getUpdates(ProvisionPlan plan) {
+        final Map<String, FSImage.ScheduledUpdate> updates = new HashMap<String, FSImage.ScheduledUpdate>();
+        for(FSImage.ScheduledUpdate update : plan.getUpdates()) {
+            updates.put(update.getTarget().getAbsolutePath(), update);
+        }
+        return updates;
+    }
+
+    private void assertUpdate(Map<String, FSImage.ScheduledUpdate> updates, String relativePath,
+            FSImage.PathStatus status, long contentSize, long backupSize) {
+        final FSImage.ScheduledUpdate update = updates.get(testInstall.resolvePath(relativePath).getAbsolutePath());
+        assertNotNull(relativePath, update);
+        assertEquals(status, update.getStatus());
+        assertEquals(contentSize, update.getContentSize());
+        assertEquals(backupSize, update.getBackupSize());
+    }
+}
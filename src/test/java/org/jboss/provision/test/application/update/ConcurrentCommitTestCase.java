@@ -0,0 +1,236 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.ContentWriter;
+import org.jboss.provision.io.FSImage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.jboss.provision.test.util.FSUtils;
+import org.jboss.provision.test.util.InstallationBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ConcurrentCommitTestCase extends ApplicationTestBase {
+
+    private static class FailingWriter extends ContentWriter {
+        FailingWriter(File target) {
+            super(target);
+        }
+        @Override
+        public void write(BufferedWriter writer) throws IOException {
+            throw new IOException("failed");
+        }
+    }
+
+    @Override
+    public void doInit() {
+        for(int i = 0; i < 40; ++i) {
+            originalInstall.createFileWithRandomContent("d" + (i % 5) + "/e" + (i % 3) + "/f" + i + ".txt");
+        }
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder()
+                .setEnvironmentHome(testInstall.getHome())
+                .setCommitParallelism(4)
+                .build();
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        final InstallationBuilder v10 = InstallationBuilder.create();
+        try {
+            IoUtils.copyFile(originalInstall.getHome(), v10.getHome());
+
+            for(int i = 0; i < 40; i += 2) {
+                originalInstall.updateFileWithRandomContent("d" + (i % 5) + "/e" + (i % 3) + "/f" + i + ".txt");
+            }
+            originalInstall.delete("d1")
+                .createFileWithRandomContent("d5/new.txt");
+            ProvisionPackage.newBuilder()
+                .setCurrentInstallationDir(testInstall.getHome())
+                .setTargetInstallationDir(originalInstall.getHome())
+                .setPackageOutputFile(archive)
+                .buildUpdate("unitA", "1.0", "1.1");
+
+            env.apply(archive);
+            AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+            assertEquals("1.1", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+
+            env.rollbackLast();
+            AssertUtil.assertIdentical(v10.getHome(), testInstall.getHome(), true);
+            assertEquals("1.0", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        } finally {
+            IoUtils.recursiveDelete(v10.getHome());
+        }
+    }
+
+    @Test
+    public void testFailedCommitIsReverted() throws Exception {
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        // the content is written from the package while the commit is executed, that's where it is verified
+        final ProvisionEnvironment env = ProvisionEnvironment.builder()
+                .setEnvironmentHome(testInstall.getHome())
+                .setCommitParallelism(4)
+                .setExtractPackages(false)
+                .build();
+        env.apply(archive);
+
+        final InstallationBuilder v10 = InstallationBuilder.create();
+        final File v10History = FSUtils.newTmpFile("history.tst");
+        final File corrupted = FSUtils.newTmpFile("corrupted.tst");
+        try {
+            IoUtils.copyFile(testInstall.getHome(), v10.getHome());
+            IoUtils.copyFile(new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR), v10History);
+
+            for(int i = 0; i < 40; i += 2) {
+                originalInstall.updateFileWithRandomContent("d" + (i % 5) + "/e" + (i % 3) + "/f" + i + ".txt");
+            }
+            originalInstall.delete("d1")
+                .createFileWithRandomContent("d5/new.txt");
+            ProvisionPackage.newBuilder()
+                .setCurrentInstallationDir(testInstall.getHome())
+                .setTargetInstallationDir(originalInstall.getHome())
+                .setPackageOutputFile(archive)
+                .buildUpdate("unitA", "1.0", "1.1");
+            // the other tasks of the level are completed before the commit is reverted
+            replaceEntry(archive, corrupted, "d4/e2/f14.txt", "corrupted");
+
+            try {
+                env.apply(corrupted);
+                fail("the content does not match the expected hash");
+            } catch(ProvisionException e) {
+                // expected
+            }
+            AssertUtil.assertIdentical(v10.getHome(), testInstall.getHome());
+            // the directories created for the new records may be left behind
+            AssertUtil.assertIdentical(v10History, new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR), true);
+            assertEquals("1.0", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+
+            env.apply(archive);
+            AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+            assertEquals("1.1", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        } finally {
+            IoUtils.recursiveDelete(v10.getHome());
+            IoUtils.recursiveDelete(v10History);
+            IoUtils.recursiveDelete(corrupted);
+        }
+    }
+
+    @Test
+    public void testFailedLevelIsReverted() throws Exception {
+
+        final InstallationBuilder home = InstallationBuilder.create();
+        final InstallationBuilder original = InstallationBuilder.create();
+        try {
+            home.createFile("c/old.txt", "old");
+            for(int i = 0; i < 6; ++i) {
+                home.createFile("d/" + i + ".txt", "d" + i);
+                home.createFile("e/" + i + ".txt", "e" + i);
+            }
+            IoUtils.copyFile(home.getHome(), original.getHome());
+
+            final FSImage image = new FSImage(4);
+            // level 0
+            image.delete(home.resolvePath("c"));
+            for(int i = 0; i < 6; ++i) {
+                image.write("d" + i + "v2", home.resolvePath("d/" + i + ".txt"));
+            }
+            // level 1, the sources are written at level 0
+            for(int i = 0; i < 6; ++i) {
+                image.write(home.resolvePath("d/" + i + ".txt"), home.resolvePath("e/" + i + ".txt"));
+            }
+            // level 1, the parent is deleted at level 0
+            image.write("new", home.resolvePath("c/new.txt"));
+            image.write(new FailingWriter(home.resolvePath("c/failed.txt")));
+            try {
+                image.commit();
+                fail("the commit is expected to fail");
+            } catch(IOException e) {
+                // expected
+            }
+            AssertUtil.assertIdentical(original.getHome(), home.getHome());
+        } finally {
+            IoUtils.recursiveDelete(home.getHome());
+            IoUtils.recursiveDelete(original.getHome());
+        }
+    }
+
+    private static void replaceEntry(File src, File target, String entryName, String content) throws Exception {
+        final ZipFile zip = new ZipFile(src);
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while(entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                if(entry.getName().equals(entryName)) {
+                    zos.write(content.getBytes());
+                } else {
+                    final InputStream is = zip.getInputStream(entry);
+                    try {
+                        IoUtils.copyStream(is, zos);
+                    } finally {
+                        IoUtils.safeClose(is);
+                    }
+                }
+                zos.closeEntry();
+            }
+        } finally {
+            IoUtils.safeClose(zos);
+            IoUtils.safeClose(zip);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.update;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.zip.ZipFile;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionException;
+import org.jboss.provision.UnitUpdatePolicy;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.ContentDelta;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.jboss.provision.util.HashUtils;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class DeltaUpdateTestCase extends ApplicationTestBase {
+
+    private String large;
+
+    @Override
+    public void doInit() {
+        final Random random = new Random(7);
+        final StringBuilder buf = new StringBuilder(200000);
+        while(buf.length() < 200000) {
+            buf.append(Long.toHexString(random.nextLong()));
+        }
+        large = buf.toString();
+        originalInstall.createFile("lib/large.jar", large)
+            .createFile("lib/small.txt", "small")
+            .createFileWithRandomContent("a.txt");
+    }
+
+    @Test
+    public void testExtractedPackage() throws Exception {
+        testUpdate(true);
+    }
+
+    @Test
+    public void testZipPackage() throws Exception {
+        testUpdate(false);
+    }
+
+    @Test
+    public void testBaseMismatch() throws Exception {
+        install();
+        buildUpdate();
+
+        testInstall.updateFile("lib/large.jar", large.substring(1000));
+        try {
+            ProvisionEnvironment.builder()
+                .setEnvironmentHome(testInstall.getHome())
+                .addUnit("unitA", "1.0")
+                .setDefaultUnitUpdatePolicy(UnitUpdatePolicy.FORCED)
+                .build()
+                .apply(archive);
+            fail("The delta was applied to the modified content");
+        } catch(ProvisionException e) {
+            // expected
+        }
+        assertArrayEquals(HashUtils.hashBytes(large.substring(1000).getBytes()), testInstall.hashOf("lib/large.jar"));
+        assertEquals("1.0", ProvisionEnvironment.load(testInstall.getHome()).getUnitEnvironment("unitA").getUnitInfo().getVersion());
+    }
+
+    @Test
+    public void testExtractedPackageFallback() throws Exception {
+        testFallback(true);
+    }
+
+    @Test
+    public void testZipPackageFallback() throws Exception {
+        testFallback(false);
+    }
+
+    private void testFallback(boolean extract) throws Exception {
+        install();
+        buildUpdate(true);
+
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            assertNotNull(zip.getEntry("lib/large.jar"));
+            assertNotNull(zip.getEntry(ContentDelta.entryName("lib/large.jar")));
+        } finally {
+            IoUtils.safeClose(zip);
+        }
+
+        testInstall.updateFile("lib/large.jar", large.substring(1000));
+        ProvisionEnvironment.builder()
+            .setEnvironmentHome(testInstall.getHome())
+            .setExtractPackages(extract)
+            .addUnit("unitA", "1.0")
+            .setDefaultUnitUpdatePolicy(UnitUpdatePolicy.FORCED)
+            .build()
+            .apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+        assertEquals("1.1", ProvisionEnvironment.load(testInstall.getHome()).getUnitEnvironment("unitA").getUnitInfo().getVersion());
+    }
+
+    private void testUpdate(boolean extract) throws Exception {
+        install();
+        buildUpdate();
+
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            assertNull(zip.getEntry("lib/large.jar"));
+            assertNotNull(zip.getEntry(ContentDelta.entryName("lib/large.jar")));
+            // too small to benefit from a delta
+            assertNotNull(zip.getEntry("lib/small.txt"));
+            assertNull(zip.getEntry(ContentDelta.entryName("lib/small.txt")));
+        } finally {
+            IoUtils.safeClose(zip);
+        }
+        assertTrue(archive.length() < large.length() / 10);
+
+        ProvisionEnvironment.builder()
+            .setEnvironmentHome(testInstall.getHome())
+            .setExtractPackages(extract)
+            .load()
+            .apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+        assertEquals("1.1", ProvisionEnvironment.load(testInstall.getHome()).getUnitEnvironment("unitA").getUnitInfo().getVersion());
+
+        ProvisionEnvironment.load(testInstall.getHome()).rollbackLast();
+        assertEquals("1.0", ProvisionEnvironment.load(testInstall.getHome()).getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        assertArrayEquals(HashUtils.hashBytes(large.getBytes()), testInstall.hashOf("lib/large.jar"));
+    }
+
+    private void install() throws Exception {
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+        ProvisionEnvironment.builder()
+            .setEnvironmentHome(testInstall.getHome())
+            .build()
+            .apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+    }
+
+    private void buildUpdate() throws Exception {
+        buildUpdate(false);
+    }
+
+    private void buildUpdate(boolean fallback) throws Exception {
+        originalInstall.updateFile("lib/large.jar", large.substring(0, 50000) + "changed" + large.substring(50100, 150000) + large.substring(150500))
+            .updateFile("lib/small.txt", "changed small");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .setContentDelta(true)
+            .setContentDeltaFallback(fallback)
+            .buildUpdate("unitA", "1.0", "1.1");
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.provision.test.application.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.FSImage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class DurableCommitTestCase extends ApplicationTestBase {
+
+    @Override
+    public void doInit() {
+        for(int i = 0; i < 20; ++i) {
+            originalInstall.createFileWithRandomContent("d" + (i % 4) + "/f" + i + ".txt");
+        }
+    }
+
+    private final List<File> synced = Collections.synchronizedList(new ArrayList<File>());
+
+    @Override
+    protected void doCleanUp() {
+        IoUtils.setSyncListener(null);
+    }
+
+    @Test
+    public void testNone() throws Exception {
+        testDurability(FSImage.Durability.NONE, 4);
+
+        // only the commit journal is synced
+        for(List<File> phase : getPhases()) {
+            assertTrue(phase.toString(), phase.isEmpty());
+        }
+    }
+
+    @Test
+    public void testBatched() throws Exception {
+        testDurability(FSImage.Durability.BATCHED, 4);
+
+        final List<List<File>> phases = getPhases();
+        // each file and directory is synced once at the end of its phase
+        for(List<File> phase : phases) {
+            assertFalse(phase.isEmpty());
+            assertEquals(phase.toString(), new HashSet<File>(phase).size(), phase.size());
+        }
+        assertUpdatesSynced(phases.get(1));
+    }
+
+    @Test
+    public void testStrict() throws Exception {
+        testDurability(FSImage.Durability.STRICT, 1);
+
+        final List<List<File>> phases = getPhases();
+        for(List<File> phase : phases) {
+            assertFalse(phase.isEmpty());
+            // every file is synced as soon as it is written, followed by its directory
+            for(int i = 0; i < phase.size(); ++i) {
+                final File f = phase.get(i);
+                if(f.isFile()) {
+                    assertEquals(f.getParentFile(), phase.get(++i));
+                }
+            }
+        }
+        final List<File> execute = phases.get(1);
+        assertUpdatesSynced(execute);
+        // the directory of the two updated files is synced with each of them
+        assertEquals(2, Collections.frequency(execute, new File(testInstall.getHome(), "d0")));
+    }
+
+    private void testDurability(FSImage.Durability durability, int parallelism) throws Exception {
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder()
+                .setEnvironmentHome(testInstall.getHome())
+                .setCommitParallelism(parallelism)
+                .setDurability(durability)
+                .build();
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        for(int i = 0; i < 20; i += 3) {
+            originalInstall.updateFileWithRandomContent("d" + (i % 4) + "/f" + i + ".txt");
+        }
+        originalInstall.delete("d1")
+            .createFileWithRandomContent("d4/new.txt");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildUpdate("unitA", "1.0", "1.1");
+
+        IoUtils.setSyncListener(new IoUtils.SyncListener() {
+            @Override
+            public void synced(File f) {
+                synced.add(f);
+            }});
+        ProvisionEnvironment.builder()
+            .setEnvironmentHome(testInstall.getHome())
+            .setCommitParallelism(parallelism)
+            .setDurability(durability)
+            .load()
+            .apply(archive);
+        IoUtils.setSyncListener(null);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+        assertEquals("1.1", ProvisionEnvironment.load(testInstall.getHome()).getUnitEnvironment("unitA").getUnitInfo().getVersion());
+    }
+
+    /**
+     * Splits the syncs of the update by the marks of the commit journal, which
+     * is synced once the intent is recorded and after the backup and execute phases.
+     *
+     * @return  the syncs of the backup and the execute phases
+     */
+    private List<List<File>> getPhases() {
+        final File journal = new File(new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR), "commit.journal");
+        final List<Integer> marks = new ArrayList<Integer>(3);
+        for(int i = 0; i < synced.size(); ++i) {
+            if(synced.get(i).equals(journal)) {
+                marks.add(i);
+            }
+        }
+        assertEquals(synced.toString(), 3, marks.size());
+        // nothing is synced before the intent is recorded or after the execute phase
+        assertEquals(0, marks.get(0).intValue());
+        assertEquals(synced.size() - 1, marks.get(2).intValue());
+
+        final List<List<File>> phases = new ArrayList<List<File>>(2);
+        phases.add(synced.subList(marks.get(0) + 1, marks.get(1)));
+        phases.add(synced.subList(marks.get(1) + 1, marks.get(2)));
+        return phases;
+    }
+
+    private void assertUpdatesSynced(List<File> execute) {
+        final Set<File> expected = new HashSet<File>();
+        for(int i = 0; i < 20; i += 3) {
+            if(i % 4 != 1) {
+                expected.add(new File(testInstall.getHome(), "d" + (i % 4) + "/f" + i + ".txt"));
+            }
+        }
+        expected.add(new File(testInstall.getHome(), "d4/new.txt"));
+        expected.add(new File(testInstall.getHome(), "d4"));
+        for(File f : expected) {
+            assertTrue(f.getPath(), execute.contains(f));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.application.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.ProvisionListener.Phase;
+import org.jboss.provision.ProvisionMetricsCollector;
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.instruction.ContentItemInstruction;
+import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.instruction.ProvisionUnitInstruction;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ProvisionListenerTestCase extends ApplicationTestBase {
+
+    private static class RecordingCollector extends ProvisionMetricsCollector {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void phaseStarted(Phase phase) {
+            events.add("+" + phase);
+        }
+
+        @Override
+        public synchronized void phaseEnded(Phase phase, long durationNanos) {
+            assertTrue(durationNanos >= 0);
+            events.add("-" + phase);
+            super.phaseEnded(phase, durationNanos);
+        }
+    }
+
+    private static void backdate(File dir) throws IOException {
+        final FileTime mtime = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.setLastModifiedTime(file, mtime);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        originalInstall.createFileWithRandomContent("a.txt")
+            .createFileWithRandomContent("b/b.txt")
+            .createFileWithRandomContent("c/c/c.txt");
+        final long installedBytes = IoUtils.sizeOf(originalInstall.getHome());
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        final RecordingCollector collector = new RecordingCollector();
+        final ProvisionEnvironment env = ProvisionEnvironment.builder()
+                .setEnvironmentHome(testInstall.getHome())
+                .setListener(collector)
+                .build();
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        assertEquals(Arrays.asList("+EXTRACT", "-EXTRACT", "+PARSE", "-PARSE", "+PLAN", "-PLAN",
+                "+COMMIT", "+BACKUP", "-BACKUP", "+EXECUTE", "-EXECUTE", "+CLEANUP", "-CLEANUP", "-COMMIT"), collector.events);
+        for(Phase phase : Phase.values()) {
+            assertEquals(1, collector.getPhase(phase).getCount());
+        }
+        ProvisionMetricsCollector.UnitMetrics unitMetrics = collector.getUnit("unitA");
+        assertNotNull(unitMetrics);
+        assertEquals(1, unitMetrics.getCount());
+        assertEquals(3, unitMetrics.getPathsWritten());
+        assertEquals(0, unitMetrics.getPathsDeleted());
+        assertEquals(1, collector.getCommits());
+        // the history is written along with the content
+        assertTrue(collector.getPathsWritten() > 3);
+        assertTrue(collector.getBytesWritten() > installedBytes);
+        assertEquals(0, collector.getBytesBackedUp());
+
+        originalInstall.updateFileWithRandomContent("a.txt")
+            .delete("b/b.txt");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildUpdate("unitA", "1.0", "1.1");
+
+        collector.reset();
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        unitMetrics = collector.getUnit("unitA");
+        assertEquals(1, unitMetrics.getPathsWritten());
+        assertEquals(1, unitMetrics.getPathsDeleted());
+        assertTrue(collector.getPathsDeleted() >= 1);
+        assertTrue(collector.getBytesBackedUp() > 0);
+        // the hashes of the content written by the install are not cached
+        assertEquals(0, collector.getHashCacheHits());
+        assertTrue(collector.getHashCacheMisses() >= 2);
+        assertTrue(collector.getBytesRead() > 0);
+
+        // unitB shares the unchanged c/c/c.txt, its hash is cached once the modification time is old enough
+        backdate(testInstall.getHome());
+        ProvisionPackage.build(ProvisionEnvironmentInstruction.builder()
+                .add(ProvisionUnitInstruction.installUnit("unitB", "1.0")
+                        .addContentInstruction(ContentItemInstruction.Builder.addContent(ContentPath.forPath("c/c/c.txt"),
+                                originalInstall.hashOf("c/c/c.txt")).build())
+                        .build())
+                .build(), originalInstall.getHome(), archive);
+        env.apply(archive);
+
+        originalInstall.delete("c/c/c.txt");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildUpdate("unitA", "1.1", "1.2");
+        collector.reset();
+        env.apply(archive);
+        // unitB still owns the path
+        assertTrue(testInstall.resolvePath("c/c/c.txt").exists());
+        assertTrue(collector.getHashCacheHits() > 0);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        collector.print(new PrintStream(out, true));
+        assertTrue(out.toString().contains("unit unitA planned 1 time(s)"));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.FileUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class BackupContentStoreTestCase extends ApplicationTestBase {
+
+    @Test
+    public void testMain() throws Exception {
+
+        originalInstall.createFile("a.txt", "v0")
+            .createFile("b.txt", "b");
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+        assertEquals(0, countStoredContent());
+
+        patch("patch1", "v1"); // backs up v0
+        assertEquals(1, countStoredContent());
+        patch("patch2", "v0"); // backs up v1
+        assertEquals(2, countStoredContent());
+        patch("patch3", "v1"); // backs up v0 again
+        assertEquals(2, countStoredContent());
+        patch("patch4", "v0"); // backs up v1 again
+        assertEquals(2, countStoredContent());
+
+        env.rollbackLast();
+        assertContent("v1");
+        assertEquals(2, countStoredContent());
+        env.rollbackLast();
+        assertContent("v0");
+        assertEquals(2, countStoredContent());
+        env.rollbackLast();
+        assertContent("v1");
+        // the second backup of v1 has been released
+        assertEquals(1, countStoredContent());
+        env.rollbackLast();
+        assertContent("v0");
+        assertEquals(0, countStoredContent());
+    }
+
+    @Test
+    public void testContentNotHashed() throws Exception {
+
+        // the hash of a .jar.index file is the hash of no content, the stored content must not be shared
+        originalInstall.createFile("a/x.jar.index", "AAA")
+            .createFile("b/y.jar.index", "BBBBB")
+            .createFile("b.txt", "b");
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+
+        originalInstall.delete("a/x.jar.index")
+            .delete("b/y.jar.index");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildPatch("patch1", "unitA", "1.0");
+        ProvisionEnvironment.load(testInstall.getHome()).apply(archive);
+        assertFalse(testInstall.resolvePath("a/x.jar.index").exists());
+        assertFalse(testInstall.resolvePath("b/y.jar.index").exists());
+        assertEquals(2, countStoredContent());
+
+        env.rollbackLast();
+        assertEquals("AAA", FileUtils.readFile(testInstall.resolvePath("a/x.jar.index")));
+        assertEquals("BBBBB", FileUtils.readFile(testInstall.resolvePath("b/y.jar.index")));
+        assertEquals("b", FileUtils.readFile(testInstall.resolvePath("b.txt")));
+        assertEquals(0, countStoredContent());
+    }
+
+    private void patch(String patchId, String content) throws Exception {
+        originalInstall.updateFile("a.txt", content);
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildPatch(patchId, "unitA", "1.0");
+        ProvisionEnvironment.load(testInstall.getHome()).apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+    }
+
+    private void assertContent(String expected) throws Exception {
+        assertEquals(expected, FileUtils.readFile(testInstall.resolvePath("a.txt")));
+        assertEquals("b", FileUtils.readFile(testInstall.resolvePath("b.txt")));
+    }
+
+    private int countStoredContent() {
+        final File store = new File(new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR), "blobs");
+        int count = 0;
+        final File[] buckets = store.listFiles();
+        if(buckets != null) {
+            for(File bucket : buckets) {
+                count += bucket.list().length;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.info.ProvisionEnvironmentInfo;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.FileUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class CompactHistoryTestCase extends ApplicationTestBase {
+
+    private static final FileFilter DIRS = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory();
+        }
+    };
+
+    @Test
+    public void testMain() throws Exception {
+
+        originalInstall.createFile("a.txt", "v0")
+            .createFile("b.txt", "b");
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+        ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+
+        originalInstall.updateFile("a.txt", "v2")
+            .createFile("c.txt", "c");
+        update("1.0", "1.1");
+
+        originalInstall.updateFile("a.txt", "v3")
+            .delete("b.txt");
+        update("1.1", "1.2");
+
+        originalInstall.updateFile("a.txt", "v4");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildPatch("patch1", "unitA", "1.2");
+        apply();
+        assertEquals(4, countRecords(env));
+
+        env = ProvisionEnvironment.load(testInstall.getHome());
+        // the record of the patch is retained until the patch is reverted
+        assertEquals(2, env.compactHistory(0));
+        assertEquals(2, countRecords(env));
+        final File historyHome = new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR);
+        assertEquals(2, new File(new File(historyHome, "units"), "unitA").listFiles(DIRS).length);
+        assertEquals(0, env.compactHistory(0));
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        env = ProvisionEnvironment.load(testInstall.getHome());
+        assertEquals("1.2", env.getEnvironmentInfo().getUnitInfo("unitA").getVersion());
+        env.rollbackLast();
+        assertEquals("v3", FileUtils.readFile(testInstall.resolvePath("a.txt")));
+        assertEquals("c", FileUtils.readFile(testInstall.resolvePath("c.txt")));
+        assertFalse(testInstall.resolvePath("b.txt").exists());
+        assertEquals(1, countRecords(env));
+
+        // the squashed record reverts the whole squashed history
+        env.rollbackLast();
+        assertFalse(testInstall.resolvePath("a.txt").exists());
+        assertFalse(testInstall.resolvePath("b.txt").exists());
+        assertFalse(testInstall.resolvePath("c.txt").exists());
+        assertEquals(0, countRecords(env));
+    }
+
+    @Test
+    public void testInterruptedBeforeCommit() throws Exception {
+
+        originalInstall.createFile("a.txt", "v0");
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+        originalInstall.updateFile("a.txt", "v1");
+        update("1.0", "1.1");
+
+        final File historyHome = new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR);
+        final File unitDir = new File(new File(historyHome, "units"), "unitA");
+        String baseId = null;
+        for(File f : unitDir.listFiles()) {
+            if(f.isDirectory()) {
+                baseId = f.getName();
+            }
+        }
+        final File staged = new File(unitDir, baseId + ".compact");
+        assertTrue(staged.mkdirs());
+        final File journal = new File(historyHome, "compaction.journal");
+        Files.write(journal.toPath(), ("pvcompaction 1\nprepared\nbase " + baseId + "\nunit unitA\n").getBytes(Charset.forName("UTF-8")));
+
+        final ProvisionEnvironment loaded = ProvisionEnvironment.load(testInstall.getHome());
+        assertFalse(journal.exists());
+        assertFalse(staged.exists());
+        assertEquals(2, countRecords(loaded));
+        loaded.rollbackLast();
+        assertEquals("v0", FileUtils.readFile(testInstall.resolvePath("a.txt")));
+    }
+
+    private void update(String fromVersion, String toVersion) throws Exception {
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildUpdate("unitA", fromVersion, toVersion);
+        apply();
+    }
+
+    private void apply() throws Exception {
+        ProvisionEnvironment.load(testInstall.getHome()).apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+    }
+
+    private static int countRecords(ProvisionEnvironment env) throws Exception {
+        int count = 0;
+        final Iterator<ProvisionEnvironmentInfo> i = env.environmentHistory();
+        while(i.hasNext()) {
+            i.next();
+            ++count;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class EnvironmentSnapshotTestCase extends ApplicationTestBase {
+
+    @Test
+    public void testMain() throws Exception {
+
+        originalInstall.createFile("a.txt", "a");
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+
+        final File snapshot = new File(new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR), "env.snapshot");
+        assertTrue(snapshot.exists());
+
+        originalInstall.updateFile("a.txt", "a1")
+            .createFile("b.txt", "b");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildPatch("patch1", "unitA", "1.0");
+        env.apply(archive);
+        assertEquals(Arrays.asList("patch1"), env.getUnitEnvironment("unitA").getUnitInfo().getPatches());
+
+        // loaded from the snapshot
+        ProvisionEnvironment loaded = ProvisionEnvironment.load(testInstall.getHome());
+        assertEquals(env, loaded);
+        assertEquals(2, loaded.getUnitEnvironment("unitA").getContentPaths().size());
+        assertSame(loaded.getUnitEnvironment("unitA").getContentPaths(), loaded.getUnitEnvironment("unitA").getContentPaths());
+
+        // rebuilt from the records
+        IoUtils.recursiveDelete(snapshot);
+        loaded = ProvisionEnvironment.load(testInstall.getHome());
+        assertEquals(env, loaded);
+        assertTrue(snapshot.exists());
+
+        // the snapshot of the rolled back record is ignored
+        final byte[] patched = Files.readAllBytes(snapshot.toPath());
+        env.rollbackLast();
+        Files.write(snapshot.toPath(), patched);
+        loaded = ProvisionEnvironment.load(testInstall.getHome());
+        assertEquals(env, loaded);
+        assertTrue(loaded.getUnitEnvironment("unitA").getUnitInfo().getPatches().isEmpty());
+        assertEquals(1, loaded.getUnitEnvironment("unitA").getContentPaths().size());
+        assertFalse(testInstall.resolvePath("b.txt").exists());
+    }
+}
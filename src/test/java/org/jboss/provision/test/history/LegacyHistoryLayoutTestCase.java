@@ -0,0 +1,153 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.info.ProvisionEnvironmentInfo;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.jboss.provision.test.util.FSUtils;
+import org.junit.Test;
+
+/**
+ * History persisted as a chain of last.txt, prev.txt and next.txt files
+ * is read as is and converted to the record log by its first update.
+ *
+ * @author Alexey Loubyansky
+ */
+public class LegacyHistoryLayoutTestCase extends ApplicationTestBase {
+
+    private static final String RECORDS_LOG = "records.log";
+
+    @Override
+    public void doInit() {
+        originalInstall.createFileWithRandomContent("a.txt")
+        .createFileWithRandomContent("b/b.txt");
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        final File historyDir = new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR);
+        final File unitDir = IoUtils.newFile(historyDir, "units", "unitA");
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+        ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+        final Set<String> installIds = listRecords(historyDir);
+        assertEquals(1, installIds.size());
+        final String installId = installIds.iterator().next();
+
+        final File installCopy = FSUtils.newTmpFile("install-copy");
+        IoUtils.copyFile(originalInstall.getHome(), installCopy);
+        try {
+            originalInstall.updateFileWithRandomContent("a.txt")
+                .createFileWithRandomContent("c/c.txt");
+            ProvisionPackage.newBuilder()
+                .setCurrentInstallationDir(testInstall.getHome())
+                .setTargetInstallationDir(originalInstall.getHome())
+                .setPackageOutputFile(archive)
+                .buildUpdate("unitA", "1.0", "1.1");
+            env.apply(archive);
+            final Set<String> updateIds = listRecords(historyDir);
+            updateIds.removeAll(installIds);
+            assertEquals(1, updateIds.size());
+            final String updateId = updateIds.iterator().next();
+
+            assertTrue(new File(historyDir, RECORDS_LOG).exists());
+            assertTrue(new File(unitDir, RECORDS_LOG).exists());
+            toLegacyLayout(historyDir, installId, updateId);
+            toLegacyLayout(unitDir, installId, updateId);
+
+            final File historyCopy = FSUtils.newTmpFile("history-copy");
+            IoUtils.copyFile(historyDir, historyCopy);
+            try {
+                env = ProvisionEnvironment.load(testInstall.getHome());
+                assertEquals("1.1", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+
+                final Iterator<ProvisionEnvironmentInfo> envHistory = env.environmentHistory();
+                assertTrue(envHistory.hasNext());
+                assertEquals("1.1", envHistory.next().getUnitInfo("unitA").getVersion());
+                assertTrue(envHistory.hasNext());
+                assertEquals("1.0", envHistory.next().getUnitInfo("unitA").getVersion());
+                assertFalse(envHistory.hasNext());
+
+                // reading the history does not convert it
+                AssertUtil.assertIdentical(historyCopy, historyDir, true);
+            } finally {
+                IoUtils.recursiveDelete(historyCopy);
+            }
+
+            env.rollbackLast();
+            AssertUtil.assertIdentical(installCopy, testInstall.getHome(), true);
+            assertTrue(new File(historyDir, RECORDS_LOG).exists());
+            assertFalse(new File(historyDir, "last.txt").exists());
+            assertFalse(IoUtils.newFile(historyDir, installId, "next.txt").exists());
+            assertTrue(new File(unitDir, RECORDS_LOG).exists());
+            assertFalse(new File(unitDir, "last.txt").exists());
+            assertFalse(IoUtils.newFile(unitDir, installId, "next.txt").exists());
+            assertEquals("1.0", ProvisionEnvironment.load(testInstall.getHome()).getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        } finally {
+            IoUtils.recursiveDelete(installCopy);
+        }
+    }
+
+    private static Set<String> listRecords(File dir) {
+        final File[] records = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.isDirectory() && !pathname.getName().equals("units") && !pathname.getName().equals("blobs");
+            }});
+        final Set<String> ids = new HashSet<String>();
+        for(File record : records) {
+            ids.add(record.getName());
+        }
+        return ids;
+    }
+
+    private static void toLegacyLayout(File dir, String... ids) throws Exception {
+        IoUtils.recursiveDelete(new File(dir, RECORDS_LOG));
+        FSUtils.writeFile(new File(dir, "last.txt"), ids[ids.length - 1]);
+        for(int i = 1; i < ids.length; ++i) {
+            FSUtils.writeFile(IoUtils.newFile(dir, ids[i], "prev.txt"), ids[i - 1]);
+            FSUtils.writeFile(IoUtils.newFile(dir, ids[i - 1], "next.txt"), ids[i]);
+        }
+        assertEquals(Arrays.asList(ids).size(), listRecords(dir).size());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Iterator;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.info.ProvisionEnvironmentInfo;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.junit.Test;
+
+/**
+ * An append to the record log interrupted after the length of the log
+ * was updated leaves an incomplete entry at the end of the log.
+ *
+ * @author Alexey Loubyansky
+ */
+public class TornHistoryLogTestCase extends ApplicationTestBase {
+
+    private static final String RECORDS_LOG = "records.log";
+
+    @Override
+    public void doInit() {
+        originalInstall.createFileWithRandomContent("a.txt")
+        .createFileWithRandomContent("b/b.txt");
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        final File historyDir = new File(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR);
+        final File unitDir = IoUtils.newFile(historyDir, "units", "unitA");
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+        ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+        update(env, "1.0", "1.1");
+
+        // a cut off entry and a zero-filled one
+        append(new File(historyDir, RECORDS_LOG), new byte[] {1, 0, 20, 'x', 'y'});
+        append(new File(unitDir, RECORDS_LOG), new byte[12]);
+
+        env = ProvisionEnvironment.load(testInstall.getHome());
+        assertEquals("1.1", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        assertHistory(env, "1.1", "1.0");
+
+        // the incomplete entries are dropped with the next update of the log
+        update(env, "1.1", "1.2");
+        env = ProvisionEnvironment.load(testInstall.getHome());
+        assertEquals("1.2", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        assertHistory(env, "1.2", "1.1", "1.0");
+
+        env.rollbackLast();
+        env = ProvisionEnvironment.load(testInstall.getHome());
+        assertEquals("1.1", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+        assertHistory(env, "1.1", "1.0");
+    }
+
+    private void update(ProvisionEnvironment env, String version, String targetVersion) throws Exception {
+        originalInstall.updateFileWithRandomContent("a.txt");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationDir(testInstall.getHome())
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildUpdate("unitA", version, targetVersion);
+        env.apply(archive);
+    }
+
+    private static void assertHistory(ProvisionEnvironment env, String... versions) throws Exception {
+        final Iterator<ProvisionEnvironmentInfo> envHistory = env.environmentHistory();
+        for(String version : versions) {
+            assertTrue(envHistory.hasNext());
+            assertEquals(version, envHistory.next().getUnitInfo("unitA").getVersion());
+        }
+        assertFalse(envHistory.hasNext());
+    }
+
+    private static void append(File f, byte[] bytes) throws Exception {
+        final FileOutputStream out = new FileOutputStream(f, true);
+        try {
+            out.write(bytes);
+        } finally {
+            IoUtils.safeClose(out);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.info;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.info.ContentManifest;
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.info.ProvisionInfoReader;
+import org.jboss.provision.info.ProvisionUnitContentInfo;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.jboss.provision.test.util.FSUtils;
+import org.jboss.provision.util.HashingService;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentManifestTestCase extends ApplicationTestBase {
+
+    private File manifestFile;
+
+    @Override
+    public void doInit() {
+        manifestFile = FSUtils.newTmpFile("manifest.tst");
+        originalInstall.createFile("a.txt", "aaa")
+            .createFile("b/b.txt", "bbb")
+            .createFile("c/c c.txt", "ccc");
+    }
+
+    @Override
+    public void doCleanUp() {
+        IoUtils.recursiveDelete(manifestFile);
+    }
+
+    @Test
+    public void testRescan() throws Exception {
+
+        final long timestamp = System.currentTimeMillis() - 60000;
+        setLastModified(timestamp, "a.txt", "b/b.txt", "c/c c.txt");
+
+        final HashingService hashing = HashingService.getDefault();
+        ContentManifest manifest = ProvisionInfoReader.readManifest(originalInstall.getHome(), null, hashing);
+        manifest.write(manifestFile);
+        manifest = ContentManifest.read(manifestFile);
+        assertEquals(3, manifest.getPaths().size());
+        assertContentInfo(ProvisionInfoReader.readContentInfo("unitA", "1.0", originalInstall.getHome(), hashing),
+                manifest.getContentInfo("unitA", "1.0"));
+
+        final byte[] aHash = originalInstall.hashOf("a.txt");
+        // the same size and timestamp, the recorded hash is expected to be reused
+        originalInstall.updateFile("a.txt", "xxx");
+        // the size changed
+        originalInstall.updateFile("b/b.txt", "bbbb");
+        setLastModified(timestamp, "a.txt", "b/b.txt");
+        originalInstall.createFile("d.txt", "ddd");
+
+        manifest = ProvisionInfoReader.readManifest(originalInstall.getHome(), manifest, hashing);
+        final ProvisionUnitContentInfo contentInfo = manifest.getContentInfo("unitA", "1.0");
+        assertEquals(4, contentInfo.getContentInfo().size());
+        assertArrayEquals(aHash, contentInfo.getContentInfo(ContentPath.forPath("a.txt")).getContentHash());
+        assertArrayEquals(originalInstall.hashOf("b/b.txt"), contentInfo.getContentInfo(ContentPath.forPath("b/b.txt")).getContentHash());
+        assertArrayEquals(originalInstall.hashOf("c/c c.txt"), contentInfo.getContentInfo(ContentPath.forPath("c/c c.txt")).getContentHash());
+        assertArrayEquals(originalInstall.hashOf("d.txt"), contentInfo.getContentInfo(ContentPath.forPath("d.txt")).getContentHash());
+    }
+
+    @Test
+    public void testManifestAsCurrentInstallation() throws Exception {
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setTargetInstallationManifest(manifestFile)
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+
+        originalInstall.updateFile("a.txt", "aaaa")
+            .delete("b/b.txt")
+            .createFile("d/d.txt", "ddd");
+        ProvisionPackage.newBuilder()
+            .setCurrentInstallationManifest(manifestFile)
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildUpdate("unitA", "1.0", "1.1");
+
+        env.apply(archive);
+        AssertUtil.assertIdentical(originalInstall.getHome(), testInstall.getHome(), true);
+        assertEquals(Collections.singleton("unitA"), env.getUnitNames());
+        assertEquals("1.1", env.getUnitEnvironment("unitA").getUnitInfo().getVersion());
+    }
+
+    private void setLastModified(long timestamp, String... relativePaths) {
+        for(String relativePath : relativePaths) {
+            originalInstall.resolvePath(relativePath).setLastModified(timestamp);
+        }
+    }
+
+    private static void assertContentInfo(ProvisionUnitContentInfo expected, ProvisionUnitContentInfo actual) {
+        assertEquals(expected.getContentInfo().size(), actual.getContentInfo().size());
+        for(ContentPath path : expected.getPaths()) {
+            assertArrayEquals(expected.getContentInfo(path).getContentHash(), actual.getContentInfo(path).getContentHash());
+        }
+    }
+}
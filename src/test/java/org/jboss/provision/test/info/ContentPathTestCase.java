@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.info;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.util.PathTrie;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentPathTestCase {
+
+    @Test
+    public void testPathsAreInterned() throws Exception {
+        final PathTrie trie = PathTrie.forRelativePaths();
+        final PathTrie.Node node = trie.intern("a/b/c.txt");
+        assertSame(node, trie.intern(new String("a/b/c.txt")));
+        assertSame(node.getParent(), trie.intern("a/b/d.txt").getParent());
+        assertSame(trie.intern("a"), node.getParent().getParent());
+        assertNull(trie.intern("a").getParent());
+        assertEquals("c.txt", node.getName());
+    }
+
+    @Test
+    public void testPathStrings() throws Exception {
+        for(String path : new String[] {"a.txt", "a/b/c.txt", "a/b/", "/a/b", "a//b", "", "/"}) {
+            final ContentPath contentPath = ContentPath.forPath(path);
+            assertEquals(path, contentPath.getRelativePath());
+            assertEquals(path, contentPath.toString());
+            assertEquals(path.hashCode(), PathTrie.forRelativePaths().intern(path).hashCode());
+        }
+        assertEquals("$loc/a/b", ContentPath.create("loc", "a/b").toString());
+        assertEquals(ContentPath.create("loc", "a/b"), ContentPath.fromString("$loc/a/b"));
+    }
+
+    @Test
+    public void testEquality() throws Exception {
+        final ContentPath path = ContentPath.forPath("a/b/c.txt");
+        assertEquals(path, ContentPath.forPath("a/b/" + "c.txt"));
+        assertEquals(path.hashCode(), ContentPath.forPath("a/b/" + "c.txt").hashCode());
+        assertFalse(path.equals(ContentPath.forPath("a/b/c.tx")));
+        assertFalse(path.equals(ContentPath.create("loc", "a/b/c.txt")));
+        assertEquals(ContentPath.forName("loc"), ContentPath.forName("loc"));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.info;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Collection;
+
+import org.jboss.provision.info.ContentItemInfo;
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.info.ProvisionInfoReader;
+import org.jboss.provision.info.ProvisionUnitContentInfo;
+import org.jboss.provision.test.TestWithInstallationBuilder;
+import org.jboss.provision.util.HashUtils;
+import org.jboss.provision.util.HashingService;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ParallelContentHashingTestCase extends TestWithInstallationBuilder {
+
+    @Test
+    public void testMain() throws Exception {
+
+        for(int i = 0; i < 50; ++i) {
+            home.createFileWithRandomContent("d" + (i % 7) + "/f" + i + ".txt");
+        }
+
+        final HashingService hashing = HashingService.create(4);
+        final ProvisionUnitContentInfo unitInfo;
+        try {
+            unitInfo = ProvisionInfoReader.readContentInfo("unitA", "1.0", home.getHome(), hashing);
+        } finally {
+            hashing.shutdown();
+        }
+        assertNotNull(unitInfo);
+
+        final Collection<ContentItemInfo> contentInfo = unitInfo.getContentInfo();
+        assertEquals(50, contentInfo.size());
+
+        for(int i = 0; i < 50; ++i) {
+            final String relativePath = "d" + (i % 7) + "/f" + i + ".txt";
+            final ContentItemInfo itemInfo = unitInfo.getContentInfo(ContentPath.forPath(relativePath));
+            assertNotNull(itemInfo);
+            Assert.assertArrayEquals(HashUtils.hashFile(home.resolvePath(relativePath)), itemInfo.getContentHash());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.instruction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.info.ContentPath;
+import org.jboss.provision.info.ProvisionInfoReader;
+import org.jboss.provision.info.ProvisionUnitContentInfo;
+import org.jboss.provision.instruction.ContentItemInstruction;
+import org.jboss.provision.instruction.ProvisionEnvironmentInstruction;
+import org.jboss.provision.instruction.ProvisionInstructionBuilder;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.instruction.ProvisionUnitInstruction;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.TestWithInstallationBuilder;
+import org.jboss.provision.test.util.AssertUtil;
+import org.jboss.provision.test.util.FSUtils;
+import org.jboss.provision.test.util.InstallationBuilder;
+import org.jboss.provision.xml.ProvisionBinary;
+import org.jboss.provision.xml.ProvisionXml;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class BinaryInstructionsTestCase extends TestWithInstallationBuilder {
+
+    @Test
+    public void testMain() throws Exception {
+
+        home.createFileWithRandomContent("a.txt")
+            .createFileWithRandomContent("b/b.txt")
+            .createFileWithRandomContent("c/c/c.txt");
+        final ProvisionUnitContentInfo stateA = ProvisionInfoReader.readContentInfo("unitA", "1.0", home.getHome());
+
+        home.updateFileWithRandomContent("a.txt")
+            .delete("b/b.txt")
+            .createFileWithRandomContent("d/d/d/d.txt");
+        final ProvisionUnitContentInfo stateB = ProvisionInfoReader.readContentInfo("unitA", "1.0", home.getHome());
+
+        final ProvisionEnvironmentInstruction instructions = ProvisionEnvironmentInstruction.builder()
+                .add(ProvisionInstructionBuilder.patch("patch1", stateA, stateB))
+                .add(ProvisionInstructionBuilder.install(ProvisionInfoReader.readContentInfo("unitB", "2.0", home.getHome())))
+                .add(ProvisionUnitInstruction.replaceUnit("unitC", "1.0", "1.1")
+                        .addContentInstruction(ContentItemInstruction.Builder.addContent(
+                                ContentPath.create("modules", "x/y.jar"), home.hashOf("a.txt")).setRequired(false).build())
+                        .build())
+                .add(ProvisionUnitInstruction.uninstallUnit("unitD", "3.0").build())
+                .build();
+
+        final byte[] bytes = ProvisionBinary.marshal(instructions);
+        assertEquals(instructions, ProvisionBinary.parse(bytes));
+
+        final File f = FSUtils.newTmpFile(ProvisionBinary.PROVISION_BIN);
+        try {
+            Files.write(f.toPath(), bytes);
+            final ProvisionBinary.Index index = ProvisionBinary.open(f);
+            try {
+                assertEquals(new HashSet<String>(Arrays.asList("unitA", "unitB", "unitC", "unitD")), index.getUnitNames());
+                for(String unitName : Arrays.asList("unitC", "unitA", "unitD", "unitB")) {
+                    assertEquals(instructions.getUnitInstruction(unitName), index.getUnitInstruction(unitName));
+                }
+                assertNull(index.getUnitInstruction("unitE"));
+            } finally {
+                IoUtils.safeClose(index);
+            }
+        } finally {
+            IoUtils.recursiveDelete(f);
+        }
+    }
+
+    @Test
+    public void testPackage() throws Exception {
+
+        home.createFileWithRandomContent("a.txt")
+            .createFileWithRandomContent("b/b.txt");
+        final File archive = FSUtils.newTmpFile("archive.tst");
+        final InstallationBuilder testInstall = InstallationBuilder.create();
+        try {
+            ProvisionPackage.newBuilder()
+                .setTargetInstallationDir(home.getHome())
+                .setPackageOutputFile(archive)
+                .setInstructionFormat(ProvisionXml.Namespace.PROVISION_BINARY_1_0)
+                .buildInstall("unitA", "1.0");
+
+            final ProvisionEnvironment env = ProvisionEnvironment.builder()
+                    .setEnvironmentHome(testInstall.getHome())
+                    .setExtractPackages(false)
+                    .build();
+            env.apply(archive);
+            AssertUtil.assertIdentical(home.getHome(), testInstall.getHome(), true);
+
+            ProvisionEnvironment.load(testInstall.getHome()).rollbackLast();
+            AssertUtil.assertEmptyDirBranch(testInstall.getHome());
+        } finally {
+            IoUtils.recursiveDelete(archive);
+            IoUtils.recursiveDelete(testInstall.getHome());
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.jboss.provision.io.ContentWriter;
+import org.jboss.provision.io.FSImage;
+import org.jboss.provision.io.FileUtils;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.TestWithInstallationBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class CommitJournalTestCase extends TestWithInstallationBuilder {
+
+    /**
+     * Writes part of the content and fails as if the process died, leaving everything as it is.
+     */
+    private static class CrashingWriter extends ContentWriter {
+        CrashingWriter(File target) {
+            super(target);
+        }
+        @Override
+        public void write(BufferedWriter writer) throws IOException {
+            writer.write("partial");
+            writer.flush();
+            throw new IOException("crash");
+        }
+        @Override
+        public void revert() throws IOException {
+            throw new IOException("crash");
+        }
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        home.createFile("a.txt", "a");
+        final File journal = home.resolvePath(".pvh/commit.journal");
+
+        final FSImage image = new FSImage();
+        image.setJournal(journal);
+        image.write("a2", home.resolvePath("a.txt"));
+        image.write("b", home.resolvePath("b.txt"));
+        image.commit();
+
+        assertFalse(journal.exists());
+        assertEquals("a2", FileUtils.readFile(home.resolvePath("a.txt")));
+        assertEquals("b", FileUtils.readFile(home.resolvePath("b.txt")));
+        assertFalse(FSImage.recover(journal));
+    }
+
+    @Test
+    public void testRecoverInterruptedExecution() throws Exception {
+        home.createFile("a.txt", "a")
+            .createFile("b.txt", "b");
+        final File journal = home.resolvePath(".pvh/commit.journal");
+
+        final FSImage image = new FSImage();
+        image.setJournal(journal);
+        image.write("a2", home.resolvePath("a.txt"));
+        image.write("c", home.resolvePath("c.txt"));
+        image.write(new CrashingWriter(home.resolvePath("b.txt")));
+        try {
+            image.commit();
+            fail("the commit is expected to fail");
+        } catch(IOException e) {
+            // expected
+        }
+        assertTrue(journal.exists());
+        assertEquals("partial", FileUtils.readFile(home.resolvePath("b.txt")));
+
+        assertTrue(FSImage.recover(journal));
+        assertFalse(journal.exists());
+        assertEquals("a", FileUtils.readFile(home.resolvePath("a.txt")));
+        assertEquals("b", FileUtils.readFile(home.resolvePath("b.txt")));
+        assertFalse(home.resolvePath("c.txt").exists());
+        assertFalse(home.resolvePath("a.txt.fsimagebkp").exists());
+        assertFalse(home.resolvePath("b.txt.fsimagebkp").exists());
+    }
+
+    /**
+     * Takes a snapshot of the files as they are when the execution fails,
+     * i.e. before the commit is reverted in memory, as if the process died at that point.
+     */
+    private static class SnapshotWriter extends CrashingWriter {
+        private final File[] files;
+        private final byte[][] snapshot;
+        SnapshotWriter(File target, File... files) {
+            super(target);
+            this.files = files;
+            this.snapshot = new byte[files.length][];
+        }
+        @Override
+        public void write(BufferedWriter writer) throws IOException {
+            for(int i = 0; i < files.length; ++i) {
+                snapshot[i] = files[i].exists() ? Files.readAllBytes(files[i].toPath()) : null;
+            }
+            super.write(writer);
+        }
+        void restore() throws IOException {
+            for(int i = 0; i < files.length; ++i) {
+                if(snapshot[i] == null) {
+                    IoUtils.recursiveDelete(files[i]);
+                } else {
+                    Files.write(files[i].toPath(), snapshot[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRecoverRevertsExecutedTasks() throws Exception {
+        home.createFile("a.txt", "a")
+            .createFile("b.txt", "b");
+        final File journal = home.resolvePath(".pvh/commit.journal");
+        final File a = home.resolvePath("a.txt");
+        final File c = home.resolvePath("c.txt");
+
+        final FSImage image = new FSImage();
+        image.setJournal(journal);
+        image.write("a2", a);
+        image.write("c", c);
+        final SnapshotWriter crash = new SnapshotWriter(home.resolvePath("b.txt"),
+                journal, a, home.resolvePath("a.txt.fsimagebkp"), c, home.resolvePath("b.txt.fsimagebkp"));
+        image.write(crash);
+        try {
+            image.commit();
+            fail("the commit is expected to fail");
+        } catch(IOException e) {
+            // expected
+        }
+        // all the tasks but the last one have been executed when the process dies
+        crash.restore();
+        assertEquals("a2", FileUtils.readFile(a));
+        assertEquals("c", FileUtils.readFile(c));
+
+        // the commit is not rolled forward
+        assertTrue(FSImage.recover(journal));
+        assertFalse(journal.exists());
+        assertEquals("a", FileUtils.readFile(a));
+        assertEquals("b", FileUtils.readFile(home.resolvePath("b.txt")));
+        assertFalse(c.exists());
+        assertFalse(home.resolvePath("a.txt.fsimagebkp").exists());
+        assertFalse(home.resolvePath("b.txt.fsimagebkp").exists());
+    }
+
+    @Test
+    public void testRecoverDeletedDirectory() throws Exception {
+        home.createFile("d/1.txt", "1")
+            .createFile("d/2.txt", "2")
+            .createFile("b.txt", "b");
+        final File journal = home.resolvePath(".pvh/commit.journal");
+
+        final FSImage image = new FSImage();
+        image.setJournal(journal);
+        image.delete(home.resolvePath("d"));
+        final SnapshotWriter crash = new SnapshotWriter(home.resolvePath("b.txt"), journal);
+        image.write(crash);
+        try {
+            image.commit();
+            fail("the commit is expected to fail");
+        } catch(IOException e) {
+            // expected
+        }
+        crash.restore();
+        // the paths under the directory are not journaled, only the directory and b.txt are
+        final DataInputStream in = new DataInputStream(new FileInputStream(journal));
+        try {
+            in.readInt();
+            in.readInt();
+            assertEquals(2, in.readInt());
+        } finally {
+            IoUtils.safeClose(in);
+        }
+
+        assertTrue(FSImage.recover(journal));
+        assertEquals("1", FileUtils.readFile(home.resolvePath("d/1.txt")));
+        assertEquals("2", FileUtils.readFile(home.resolvePath("d/2.txt")));
+        assertEquals("b", FileUtils.readFile(home.resolvePath("b.txt")));
+    }
+
+    @Test
+    public void testRecoverInterruptedAppend() throws Exception {
+        home.createFile("records.log", "abc")
+            .createFile("b.txt", "b");
+        final File journal = home.resolvePath(".pvh/commit.journal");
+        final File records = home.resolvePath("records.log");
+        final File newLog = home.resolvePath("new.log");
+
+        final FSImage image = new FSImage();
+        image.setJournal(journal);
+        image.append("def".getBytes(), records);
+        image.append("new".getBytes(), newLog);
+        final SnapshotWriter crash = new SnapshotWriter(home.resolvePath("b.txt"), journal, records, newLog);
+        image.write(crash);
+        try {
+            image.commit();
+            fail("the commit is expected to fail");
+        } catch(IOException e) {
+            // expected
+        }
+        // the appended content is only reverted in memory, the process dies before that
+        crash.restore();
+        assertEquals("abcdef", FileUtils.readFile(records));
+        assertEquals("new", FileUtils.readFile(newLog));
+
+        assertTrue(FSImage.recover(journal));
+        assertFalse(journal.exists());
+        assertEquals("abc", FileUtils.readFile(records));
+        assertFalse(newLog.exists());
+        assertEquals("b", FileUtils.readFile(home.resolvePath("b.txt")));
+    }
+}
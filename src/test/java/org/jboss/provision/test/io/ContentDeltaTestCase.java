@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.provision.io.ContentDelta;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.util.FSUtils;
+import org.jboss.provision.util.HashUtils;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentDeltaTestCase {
+
+    @Test
+    public void testArchive() throws Exception {
+        final File base = FSUtils.newTmpFile("base.jar");
+        final File target = FSUtils.newTmpFile("target.jar");
+        try {
+            writeJar(base, null, false, 1000000000000L);
+            // the entries of the new version are all touched
+            writeJar(target, "org/pkg3/Class7.class", true, 1500000000000L);
+            assertTrue(ContentDelta.isArchive(base));
+
+            final byte[] baseHash = HashUtils.hashFile(base);
+            final byte[] delta = ContentDelta.createForArchive(base, baseHash, target);
+            // the local headers, the changed entry, the new entry and the central directory
+            assertTrue(delta.length < target.length() / 5);
+            assertApplies(base, baseHash, delta, target);
+        } finally {
+            IoUtils.recursiveDelete(base);
+            IoUtils.recursiveDelete(target);
+        }
+    }
+
+    @Test
+    public void testNotArchive() throws Exception {
+        final File base = FSUtils.newTmpFile("base.txt");
+        final File target = FSUtils.newTmpFile("target.txt");
+        try {
+            final byte[] content = randomText(new Random(1), 100000).getBytes();
+            Files.write(base.toPath(), content);
+            content[50000] = '!';
+            Files.write(target.toPath(), content);
+            assertFalse(ContentDelta.isArchive(base));
+            final byte[] baseHash = HashUtils.hashFile(base);
+            assertNull(ContentDelta.createForArchive(base, baseHash, target));
+
+            final byte[] delta = ContentDelta.create(Files.readAllBytes(base.toPath()), baseHash, content);
+            assertTrue(delta.length < 3000);
+            assertApplies(base, baseHash, delta, target);
+        } finally {
+            IoUtils.recursiveDelete(base);
+            IoUtils.recursiveDelete(target);
+        }
+    }
+
+    private static void assertApplies(File base, byte[] baseHash, byte[] delta, File target) throws IOException {
+        final ContentDelta contentDelta = ContentDelta.read(new ByteArrayInputStream(delta));
+        assertArrayEquals(baseHash, contentDelta.getBaseHash());
+        final ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        contentDelta.apply(base, rebuilt);
+        assertArrayEquals(Files.readAllBytes(target.toPath()), rebuilt.toByteArray());
+    }
+
+    private static void writeJar(File f, String changedEntry, boolean newEntry, long time) throws IOException {
+        final Random random = new Random(3);
+        final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(f));
+        try {
+            for(int i = 0; i < 200; ++i) {
+                final String name = "org/pkg" + (i % 10) + "/Class" + i / 10 + ".class";
+                final String content = randomText(random, 2000);
+                final ZipEntry entry = new ZipEntry(name);
+                entry.setTime(time);
+                zip.putNextEntry(entry);
+                zip.write((name.equals(changedEntry) ? content + "changed" : content).getBytes());
+                zip.closeEntry();
+                if(newEntry && i == 100) {
+                    final ZipEntry added = new ZipEntry("org/New.class");
+                    added.setTime(time);
+                    zip.putNextEntry(added);
+                    zip.write("new".getBytes());
+                    zip.closeEntry();
+                }
+            }
+        } finally {
+            IoUtils.safeClose(zip);
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        final StringBuilder buf = new StringBuilder(length + 16);
+        while(buf.length() < length) {
+            buf.append(Long.toHexString(random.nextLong()));
+        }
+        return buf.toString();
+    }
+}
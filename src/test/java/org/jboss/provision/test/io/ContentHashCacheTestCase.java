@@ -0,0 +1,101 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2015, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.provision.io.ContentHashCache;
+import org.jboss.provision.test.TestWithInstallationBuilder;
+import org.jboss.provision.util.HashUtils;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ContentHashCacheTestCase extends TestWithInstallationBuilder {
+
+    private static void backdate(File f) throws IOException {
+        Files.setLastModifiedTime(f.toPath(), FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1)));
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        home.createFileWithRandomContent("a.txt")
+            .createFileWithRandomContent("b/b.txt");
+        // the entries for recently modified files are not recorded
+        backdate(home.resolvePath("a.txt"));
+        backdate(home.resolvePath("b/b.txt"));
+        final File cacheFile = home.resolvePath(".pvh/hashes.cache");
+
+        ContentHashCache cache = ContentHashCache.load(cacheFile, false);
+        assertArrayEquals(HashUtils.hashFile(home.resolvePath("a.txt")), cache.getHash(home.resolvePath("a.txt")));
+        assertArrayEquals(HashUtils.hashFile(home.resolvePath("b/b.txt")), cache.getHash(home.resolvePath("b/b.txt")));
+        assertTrue(cache.isModified());
+        cache.store();
+        assertFalse(cache.isModified());
+
+        home.updateFile("a.txt", "new content of a different size");
+        backdate(home.resolvePath("a.txt"));
+        cache = ContentHashCache.load(cacheFile, false);
+        assertArrayEquals(HashUtils.hashFile(home.resolvePath("a.txt")), cache.getHash(home.resolvePath("a.txt")));
+        assertArrayEquals(HashUtils.hashFile(home.resolvePath("b/b.txt")), cache.getHash(home.resolvePath("b/b.txt")));
+
+        cache.remove(home.resolvePath("b"));
+        assertTrue(cache.isModified());
+        cache.store();
+
+        cache = ContentHashCache.load(cacheFile, true);
+        assertArrayEquals(HashUtils.hashFile(home.resolvePath("b/b.txt")), cache.getHash(home.resolvePath("b/b.txt")));
+        assertTrue(cache.isModified());
+    }
+
+    @Test
+    public void testRacyEntry() throws Exception {
+
+        home.createFile("a.txt", "aaa");
+        final File a = home.resolvePath("a.txt");
+        // a modification time with the nanosecond digits set but within the same tick as the rewrite below
+        final FileTime mtime = FileTime.from(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) + 123456, TimeUnit.NANOSECONDS);
+        Files.setLastModifiedTime(a.toPath(), mtime);
+
+        final ContentHashCache cache = ContentHashCache.load(home.resolvePath(".pvh/hashes.cache"), false);
+        assertArrayEquals(HashUtils.hashFile(a), cache.getHash(a));
+        // the racy entry would never be trusted
+        assertFalse(cache.isModified());
+
+        // same size, same modification time
+        Files.write(a.toPath(), "bbb".getBytes());
+        Files.setLastModifiedTime(a.toPath(), mtime);
+        assertArrayEquals(HashUtils.hashFile(a), cache.getHash(a));
+    }
+}
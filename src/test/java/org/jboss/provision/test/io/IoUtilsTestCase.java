@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.TestWithInstallationBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class IoUtilsTestCase extends TestWithInstallationBuilder {
+
+    @Test
+    public void testTransfer() throws Exception {
+
+        home.createFileWithRandomContent("a.txt");
+        final File a = home.resolvePath("a.txt");
+        final File b = home.resolvePath("b.txt");
+        IoUtils.transfer(a, b);
+        assertArrayEquals(home.hashOf("a.txt"), home.hashOf("b.txt"));
+
+        // the source is shorter than expected, as if it was truncated while being copied
+        final FileInputStream is = new FileInputStream(a);
+        final FileOutputStream os = new FileOutputStream(home.resolvePath("c.txt"));
+        try {
+            final FileChannel source = is.getChannel();
+            IoUtils.transfer(a, source, source.size() + 10, os.getChannel());
+            fail("the transfer didn't fail");
+        } catch(IOException e) {
+            // expected
+        } finally {
+            IoUtils.safeClose(os);
+            IoUtils.safeClose(is);
+        }
+        assertEquals(a.length(), home.resolvePath("c.txt").length());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+
+import org.jboss.provision.io.ContentTask;
+import org.jboss.provision.io.ContentWriter;
+import org.jboss.provision.io.FSImage;
+import org.jboss.provision.io.FileUtils;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.TestWithInstallationBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class MoveBackupTestCase extends TestWithInstallationBuilder {
+
+    private static class FailingWriter extends ContentWriter {
+        FailingWriter(File target) {
+            super(target);
+        }
+        @Override
+        public void write(BufferedWriter writer) throws IOException {
+            throw new IOException("failed");
+        }
+    }
+
+    private final ContentTask.BackupPathFactory moveBackup = new ContentTask.MoveBackupStrategy() {
+        @Override
+        public File getBackupFile(File original) {
+            return new File(home.resolvePath("backup"), original.getName());
+        }
+    };
+
+    @Test
+    public void testBackupIsRenamed() throws Exception {
+        home.createFile("a.txt", "a")
+            .createFile("new.txt", "a2");
+        final File a = home.resolvePath("a.txt");
+        final Object fileKey = fileKey(a);
+        assumeNotNull(fileKey);
+
+        final FSImage image = new FSImage();
+        image.write(home.resolvePath("new.txt"), a, moveBackup, false);
+        image.commit();
+
+        final File backup = home.resolvePath("backup/a.txt");
+        assertEquals("a", FileUtils.readFile(backup));
+        assertEquals(fileKey, fileKey(backup));
+        assertEquals("a2", FileUtils.readFile(a));
+        assertNotEquals(fileKey, fileKey(a));
+    }
+
+    @Test
+    public void testFailedCommitRestoresRenamedOriginal() throws Exception {
+        home.createFile("a.txt", "a")
+            .createFile("new.txt", "a2");
+        final File a = home.resolvePath("a.txt");
+        final Object fileKey = fileKey(a);
+        assumeNotNull(fileKey);
+
+        final FSImage image = new FSImage();
+        image.write(home.resolvePath("new.txt"), a, moveBackup, false);
+        image.write(new FailingWriter(home.resolvePath("b.txt")));
+        try {
+            image.commit();
+            fail("the commit is expected to fail");
+        } catch(IOException e) {
+            // expected
+        }
+
+        assertEquals("a", FileUtils.readFile(a));
+        assertEquals(fileKey, fileKey(a));
+        assertFalse(home.resolvePath("backup/a.txt").exists());
+        assertFalse(home.resolvePath("b.txt").exists());
+    }
+
+    @Test
+    public void testMoveAcrossFileStores() throws Exception {
+        // a rename across file stores is not atomic, the file is copied and deleted instead
+        final File shm = new File("/dev/shm");
+        assumeTrue(shm.isDirectory() && shm.canWrite());
+        home.createFile("a.txt", "a");
+        final File a = home.resolvePath("a.txt");
+        assumeTrue(!Files.getFileStore(a.toPath()).equals(Files.getFileStore(shm.toPath())));
+
+        final File target = new File(new File(shm, UUID.randomUUID().toString()), "a.txt");
+        try {
+            IoUtils.move(a, target);
+            assertFalse(a.exists());
+            assertEquals("a", FileUtils.readFile(target));
+        } finally {
+            IoUtils.recursiveDelete(target.getParentFile());
+        }
+    }
+
+    private static Object fileKey(File f) throws IOException {
+        return Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.io.ParallelZipWriter;
+import org.jboss.provision.io.ZipExtractor;
+import org.jboss.provision.test.TestWithInstallationBuilder;
+import org.jboss.provision.test.util.FSUtils;
+import org.jboss.provision.util.HashUtils;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ZipExtractorTestCase extends TestWithInstallationBuilder {
+
+    @Test
+    public void testMain() throws Exception {
+
+        final File zip = FSUtils.newTmpFile("extractor.zip");
+        final File targetDir = FSUtils.nextTmpDir("extracted");
+        try {
+            final ParallelZipWriter writer = ParallelZipWriter.create(zip);
+            final List<String> names = new ArrayList<String>();
+            final Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+            for(int i = 0; i < 30; ++i) {
+                final String name = "d" + (i % 4) + "/e" + (i % 3) + "/f" + i + ".txt";
+                home.createFileWithRandomContent(name);
+                writer.add(name, home.resolvePath(name), null);
+                names.add(name);
+                hashes.put(name, home.hashOf(name));
+            }
+            home.createFileWithRandomContent("corrupted.txt");
+            writer.add("corrupted.txt", home.resolvePath("corrupted.txt"), null);
+            writer.write();
+
+            final ZipExtractor extractor = ZipExtractor.open(zip, targetDir, 4);
+            try {
+                // the directory skeleton is created before anything is extracted
+                assertTrue(new File(targetDir, "d3/e2").isDirectory());
+
+                final ZipExtractor.Extraction first = extractor.submit(names.subList(0, 10), hashes);
+                final ZipExtractor.Extraction all = extractor.submit(names, hashes);
+                first.await();
+                for(String name : names.subList(0, 10)) {
+                    assertArrayEquals(hashes.get(name), HashUtils.hashFile(new File(targetDir, name)));
+                }
+                all.await();
+                for(String name : names) {
+                    assertArrayEquals(hashes.get(name), HashUtils.hashFile(new File(targetDir, name)));
+                }
+
+                final ZipExtractor.Extraction corrupted = extractor.submit(Collections.singletonList("corrupted.txt"),
+                        Collections.singletonMap("corrupted.txt", HashUtils.hashBytes("other".getBytes())));
+                try {
+                    corrupted.await();
+                    fail("the hash of the entry does not match");
+                } catch(IOException e) {
+                    // expected
+                }
+            } finally {
+                extractor.close();
+            }
+        } finally {
+            IoUtils.recursiveDelete(zip);
+            IoUtils.recursiveDelete(targetDir);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.packaging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.xml.ProvisionXml;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alexey Loubyansky
+ */
+public class ParallelPackagingTestCase extends PackagingTestBase {
+
+    @Override
+    protected void doInit() {
+        for(int i = 0; i < 40; ++i) {
+            home.createFileWithRandomContent("d" + (i % 5) + "/f" + i + ".txt");
+        }
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        final byte[] large = new byte[3 * 1024 * 1024];
+        new Random(1).nextBytes(large);
+        writeBytes("lib/large.bin", large);
+        writeBytes("lib/a.jar", large);
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(home.getHome())
+            .setPackageOutputFile(archive)
+            .setPackagingParallelism(4)
+            .buildInstall();
+
+        final Map<String, byte[]> expectedPaths = new HashMap<String, byte[]>();
+        for(int i = 0; i < 40; ++i) {
+            expectedPaths.put("d" + (i % 5) + "/f" + i + ".txt", home.hashOf("d" + (i % 5) + "/f" + i + ".txt"));
+        }
+        expectedPaths.put("lib/large.bin", home.hashOf("lib/large.bin"));
+        expectedPaths.put("lib/a.jar", home.hashOf("lib/a.jar"));
+        expectedPaths.put("provision.xml", NA);
+        assertFilesContent(unzipPackage(), expectedPaths);
+
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(ZipEntry.STORED, zip.getEntry("lib/a.jar").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("lib/large.bin").getMethod());
+            assertEquals(large.length, zip.getEntry("lib/a.jar").getSize());
+        } finally {
+            IoUtils.safeClose(zip);
+        }
+
+        // the local headers are consistent with the central directory
+        final ZipInputStream zis = new ZipInputStream(new FileInputStream(archive));
+        try {
+            assertEquals(ProvisionXml.PROVISION_XML, zis.getNextEntry().getName());
+            int entries = 1;
+            while(zis.getNextEntry() != null) {
+                ++entries;
+            }
+            assertEquals(43, entries);
+        } finally {
+            IoUtils.safeClose(zis);
+        }
+    }
+
+    @Test
+    public void testStoredContent() throws Exception {
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(home.getHome())
+            .setPackageOutputFile(archive)
+            .setPackagingParallelism(1)
+            .setCompressionLevel(0)
+            .buildInstall();
+
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(ZipEntry.STORED, zip.getEntry("d0/f0.txt").getMethod());
+        } finally {
+            IoUtils.safeClose(zip);
+        }
+
+        final Map<String, byte[]> expectedPaths = new HashMap<String, byte[]>();
+        for(int i = 0; i < 40; ++i) {
+            expectedPaths.put("d" + (i % 5) + "/f" + i + ".txt", home.hashOf("d" + (i % 5) + "/f" + i + ".txt"));
+        }
+        expectedPaths.put("provision.xml", NA);
+        assertFilesContent(unzipPackage(), expectedPaths);
+    }
+
+    private void writeBytes(String relativePath, byte[] bytes) throws Exception {
+        final File f = home.resolvePath(relativePath);
+        f.getParentFile().mkdirs();
+        Files.write(f.toPath(), bytes);
+    }
+}
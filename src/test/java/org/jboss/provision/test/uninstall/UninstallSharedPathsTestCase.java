@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2016, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.provision.test.uninstall;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.jboss.provision.ProvisionEnvironment;
+import org.jboss.provision.info.ProvisionUnitInfo;
+import org.jboss.provision.instruction.ProvisionPackage;
+import org.jboss.provision.io.IoUtils;
+import org.jboss.provision.test.application.ApplicationTestBase;
+import org.jboss.provision.test.util.AssertUtil;
+import org.jboss.provision.test.util.InstallationBuilder;
+import org.junit.Test;
+
+/**
+ * The ownership of the paths shared by units survives rollbacks
+ * and is rebuilt if the index is missing.
+ *
+ * @author Alexey Loubyansky
+ */
+public class UninstallSharedPathsTestCase extends ApplicationTestBase {
+
+    private InstallationBuilder unitBInstall;
+    private File ownershipIndex;
+
+    @Override
+    public void doInit() {
+        unitBInstall = InstallationBuilder.create();
+        ownershipIndex = IoUtils.newFile(testInstall.getHome(), ProvisionEnvironment.DEF_HISTORY_DIR, "ownership.idx");
+    }
+
+    @Override
+    public void doCleanUp() {
+        IoUtils.recursiveDelete(unitBInstall.getHome());
+    }
+
+    @Test
+    public void testUninstallAfterRollback() throws Exception {
+        final ProvisionEnvironment env = installUnits();
+        assertTrue(ownershipIndex.exists());
+
+        env.rollbackLast();
+        assertTrue(new File(testInstall.getHome(), "shared.txt").exists());
+        assertFalse(new File(testInstall.getHome(), "b.txt").exists());
+        assertTrue(ownershipIndex.exists());
+
+        ProvisionEnvironment.load(testInstall.getHome()).uninstall("unitA");
+        AssertUtil.assertEmptyDirBranch(testInstall.getHome());
+    }
+
+    @Test
+    public void testUninstallWithoutIndex() throws Exception {
+        installUnits();
+        IoUtils.recursiveDelete(ownershipIndex);
+
+        ProvisionEnvironment env = ProvisionEnvironment.load(testInstall.getHome());
+        env.uninstall("unitA");
+        assertTrue(new File(testInstall.getHome(), "shared.txt").exists());
+        assertTrue(new File(testInstall.getHome(), "b.txt").exists());
+        assertFalse(new File(testInstall.getHome(), "a.txt").exists());
+        assertTrue(ownershipIndex.exists());
+
+        env = ProvisionEnvironment.load(testInstall.getHome());
+        env.uninstall("unitB");
+        AssertUtil.assertEmptyDirBranch(testInstall.getHome());
+    }
+
+    private ProvisionEnvironment installUnits() throws Exception {
+        originalInstall.createFileWithRandomContent("shared.txt")
+            .createFileWithRandomContent("a.txt");
+        unitBInstall.createFileWithRandomContent("b.txt");
+        IoUtils.copyFile(new File(originalInstall.getHome(), "shared.txt"), new File(unitBInstall.getHome(), "shared.txt"));
+
+        final ProvisionEnvironment env = ProvisionEnvironment.builder().setEnvironmentHome(testInstall.getHome()).build();
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(originalInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitA", "1.0");
+        env.apply(archive);
+
+        ProvisionPackage.newBuilder()
+            .setTargetInstallationDir(unitBInstall.getHome())
+            .setPackageOutputFile(archive)
+            .buildInstall("unitB", "1.0");
+        env.apply(archive);
+        AssertUtil.assertEnvInfo(env.getEnvironmentInfo(), ProvisionUnitInfo.createInfo("unitA", "1.0"), ProvisionUnitInfo.createInfo("unitB", "1.0"));
+        return env;
+    }
+}